@@ -0,0 +1,105 @@
+package fr.dossierfacile.keycloak.benchmark;
+
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.IpValidationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of IpValidationService and of the compiled allowlist used by IpWhitelistExecutor.
+ * <p>
+ * Ranges are distinct /24 (IPv4) or /48 (IPv6) blocks. A hit is in the last range,
+ * which is the worst case of a linear scan.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpValidationServiceBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    private int listSize;
+
+    @Param({"IPV4", "IPV6"})
+    private String family;
+
+    @Param({"HIT", "MISS", "INVALID"})
+    private String input;
+
+    private List<String> ranges;
+    private CompiledAllowlist allowlist;
+    private String ip;
+    private String cidr;
+
+    @Setup
+    public void setup() {
+        boolean ipv4 = "IPV4".equals(family);
+        ranges = new ArrayList<>(listSize);
+        for (int i = 0; i < listSize; i++) {
+            ranges.add(ipv4
+                    ? "10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"
+                    : "2001:db8:" + Integer.toHexString(i) + "::/48");
+        }
+        allowlist = CompiledAllowlist.compile(String.join(",", ranges));
+
+        int last = listSize - 1;
+        switch (input) {
+            case "HIT":
+                ip = ipv4 ? "10." + (last >> 8) + "." + (last & 0xFF) + ".42" : "2001:db8:" + Integer.toHexString(last) + "::42";
+                cidr = ranges.get(last);
+                break;
+            case "MISS":
+                ip = ipv4 ? "192.0.2.42" : "2001:db9::42";
+                cidr = ranges.get(last);
+                break;
+            default:
+                ip = ipv4 ? "10.0.0.256" : "2001:db8::zz";
+                cidr = ipv4 ? "10.0.0.0/33" : "2001:db8::/129";
+                break;
+        }
+    }
+
+    @Benchmark
+    public boolean isIpInRanges() {
+        return IpValidationService.isIpInRanges(ip, ranges);
+    }
+
+    @Benchmark
+    public boolean isIpInCidr() {
+        try {
+            return IpValidationService.isIpInCidr(ip, cidr);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public boolean isValidIpAddress() {
+        return IpValidationService.isValidIpAddress(ip);
+    }
+
+    @Benchmark
+    public boolean isValidCidrNotation() {
+        return IpValidationService.isValidCidrNotation(cidr);
+    }
+
+    @Benchmark
+    public boolean compiledAllowlistMatches() {
+        return allowlist.matches(ip);
+    }
+}
@@ -0,0 +1,89 @@
+package fr.dossierfacile.keycloak.benchmark;
+
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.clientpolicy.ClientPolicyContext;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a full IpWhitelistExecutor.executeOnEvent call on a client_credentials token request,
+ * with a stubbed KeycloakSession and KeycloakContext.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpWhitelistExecutorBenchmark {
+
+    @Param({"1", "100", "10000"})
+    private int listSize;
+
+    @Param({"HIT", "MISS"})
+    private String input;
+
+    private IpWhitelistExecutorFactory factory;
+    private KeycloakSession session;
+    private ClientPolicyContext context;
+
+    @Setup
+    public void setup() {
+        StringJoiner ranges = new StringJoiner(",");
+        for (int i = 0; i < listSize; i++) {
+            ranges.add("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24");
+        }
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("allowed.ip.ranges", ranges.toString());
+        attributes.put("has.ip.restriction", "true");
+
+        Map<String, String> headers = new HashMap<>();
+        int last = listSize - 1;
+        headers.put("X-Forwarded-For", "HIT".equals(input) ? "10." + (last >> 8) + "." + (last & 0xFF) + ".42" : "192.0.2.42");
+
+        RealmModel realm = KeycloakStubs.realm("benchmark");
+        ClientModel client = KeycloakStubs.client(realm, "partner-client", attributes);
+        session = KeycloakStubs.session(KeycloakStubs.context(realm, client, headers, "127.0.0.1"));
+        context = new ServiceAccountTokenRequestContext(null, null);
+
+        factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.close();
+    }
+
+    @Benchmark
+    public boolean executeOnEvent() {
+        try {
+            factory.create(session).executeOnEvent(context);
+            return true;
+        } catch (ClientPolicyException e) {
+            return false;
+        }
+    }
+}
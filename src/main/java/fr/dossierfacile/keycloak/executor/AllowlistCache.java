@@ -0,0 +1,152 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of compiled allowlists, keyed by realm and client.
+ * <p>
+ * Each entry remembers the attribute value it was compiled from, so a lookup with
+ * a different value (the client was updated on another path) recompiles instead of
+ * returning a stale matcher. As in {@link DecisionCache}, the cache is split into stripes,
+ * each an insertion-ordered map guarded by its own lock, so invalidating a client is
+ * O(1) and the eviction order always matches the entries. When a stripe is full, its
+ * oldest entry is evicted.
+ */
+public class AllowlistCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final IpListRegistry ipLists;
+    private final AllowlistInternPool internPool;
+    private final Stripe[] stripes;
+
+    public AllowlistCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize Maximum number of compiled allowlists
+     * @param ipLists The external IP lists that {@code @file:name} references resolve to, null to disable them
+     */
+    public AllowlistCache(int maxSize, IpListRegistry ipLists) {
+        this(maxSize, ipLists, null);
+    }
+
+    /**
+     * @param maxSize    Maximum number of compiled allowlists
+     * @param ipLists    The external IP lists that {@code @file:name} references resolve to, null to disable them
+     * @param internPool The pool sharing the matchers of identical range sets, null to disable sharing
+     */
+    public AllowlistCache(int maxSize, IpListRegistry ipLists, AllowlistInternPool internPool) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        this.ipLists = ipLists;
+        this.internPool = internPool;
+        // Power of two stripes, at most one per 64 entries so small caches evict in exact order
+        int stripeCount = Math.max(1, Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 4,
+                Integer.highestOneBit(Math.max(1, maxSize / 64))));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe((maxSize + stripeCount - 1) / stripeCount);
+        }
+    }
+
+    /**
+     * Return the compiled allowlist for a client, compiling it on a miss.
+     *
+     * @param realmId       The realm id
+     * @param clientId      The client internal id
+     * @param allowedRanges The current value of the client's allowed ranges attribute
+     * @return the compiled allowlist matching {@code allowedRanges}
+     */
+    public CompiledAllowlist get(String realmId, String clientId, String allowedRanges) {
+        Key key = new Key(realmId, clientId);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(key);
+            if (entry != null && entry.allowedRanges.equals(allowedRanges)) {
+                return entry.allowlist;
+            }
+        }
+
+        // Compiled outside the lock: a long list must not block the other clients of the stripe
+        CompiledAllowlist allowlist = CompiledAllowlist.compile(allowedRanges, ipLists, internPool);
+        synchronized (stripe) {
+            stripe.put(key, new Entry(allowedRanges, allowlist));
+        }
+        return allowlist;
+    }
+
+    /**
+     * Drop the cached allowlist of a client.
+     */
+    public void invalidate(String realmId, String clientId) {
+        Key key = new Key(realmId, clientId);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.entries.remove(key);
+        }
+    }
+
+    /**
+     * Drop every cached allowlist of a realm.
+     */
+    public void invalidateRealm(String realmId) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.keySet().removeIf(key -> key.realmId.equals(realmId));
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeFor(Key key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private record Key(String realmId, String clientId) {
+    }
+
+    private record Entry(String allowedRanges, CompiledAllowlist allowlist) {
+    }
+
+    /**
+     * Entries of one stripe, in insertion order. Replacing an entry keeps its position.
+     */
+    private static final class Stripe {
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>();
+        private final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void put(Key key, Entry entry) {
+            if (entries.put(key, entry) == null && entries.size() > capacity) {
+                Iterator<Key> eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
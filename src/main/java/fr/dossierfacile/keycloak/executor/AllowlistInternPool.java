@@ -0,0 +1,203 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Canonicalizing pool of {@link RangeSetMatcher}s.
+ * <p>
+ * Many clients carry the same ranges (office and VPN blocks), possibly written in another
+ * order or with redundant entries. Matchers are keyed on the normalized form of the set:
+ * the merged intervals of each address family and the names of the referenced lists.
+ * Every allowlist with the same set shares one matcher. The pool only holds weak
+ * references, so a matcher is released as soon as no allowlist uses it anymore.
+ */
+public class AllowlistInternPool {
+
+    private static final String HITS = "df_ip_whitelist_intern_hits_total";
+    private static final String MISSES = "df_ip_whitelist_intern_misses_total";
+    private static final String SIZE = "df_ip_whitelist_intern_pool_size";
+    private static final String HIT_BYTES = "df_ip_whitelist_intern_hit_bytes_total";
+    private static final String POOL_BYTES = "df_ip_whitelist_intern_pool_bytes";
+
+    private final Map<Key, MatcherReference> pool = new ConcurrentHashMap<>();
+    private final ReferenceQueue<RangeSetMatcher> released = new ReferenceQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hitBytes = new LongAdder();
+
+    /**
+     * Build the canonical key of a set of ranges.
+     *
+     * @param ipv4  The normalized IPv4 ranges
+     * @param ipv6  The normalized IPv6 ranges
+     * @param lists The referenced lists
+     * @return the key
+     */
+    public static Key key(CidrNormalizer.Result ipv4, CidrNormalizer.Result ipv6, IpListRegistry.ListReference[] lists) {
+        int ipv4Count = ipv4.intervalCount();
+        int ipv6Count = ipv6.intervalCount();
+        long[] intervals = new long[1 + 4 * (ipv4Count + ipv6Count)];
+        intervals[0] = ipv4Count;
+        System.arraycopy(ipv4.intervals(), 0, intervals, 1, 4 * ipv4Count);
+        System.arraycopy(ipv6.intervals(), 0, intervals, 1 + 4 * ipv4Count, 4 * ipv6Count);
+
+        String[] names = new String[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            names[i] = lists[i].getName();
+        }
+        Arrays.sort(names);
+        return new Key(intervals, names);
+    }
+
+    /**
+     * Return the shared matcher of a set of ranges, building it if no allowlist uses this set.
+     *
+     * @param key     The canonical key of the set
+     * @param builder Builds the matcher on a miss
+     * @return the shared matcher
+     */
+    public RangeSetMatcher intern(Key key, Supplier<RangeSetMatcher> builder) {
+        expungeReleased();
+
+        MatcherReference reference = pool.get(key);
+        RangeSetMatcher matcher = reference != null ? reference.get() : null;
+        if (matcher != null) {
+            recordHit(matcher);
+            return matcher;
+        }
+
+        RangeSetMatcher built = builder.get();
+        while (true) {
+            MatcherReference current = pool.compute(key, (k, existing) ->
+                    existing != null && existing.get() != null ? existing : new MatcherReference(k, built, released));
+            matcher = current.get();
+            if (matcher == built) {
+                misses.increment();
+                return built;
+            }
+            if (matcher != null) {
+                // Interned concurrently by another thread
+                recordHit(matcher);
+                return matcher;
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct sets currently in the pool
+     */
+    public int size() {
+        expungeReleased();
+        return pool.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Return the estimated size of the matchers reused by hits, in bytes, since the pool was created.
+     * This is a counter of hits weighted by size, not the memory currently saved: an allowlist
+     * compiled again after an eviction or an invalidation counts again.
+     */
+    public long getHitBytes() {
+        return hitBytes.sum();
+    }
+
+    /**
+     * @return the estimated size of the matchers currently in the pool, in bytes
+     */
+    public long getPoolBytes() {
+        expungeReleased();
+        long bytes = 0;
+        for (MatcherReference reference : pool.values()) {
+            RangeSetMatcher matcher = reference.get();
+            if (matcher != null) {
+                bytes += matcher.retainedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the pool metrics in the Prometheus text format (version 0.0.4).
+     */
+    public void writePrometheus(StringBuilder out) {
+        out.append("# HELP ").append(HITS).append(" Allowlists that reused a shared matcher.\n");
+        out.append("# TYPE ").append(HITS).append(" counter\n");
+        out.append(HITS).append(' ').append(getHits()).append('\n');
+        out.append("# HELP ").append(MISSES).append(" Allowlists that built a new shared matcher.\n");
+        out.append("# TYPE ").append(MISSES).append(" counter\n");
+        out.append(MISSES).append(' ').append(getMisses()).append('\n');
+        out.append("# HELP ").append(SIZE).append(" Distinct range sets in the pool.\n");
+        out.append("# TYPE ").append(SIZE).append(" gauge\n");
+        out.append(SIZE).append(' ').append(size()).append('\n');
+        out.append("# HELP ").append(HIT_BYTES).append(" Estimated size of the shared matchers reused by hits, counted on every hit.\n");
+        out.append("# TYPE ").append(HIT_BYTES).append(" counter\n");
+        out.append(HIT_BYTES).append(' ').append(getHitBytes()).append('\n');
+        out.append("# HELP ").append(POOL_BYTES).append(" Estimated size of the matchers in the pool.\n");
+        out.append("# TYPE ").append(POOL_BYTES).append(" gauge\n");
+        out.append(POOL_BYTES).append(' ').append(getPoolBytes()).append('\n');
+    }
+
+    public void clear() {
+        pool.clear();
+    }
+
+    private void recordHit(RangeSetMatcher matcher) {
+        hits.increment();
+        hitBytes.add(matcher.retainedBytes());
+    }
+
+    private void expungeReleased() {
+        MatcherReference reference;
+        while ((reference = (MatcherReference) released.poll()) != null) {
+            pool.remove(reference.key, reference);
+        }
+    }
+
+    /**
+     * Canonical form of a set of ranges.
+     */
+    public static final class Key {
+        private final long[] intervals;
+        private final String[] lists;
+        private final int hash;
+
+        private Key(long[] intervals, String[] lists) {
+            this.intervals = intervals;
+            this.lists = lists;
+            this.hash = 31 * Arrays.hashCode(intervals) + Arrays.hashCode(lists);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && hash == other.hash
+                    && Arrays.equals(intervals, other.intervals) && Arrays.equals(lists, other.lists);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class MatcherReference extends WeakReference<RangeSetMatcher> {
+        private final Key key;
+
+        MatcherReference(Key key, RangeSetMatcher matcher, ReferenceQueue<RangeSetMatcher> queue) {
+            super(matcher, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drops the cached allowlists and decisions of changed clients, on every node.
+ * <p>
+ * Keycloak only notifies the node where a client is changed. That node drops its own
+ * entries, then publishes a {@link ClientInvalidationEvent} on the
+ * {@link InvalidationBus} so that the other nodes drop theirs. Each client has a
+ * version, a Lamport clock: a change takes the next version, and an event is only
+ * applied if it is newer than the version the node already knows. Duplicate, late and
+ * reordered events are thus ignored, and all nodes converge on the last change as
+ * soon as it is delivered. The lower 16 bits of a version identify the node, so two
+ * nodes changing the same client concurrently never produce the same version. The
+ * version of a client is forgotten once it is removed, and those of a realm's clients
+ * once the realm is removed.
+ */
+public class AllowlistInvalidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AllowlistInvalidator.class);
+
+    private static final int NODE_BITS = 16;
+
+    private final AllowlistCache allowlistCache;
+    private final Collection<DecisionCache> decisionCaches;
+    private final long node = ThreadLocalRandom.current().nextLong(1L << NODE_BITS);
+    // Last known version of each client, and of each realm under a null client id
+    private final Map<Key, Long> versions = new ConcurrentHashMap<>();
+    private volatile InvalidationBus bus;
+
+    /**
+     * @param allowlistCache The compiled allowlists of this node
+     * @param decisionCaches The decision caches of this node, a live view
+     */
+    public AllowlistInvalidator(AllowlistCache allowlistCache, Collection<DecisionCache> decisionCaches) {
+        this.allowlistCache = allowlistCache;
+        this.decisionCaches = decisionCaches;
+    }
+
+    /**
+     * Publish the changes of this node on a bus, and apply the changes of the other nodes.
+     * Until then, changes are only applied to this node.
+     */
+    public void connect(InvalidationBus bus) {
+        bus.subscribe(this::onEvent);
+        this.bus = bus;
+    }
+
+    /**
+     * Drop the entries of a client changed on this node, and tell the other nodes.
+     *
+     * @param realmId  The realm id
+     * @param clientId The client internal id
+     */
+    public void clientChanged(String realmId, String clientId) {
+        changed(realmId, clientId, false);
+    }
+
+    /**
+     * Drop the entries and the version of a client removed on this node, and tell the other nodes.
+     *
+     * @param realmId  The realm id
+     * @param clientId The client internal id
+     */
+    public void clientRemoved(String realmId, String clientId) {
+        changed(realmId, clientId, true);
+    }
+
+    /**
+     * Drop the entries of every client of a realm removed on this node, and tell the other nodes.
+     */
+    public void realmRemoved(String realmId) {
+        changed(realmId, null, false);
+    }
+
+    /**
+     * @return the last known version of a client, 0 if it never changed
+     */
+    public long getVersion(String realmId, String clientId) {
+        return versions.getOrDefault(new Key(realmId, clientId), 0L);
+    }
+
+    private void changed(String realmId, String clientId, boolean removed) {
+        Key key = new Key(realmId, clientId);
+        long version = versions.compute(key,
+                (k, current) -> ((current == null ? 0 : current >>> NODE_BITS) + 1) << NODE_BITS | node);
+        invalidate(realmId, clientId);
+        if (removed) {
+            versions.remove(key);
+        }
+
+        InvalidationBus current = bus;
+        if (current != null) {
+            try {
+                current.publish(new ClientInvalidationEvent(realmId, clientId, version, removed));
+            } catch (RuntimeException e) {
+                logger.error("Cannot publish the invalidation of client {} in realm {} to the other nodes", clientId, realmId, e);
+            }
+        }
+    }
+
+    private void onEvent(ClientInvalidationEvent event) {
+        Key key = new Key(event.getRealmId(), event.getClientId());
+        boolean[] newer = new boolean[1];
+        versions.compute(key, (k, current) -> {
+            newer[0] = current == null || event.getVersion() > current;
+            return newer[0] ? event.getVersion() : current;
+        });
+        if (newer[0]) {
+            invalidate(event.getRealmId(), event.getClientId());
+            if (event.isRemoved()) {
+                versions.remove(key, event.getVersion());
+            }
+        } else {
+            logger.debug("Ignoring out-of-date {}", event);
+        }
+    }
+
+    private void invalidate(String realmId, String clientId) {
+        if (clientId == null) {
+            allowlistCache.invalidateRealm(realmId);
+            // Decision caches are not keyed by realm, and realms are rarely removed
+            decisionCaches.forEach(DecisionCache::clear);
+            versions.keySet().removeIf(key -> key.realmId.equals(realmId) && key.clientId != null);
+        } else {
+            allowlistCache.invalidate(realmId, clientId);
+            decisionCaches.forEach(cache -> cache.invalidate(clientId));
+        }
+    }
+
+    private record Key(String realmId, String clientId) {
+    }
+}
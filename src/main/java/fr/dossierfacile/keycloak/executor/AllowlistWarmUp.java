@@ -0,0 +1,194 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background warm-up of the allowlists at server start.
+ * <p>
+ * Without it, the first token request of every client after a restart pays the cold
+ * cost of the check: attribute lookup, compilation of the ranges, class loading and
+ * interpreted code. The warm-up reads the clients with {@code has.ip.restriction=true}
+ * of every realm in one transaction, compiles their ranges into the
+ * {@link AllowlistCache} in parallel, then runs a short loop of synthetic checks so
+ * that the JIT compiles the hot path. It runs on its own pool of daemon threads:
+ * the server never waits for it, and requests arriving meanwhile compile on demand.
+ */
+public class AllowlistWarmUp {
+
+    private static final Logger logger = LoggerFactory.getLogger(AllowlistWarmUp.class);
+
+    /**
+     * Client attribute of the clients restricted by IP, as used by the client policy condition.
+     */
+    public static final String RESTRICTION_ATTR = "has.ip.restriction";
+
+    public static final int DEFAULT_VALIDATION_ITERATIONS = 200_000;
+
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final AllowlistCache allowlistCache;
+    private final int parallelism;
+    private final int validationIterations;
+    private ForkJoinPool pool;
+
+    /**
+     * @param allowlistCache       The cache to fill
+     * @param parallelism          Number of threads compiling the allowlists
+     * @param validationIterations Number of synthetic checks run after the compilation
+     */
+    public AllowlistWarmUp(AllowlistCache allowlistCache, int parallelism, int validationIterations) {
+        if (parallelism <= 0 || validationIterations < 0) {
+            throw new IllegalArgumentException("Warm-up parallelism must be positive and iterations not negative");
+        }
+        this.allowlistCache = allowlistCache;
+        this.parallelism = parallelism;
+        this.validationIterations = validationIterations;
+    }
+
+    /**
+     * Start the warm-up in the background. Never blocks and never throws: failures are logged.
+     *
+     * @param factory The session factory, to read the clients
+     * @return the running warm-up
+     */
+    public synchronized ForkJoinTask<?> start(KeycloakSessionFactory factory) {
+        if (pool == null) {
+            AtomicInteger threads = new AtomicInteger();
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("df-ip-whitelist-warm-up-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return pool.submit(() -> run(factory));
+    }
+
+    private void run(KeycloakSessionFactory factory) {
+        long start = System.nanoTime();
+        try {
+            List<ClientRanges> clients = KeycloakModelUtils.runJobInTransactionWithResult(factory, this::collect);
+            long collected = System.nanoTime();
+            int compiled = compile(clients);
+            long compiledAt = System.nanoTime();
+            validate(clients);
+            long end = System.nanoTime();
+            logger.info("IP whitelist warm-up done in {} ms: {} clients read in {} ms, {} allowlists compiled in {} ms, {} synthetic checks in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(end - start), clients.size(), TimeUnit.NANOSECONDS.toMillis(collected - start),
+                    compiled, TimeUnit.NANOSECONDS.toMillis(compiledAt - collected), clients.isEmpty() ? 0 : validationIterations,
+                    TimeUnit.NANOSECONDS.toMillis(end - compiledAt));
+        } catch (RuntimeException e) {
+            logger.error("IP whitelist warm-up failed after {} ms, allowlists are compiled on first use",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e);
+        }
+    }
+
+    /**
+     * Read the allowed ranges of the clients restricted by IP, in every realm.
+     *
+     * @param session A session with an active transaction
+     * @return the clients with allowed ranges
+     */
+    public List<ClientRanges> collect(KeycloakSession session) {
+        List<ClientRanges> clients = new ArrayList<>();
+        session.realms().getRealmsStream().forEach(realm -> {
+            int before = clients.size();
+            session.clients().searchClientsByAttributes(realm, Map.of(RESTRICTION_ATTR, "true"), null, null)
+                    .forEach(client -> add(clients, realm, client));
+            logger.debug("IP whitelist warm-up: {} restricted clients in realm {}", clients.size() - before, realm.getName());
+        });
+        return clients;
+    }
+
+    private static void add(List<ClientRanges> clients, RealmModel realm, ClientModel client) {
+        String allowedRanges = client.getAttribute(IpWhitelistExecutor.ALLOWED_IP_RANGES_ATTR);
+        if (allowedRanges != null && !allowedRanges.isEmpty()) {
+            clients.add(new ClientRanges(realm.getId(), client.getId(), allowedRanges));
+        }
+    }
+
+    /**
+     * Compile the allowlists of the clients into the cache, in parallel when called from the warm-up pool.
+     *
+     * @return the number of allowlists compiled
+     */
+    public int compile(List<ClientRanges> clients) {
+        AtomicInteger compiled = new AtomicInteger();
+        clients.parallelStream().forEach(client -> {
+            try {
+                allowlistCache.get(client.realmId(), client.clientId(), client.allowedRanges());
+            } catch (RuntimeException e) {
+                logger.warn("IP whitelist warm-up: cannot compile the ranges of client {}", client.clientId(), e);
+                return;
+            }
+            int count = compiled.incrementAndGet();
+            if (count % PROGRESS_INTERVAL == 0) {
+                logger.info("IP whitelist warm-up: {}/{} allowlists compiled", count, clients.size());
+            }
+        });
+        return compiled.get();
+    }
+
+    /**
+     * Run synthetic checks of random addresses against the compiled allowlists, parsing
+     * them from text as requests do.
+     *
+     * @return the number of allowed addresses, so that the loop cannot be optimized away
+     */
+    public int validate(List<ClientRanges> clients) {
+        if (clients.isEmpty()) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] address = new long[2];
+        int allowed = 0;
+        for (int i = 0; i < validationIterations; i++) {
+            ClientRanges client = clients.get(i % clients.size());
+            String ip = (i & 1) == 0
+                    ? IpAddressFormatter.formatAddress(IpAddressParser.IPV4, (random.nextLong() & 0xFFFFFFFFL) << 32, 0)
+                    : IpAddressFormatter.formatAddress(IpAddressParser.IPV6, random.nextLong(), random.nextLong());
+            int family = IpAddressParser.parseAddress(ip, address);
+            if (allowlistCache.get(client.realmId(), client.clientId(), client.allowedRanges())
+                    .contains(family, address[0], address[1])) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Stop a running warm-up.
+     */
+    public synchronized void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Allowed ranges of a client.
+     *
+     * @param realmId       The realm id
+     * @param clientId      The client internal id
+     * @param allowedRanges The client's allowed ranges attribute
+     */
+    public record ClientRanges(String realmId, String clientId, String allowedRanges) {
+    }
+}
@@ -0,0 +1,328 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous audit trail of the decisions of {@link IpWhitelistExecutor}.
+ * <p>
+ * Request threads write compact records (time, decision, packed address and references
+ * to the realm and client names) into a bounded, lock-free ring buffer, and never block:
+ * when the buffer is full the record is dropped and counted. A daemon thread drains the
+ * buffer in batches into a local JSON lines file, rotated by size. Denials are always
+ * recorded, allowed requests are sampled.
+ */
+public class AuditLog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditLog.class);
+
+    public static final String FILE_NAME = "ip-whitelist-audit.jsonl";
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final long DEFAULT_MAX_FILE_SIZE = 10L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+    public static final double DEFAULT_ALLOW_SAMPLE_RATE = 0.01;
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final String DROPPED = "df_ip_whitelist_audit_dropped_total";
+    private static final String WRITTEN = "df_ip_whitelist_audit_written_total";
+
+    private static final DecisionMetrics.Decision[] DECISIONS = DecisionMetrics.Decision.values();
+
+    // Ring buffer: slot i holds the record of position p when sequences[i] == p + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] times;
+    private final long[] his;
+    private final long[] los;
+    private final byte[] decisions;
+    private final byte[] families;
+    private final String[] realms;
+    private final String[] clients;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final double allowSampleRate;
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    private volatile boolean running;
+    private Thread drainer;
+    private BufferedWriter writer;
+    private long fileSize;
+
+    /**
+     * @param directory       The directory of the audit files
+     * @param bufferSize      Number of records the buffer can hold, rounded up to a power of two
+     * @param allowSampleRate Fraction of the allowed requests to record, between 0 and 1
+     * @param maxFileSize     Size after which the file is rotated, in bytes
+     * @param maxFiles        Number of files to keep, including the current one
+     */
+    public AuditLog(Path directory, int bufferSize, double allowSampleRate, long maxFileSize, int maxFiles) {
+        if (bufferSize <= 0 || maxFileSize <= 0 || maxFiles <= 0) {
+            throw new IllegalArgumentException("Audit buffer size, file size and file count must be positive");
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.times = new long[capacity];
+        this.his = new long[capacity];
+        this.los = new long[capacity];
+        this.decisions = new byte[capacity];
+        this.families = new byte[capacity];
+        this.realms = new String[capacity];
+        this.clients = new String[capacity];
+        this.allowSampleRate = allowSampleRate;
+        this.file = directory.resolve(FILE_NAME);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Start the thread writing the records to the audit file.
+     *
+     * @throws IOException if the audit file cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        openWriter();
+        running = true;
+        drainer = new Thread(this::drainLoop, "df-ip-whitelist-audit");
+        drainer.setDaemon(true);
+        drainer.start();
+        logger.info("Writing IP whitelist audit records to {}", file);
+    }
+
+    /**
+     * Record a decision, unless it is an allowed request left out by sampling. Never blocks.
+     *
+     * @param realm    The realm name
+     * @param clientId The client id
+     * @param decision The decision
+     * @param family   The address family, {@link IpAddressParser#INVALID_FAMILY} if the address is unknown
+     * @param hi       Upper 64 bits of the address
+     * @param lo       Lower 64 bits of the address
+     * @return false if the record was dropped because the buffer is full
+     */
+    public boolean record(String realm, String clientId, DecisionMetrics.Decision decision, int family, long hi, long lo) {
+        if (decision == DecisionMetrics.Decision.ALLOW
+                && (allowSampleRate <= 0 || allowSampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= allowSampleRate)) {
+            return true;
+        }
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    times[index] = System.currentTimeMillis();
+                    his[index] = hi;
+                    los[index] = lo;
+                    decisions[index] = (byte) decision.ordinal();
+                    families[index] = (byte) family;
+                    realms[index] = realm;
+                    clients[index] = clientId;
+                    // Publish the record to the drainer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                // The drainer is a full lap behind
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Write the pending records to the audit file. Only called by the drainer, or after it stopped.
+     *
+     * @return the number of records written
+     */
+    int drain(int max) throws IOException {
+        StringBuilder line = new StringBuilder(160);
+        int count = 0;
+        while (count < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+
+            line.setLength(0);
+            line.append("{\"time\":\"").append(Instant.ofEpochMilli(times[index])).append("\",\"realm\":");
+            appendJsonString(line, realms[index]);
+            line.append(",\"clientId\":");
+            appendJsonString(line, clients[index]);
+            line.append(",\"ip\":");
+            if (families[index] == IpAddressParser.INVALID_FAMILY) {
+                line.append("null");
+            } else {
+                IpAddressFormatter.appendAddress(line.append('"'), families[index], his[index], los[index]).append('"');
+            }
+            line.append(",\"decision\":\"").append(DECISIONS[decisions[index]].getLabel()).append("\"}\n");
+
+            realms[index] = null;
+            clients[index] = null;
+            // Hand the slot back to the producers, for the next lap
+            sequences.set(index, head + mask + 1);
+            head++;
+
+            write(line);
+            count++;
+        }
+        if (count > 0) {
+            writer.flush();
+            written.add(count);
+        }
+        return count;
+    }
+
+    private void drainLoop() {
+        while (running) {
+            try {
+                if (drain(BATCH_SIZE) == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error writing IP whitelist audit records", e);
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void write(CharSequence line) throws IOException {
+        if (fileSize + line.length() > maxFileSize && fileSize > 0) {
+            rotate();
+        }
+        writer.append(line);
+        fileSize += line.length();
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rotated(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            Path source = rotated(i);
+            if (Files.exists(source)) {
+                Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        openWriter();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(FILE_NAME + "." + index);
+    }
+
+    private void openWriter() throws IOException {
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    /**
+     * Append a JSON string literal, or {@code null}.
+     */
+    static void appendJsonString(StringBuilder out, CharSequence value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of records written to the audit file
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Write the audit metrics in the Prometheus text format (version 0.0.4).
+     */
+    public void writePrometheus(StringBuilder out) {
+        out.append("# HELP ").append(DROPPED).append(" Audit records dropped because the buffer was full.\n");
+        out.append("# TYPE ").append(DROPPED).append(" counter\n");
+        out.append(DROPPED).append(' ').append(getDropped()).append('\n');
+        out.append("# HELP ").append(WRITTEN).append(" Audit records written to the audit file.\n");
+        out.append("# TYPE ").append(WRITTEN).append(" counter\n");
+        out.append(WRITTEN).append(' ').append(getWritten()).append('\n');
+    }
+
+    /**
+     * Stop the drainer, then write the pending records and close the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+            drain(Integer.MAX_VALUE);
+            writer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error closing the IP whitelist audit file", e);
+        }
+        if (getDropped() > 0) {
+            logger.warn("{} IP whitelist audit records were dropped because the buffer was full", getDropped());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.util.Arrays;
+
+/**
+ * Canonicalizes a list of CIDR prefixes.
+ * <p>
+ * Host bits are masked, prefixes covered by another prefix of the list are dropped
+ * (and reported as redundant), and the remaining prefixes are coalesced into a sorted
+ * list of disjoint, non-adjacent address intervals. Addresses use the 128-bit keys of
+ * {@link PrefixMatcher}, compared as unsigned numbers.
+ */
+public final class CidrNormalizer {
+
+    private CidrNormalizer() {
+    }
+
+    /**
+     * Normalize a list of prefixes.
+     *
+     * @param his     High 64 bits of each network
+     * @param los     Low 64 bits of each network
+     * @param lengths Prefix length of each network, between 0 and 128
+     * @param count   Number of prefixes to read from the arrays
+     * @return the canonical prefixes, merged intervals and redundant entries
+     */
+    public static Result normalize(long[] his, long[] los, int[] lengths, int count) {
+        long[] maskedHi = new long[count];
+        long[] maskedLo = new long[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            maskedHi[i] = his[i] & PrefixMatcher.maskHi(lengths[i]);
+            maskedLo[i] = los[i] & PrefixMatcher.maskLo(lengths[i]);
+            order[i] = i;
+        }
+
+        // By start address, then widest first so that a covering prefix comes before the prefixes it covers
+        Arrays.sort(order, (a, b) -> {
+            int byStart = compareUnsigned(maskedHi[a], maskedLo[a], maskedHi[b], maskedLo[b]);
+            return byStart != 0 ? byStart : Integer.compare(lengths[a], lengths[b]);
+        });
+
+        Result result = new Result(count);
+        long coverEndHi = 0;
+        long coverEndLo = 0;
+        boolean hasCover = false;
+
+        for (int index : order) {
+            long startHi = maskedHi[index];
+            long startLo = maskedLo[index];
+            long endHi = startHi | ~PrefixMatcher.maskHi(lengths[index]);
+            long endLo = startLo | ~PrefixMatcher.maskLo(lengths[index]);
+
+            // Two prefixes are either nested or disjoint, so checking the last kept prefix is enough
+            if (hasCover && compareUnsigned(endHi, endLo, coverEndHi, coverEndLo) <= 0) {
+                result.redundant[result.redundantCount++] = index;
+                continue;
+            }
+
+            int p = result.prefixCount++;
+            result.prefixHi[p] = startHi;
+            result.prefixLo[p] = startLo;
+            result.prefixLengths[p] = lengths[index];
+            result.prefixSources[p] = index;
+            coverEndHi = endHi;
+            coverEndLo = endLo;
+            hasCover = true;
+
+            int last = result.intervalCount - 1;
+            if (last >= 0 && isAdjacent(result.intervals[4 * last + 2], result.intervals[4 * last + 3], startHi, startLo)) {
+                // Prefixes are disjoint and sorted, so the new end is always the larger one
+                result.intervals[4 * last + 2] = endHi;
+                result.intervals[4 * last + 3] = endLo;
+            } else {
+                int n = result.intervalCount++;
+                result.intervals[4 * n] = startHi;
+                result.intervals[4 * n + 1] = startLo;
+                result.intervals[4 * n + 2] = endHi;
+                result.intervals[4 * n + 3] = endLo;
+            }
+        }
+
+        Arrays.sort(result.redundant, 0, result.redundantCount);
+        return result;
+    }
+
+    /**
+     * Compare two 128-bit values as unsigned numbers.
+     */
+    public static int compareUnsigned(long aHi, long aLo, long bHi, long bLo) {
+        int byHi = Long.compareUnsigned(aHi, bHi);
+        return byHi != 0 ? byHi : Long.compareUnsigned(aLo, bLo);
+    }
+
+    /**
+     * @return true if {@code start} immediately follows {@code end}
+     */
+    private static boolean isAdjacent(long endHi, long endLo, long startHi, long startLo) {
+        long nextLo = endLo + 1;
+        long nextHi = nextLo == 0 ? endHi + 1 : endHi;
+        return nextHi == startHi && nextLo == startLo;
+    }
+
+    /**
+     * Result of a normalization. Arrays are only valid up to their matching count.
+     */
+    public static final class Result {
+        private final long[] prefixHi;
+        private final long[] prefixLo;
+        private final int[] prefixLengths;
+        private final int[] prefixSources;
+        private int prefixCount;
+
+        // Start high, start low, end high, end low of each interval
+        private final long[] intervals;
+        private int intervalCount;
+
+        private final int[] redundant;
+        private int redundantCount;
+
+        private Result(int capacity) {
+            prefixHi = new long[capacity];
+            prefixLo = new long[capacity];
+            prefixLengths = new int[capacity];
+            prefixSources = new int[capacity];
+            intervals = new long[4 * capacity];
+            redundant = new int[capacity];
+        }
+
+        /**
+         * @return high 64 bits of the canonical prefixes, sorted by address
+         */
+        public long[] prefixHi() {
+            return prefixHi;
+        }
+
+        /**
+         * @return low 64 bits of the canonical prefixes, sorted by address
+         */
+        public long[] prefixLo() {
+            return prefixLo;
+        }
+
+        /**
+         * @return lengths of the canonical prefixes
+         */
+        public int[] prefixLengths() {
+            return prefixLengths;
+        }
+
+        /**
+         * @return for each canonical prefix, the index of the input entry it comes from
+         */
+        public int[] prefixSources() {
+            return prefixSources;
+        }
+
+        /**
+         * @return the number of canonical prefixes (input entries not covered by another one)
+         */
+        public int prefixCount() {
+            return prefixCount;
+        }
+
+        /**
+         * @return the merged intervals, as start high, start low, end high and end low bits, sorted by address
+         */
+        public long[] intervals() {
+            return intervals;
+        }
+
+        /**
+         * @return the number of merged intervals
+         */
+        public int intervalCount() {
+            return intervalCount;
+        }
+
+        /**
+         * @return the sorted indexes of the input entries covered by another entry
+         */
+        public int[] redundant() {
+            return Arrays.copyOf(redundant, redundantCount);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * A client (or a whole realm) whose cached allowlists and decisions must be dropped.
+ */
+public final class ClientInvalidationEvent implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String realmId;
+    private final String clientId;
+    private final long version;
+    private final boolean removed;
+
+    /**
+     * @param realmId  The realm id
+     * @param clientId The client internal id, null for every client of the realm
+     * @param version  The version of the client after the change, see {@link AllowlistInvalidator}
+     */
+    public ClientInvalidationEvent(String realmId, String clientId, long version) {
+        this(realmId, clientId, version, false);
+    }
+
+    /**
+     * @param removed True if the client was removed, so that its version can be forgotten
+     */
+    public ClientInvalidationEvent(String realmId, String clientId, long version, boolean removed) {
+        this.realmId = realmId;
+        this.clientId = clientId;
+        this.version = version;
+        this.removed = removed;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientInvalidationEvent[realmId=" + realmId + ", clientId=" + clientId + ", version=" + version + ", removed=" + removed + "]";
+    }
+}
@@ -0,0 +1,309 @@
+package fr.dossierfacile.keycloak.executor;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import org.keycloak.models.KeycloakContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the IP address of the caller of a request.
+ * <p>
+ * When trusted proxies are configured, forwarding headers are only read if the TCP peer
+ * is a trusted proxy, and only the single header the proxies set is read: any other header
+ * passes through the proxies unchanged and may have been forged by the client. The header
+ * ({@code X-Forwarded-For}, {@code Forwarded} (RFC 7239) or {@code X-Real-IP}) is walked
+ * from right to left, skipping trusted hops: the first untrusted address is the client,
+ * since everything on its left may have been forged by the client itself.
+ * <p>
+ * Without trusted proxies, the legacy behaviour is kept: the first {@code X-Forwarded-For}
+ * entry, then {@code X-Real-IP}, then the remote address.
+ * <p>
+ * Headers are scanned in place, without splitting, and only IP literals are accepted.
+ */
+public class ClientIpResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClientIpResolver.class);
+
+    public static final String FORWARDED = "Forwarded";
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+    public static final String X_REAL_IP = "X-Real-IP";
+
+    // Result of a header scan, when no usable address was found
+    private static final long NOT_FOUND = -1L;
+
+    private final CompiledAllowlist trustedProxies;
+    private final String forwardedHeader;
+
+    /**
+     * Resolver reading {@code X-Forwarded-For} from the trusted proxies.
+     *
+     * @param trustedProxies CIDR ranges of the trusted reverse proxies, empty for the legacy behaviour
+     */
+    public ClientIpResolver(CompiledAllowlist trustedProxies) {
+        this(trustedProxies, X_FORWARDED_FOR);
+    }
+
+    /**
+     * @param trustedProxies  CIDR ranges of the trusted reverse proxies, empty for the legacy behaviour
+     * @param forwardedHeader The header set by the trusted proxies: {@link #X_FORWARDED_FOR},
+     *                        {@link #FORWARDED} or {@link #X_REAL_IP}, case-insensitive
+     * @throws IllegalArgumentException if the header is not one of those
+     */
+    public ClientIpResolver(CompiledAllowlist trustedProxies, String forwardedHeader) {
+        this.trustedProxies = trustedProxies;
+        this.forwardedHeader = canonicalHeader(forwardedHeader);
+    }
+
+    private static String canonicalHeader(String header) {
+        for (String known : new String[]{X_FORWARDED_FOR, FORWARDED, X_REAL_IP}) {
+            if (known.equalsIgnoreCase(header == null ? null : header.trim())) {
+                return known;
+            }
+        }
+        throw new IllegalArgumentException("Forwarded header must be one of " + X_FORWARDED_FOR + ", " + FORWARDED
+                + " or " + X_REAL_IP + ": " + header);
+    }
+
+    /**
+     * @return the header read from the trusted proxies
+     */
+    public String getForwardedHeader() {
+        return forwardedHeader;
+    }
+
+    /**
+     * @return true if trusted proxies are configured
+     */
+    public boolean hasTrustedProxies() {
+        return trustedProxies.size() > 0;
+    }
+
+    /**
+     * Extract client IP address from the request context.
+     *
+     * @param context The Keycloak context of the request
+     * @return The client IP address or null if not found
+     */
+    public String resolve(KeycloakContext context) {
+        try {
+            HttpHeaders headers = context.getHttpRequest().getHttpHeaders();
+            String remoteAddr = context.getConnection().getRemoteAddr();
+
+            if (!hasTrustedProxies()) {
+                return resolveLegacy(headers, remoteAddr);
+            }
+
+            if (remoteAddr == null || !trustedProxies.matches(remoteAddr)) {
+                // Direct connection, or from a proxy we do not trust: headers may be forged
+                logger.debug("Client IP from remote address: {}", remoteAddr);
+                return remoteAddr;
+            }
+
+            // Only the header set by the proxies: the others are passed through as sent by the client
+            String forwarded = headers.getHeaderString(forwardedHeader);
+            if (forwarded != null) {
+                long range = forwardedHeader == FORWARDED ? walkForwarded(forwarded) : walkForwardedFor(forwarded);
+                return toAddress(forwarded, range, forwardedHeader);
+            }
+
+            // The trusted proxy did not forward anything: it is the caller
+            logger.debug("Client IP from remote address: {}", remoteAddr);
+            return remoteAddr;
+
+        } catch (Exception e) {
+            logger.error("Error extracting client IP address", e);
+            return null;
+        }
+    }
+
+    private String resolveLegacy(HttpHeaders headers, String remoteAddr) {
+        // Try to get IP from X-Forwarded-For header first (for load balancers/proxies)
+        String forwardedFor = headers.getHeaderString(X_FORWARDED_FOR);
+        if (forwardedFor != null) {
+            // X-Forwarded-For can contain multiple IPs, take the first one
+            int comma = forwardedFor.indexOf(',');
+            int end = comma < 0 ? forwardedFor.length() : comma;
+            int start = IpAddressParser.trimStart(forwardedFor, 0, end);
+            end = IpAddressParser.trimEnd(forwardedFor, start, end);
+            if (IpAddressParser.isIpLiteral(forwardedFor, start, end)) {
+                String clientIp = forwardedFor.substring(start, end);
+                logger.debug("Client IP from X-Forwarded-For: {}", clientIp);
+                return clientIp;
+            }
+            if (start < end) {
+                logger.debug("Ignoring X-Forwarded-For header without an IP literal: {}", forwardedFor);
+            }
+        }
+
+        // Try X-Real-IP header (alternative proxy header)
+        String realIp = headers.getHeaderString(X_REAL_IP);
+        if (realIp != null) {
+            if (IpAddressParser.isIpLiteral(realIp)) {
+                logger.debug("Client IP from X-Real-IP: {}", realIp);
+                return realIp.trim();
+            }
+            if (!realIp.trim().isEmpty()) {
+                logger.debug("Ignoring X-Real-IP header without an IP literal: {}", realIp);
+            }
+        }
+
+        // Fall back to remote address
+        if (remoteAddr != null && !remoteAddr.trim().isEmpty()) {
+            logger.debug("Client IP from remote address: {}", remoteAddr);
+            return remoteAddr;
+        }
+
+        logger.warn("Could not determine client IP address from any source");
+        return null;
+    }
+
+    private static String toAddress(String header, long range, String headerName) {
+        if (range == NOT_FOUND) {
+            logger.warn("No usable client address in {} header: {}", headerName, header);
+            return null;
+        }
+        String clientIp = header.substring((int) (range >>> 32), (int) range);
+        logger.debug("Client IP from {}: {}", headerName, clientIp);
+        return clientIp;
+    }
+
+    /**
+     * Walk an X-Forwarded-For header from right to left.
+     *
+     * @return the range of the first untrusted address, packed as {@code start << 32 | end},
+     * the leftmost address if all hops are trusted, or {@link #NOT_FOUND} if an entry is not an IP literal
+     */
+    private long walkForwardedFor(String header) {
+        int end = header.length();
+        long leftmost = NOT_FOUND;
+        while (end >= 0) {
+            int comma = header.lastIndexOf(',', end - 1);
+            int start = IpAddressParser.trimStart(header, comma + 1, end);
+            int trimmedEnd = IpAddressParser.trimEnd(header, start, end);
+
+            if (start < trimmedEnd) {
+                if (!IpAddressParser.isIpLiteral(header, start, trimmedEnd)) {
+                    return NOT_FOUND;
+                }
+                leftmost = (long) start << 32 | trimmedEnd;
+                if (!trustedProxies.matches(header, start, trimmedEnd)) {
+                    return leftmost;
+                }
+            }
+
+            if (comma < 0) {
+                break;
+            }
+            end = comma;
+        }
+        return leftmost;
+    }
+
+    /**
+     * Walk a Forwarded header (RFC 7239) from right to left, reading the {@code for} parameter of each element.
+     *
+     * @return the range of the first untrusted address, packed as {@code start << 32 | end},
+     * the leftmost address if all hops are trusted, or {@link #NOT_FOUND} if an element has no
+     * {@code for} IP literal (e.g. {@code for=unknown} or an obfuscated identifier)
+     */
+    private long walkForwarded(String header) {
+        int end = header.length();
+        long leftmost = NOT_FOUND;
+        while (end >= 0) {
+            int comma = lastIndexOfUnquoted(header, ',', end - 1);
+            int start = IpAddressParser.trimStart(header, comma + 1, end);
+            int trimmedEnd = IpAddressParser.trimEnd(header, start, end);
+
+            if (start < trimmedEnd) {
+                long address = forParameter(header, start, trimmedEnd);
+                if (address == NOT_FOUND) {
+                    return NOT_FOUND;
+                }
+                leftmost = address;
+                if (!trustedProxies.matches(header, (int) (address >>> 32), (int) address)) {
+                    return leftmost;
+                }
+            }
+
+            if (comma < 0) {
+                break;
+            }
+            end = comma;
+        }
+        return leftmost;
+    }
+
+    /**
+     * Find the IP literal of the {@code for} parameter in a Forwarded element such as
+     * {@code for="[2001:db8::17]:4711";proto=https}.
+     */
+    private static long forParameter(String header, int from, int to) {
+        int pairStart = from;
+        while (pairStart < to) {
+            int pairEnd = indexOfUnquoted(header, ';', pairStart, to);
+            int name = IpAddressParser.trimStart(header, pairStart, pairEnd);
+            if (header.regionMatches(true, name, "for", 0, 3)) {
+                int equals = IpAddressParser.trimStart(header, name + 3, pairEnd);
+                if (equals < pairEnd && header.charAt(equals) == '=') {
+                    return nodeAddress(header, IpAddressParser.trimStart(header, equals + 1, pairEnd),
+                            IpAddressParser.trimEnd(header, equals + 1, pairEnd));
+                }
+            }
+            pairStart = pairEnd + 1;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Extract the IP literal of a node value: {@code 192.0.2.43}, {@code "192.0.2.43:47011"},
+     * {@code "[2001:db8:cafe::17]"} or {@code "[2001:db8:cafe::17]:4711"}.
+     */
+    private static long nodeAddress(String header, int from, int to) {
+        if (to - from >= 2 && header.charAt(from) == '"' && header.charAt(to - 1) == '"') {
+            from++;
+            to--;
+        }
+        if (from < to && header.charAt(from) == '[') {
+            int bracket = header.indexOf(']', from);
+            if (bracket < 0 || bracket >= to) {
+                return NOT_FOUND;
+            }
+            from++;
+            to = bracket;
+        } else if (!IpAddressParser.isIpLiteral(header, from, to)) {
+            // IPv4 with a port
+            int colon = header.indexOf(':', from);
+            if (colon < 0 || colon >= to || IpAddressParser.parseIpv4(header, from, colon) == IpAddressParser.INVALID) {
+                return NOT_FOUND;
+            }
+            to = colon;
+        }
+        return IpAddressParser.isIpLiteral(header, from, to) ? (long) from << 32 | to : NOT_FOUND;
+    }
+
+    private static int lastIndexOfUnquoted(String s, char c, int from) {
+        boolean quoted = false;
+        for (int i = from; i >= 0; i--) {
+            char current = s.charAt(i);
+            if (current == '"') {
+                quoted = !quoted;
+            } else if (current == c && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfUnquoted(String s, char c, int from, int to) {
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            char current = s.charAt(i);
+            if (current == '"') {
+                quoted = !quoted;
+            } else if (current == c && !quoted) {
+                return i;
+            }
+        }
+        return to;
+    }
+}
@@ -0,0 +1,46 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.keycloak.cluster.ClusterProvider;
+
+import java.util.function.Consumer;
+
+/**
+ * {@link InvalidationBus} over the Keycloak {@link ClusterProvider}, which reaches every
+ * node of the cluster (and of the other data centers).
+ * <p>
+ * The default cluster provider keeps no state in the session, so the instance obtained
+ * when registering the listener is reused to publish.
+ * <p>
+ * {@link ClusterProvider} is deprecated in Keycloak 22 as a private SPI, without a public
+ * replacement: its uses are kept to this class and {@code IpWhitelistExecutorFactory#connectCluster}.
+ */
+public class ClusterInvalidationBus implements InvalidationBus {
+
+    /**
+     * Key of the invalidation events in the cluster.
+     */
+    public static final String TASK_KEY = "df-ip-whitelist-invalidation";
+
+    @SuppressWarnings("deprecation") // No public replacement, see the class comment
+    private final ClusterProvider cluster;
+
+    @SuppressWarnings("deprecation")
+    public ClusterInvalidationBus(ClusterProvider cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void publish(ClientInvalidationEvent event) {
+        cluster.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+
+    @Override
+    public void subscribe(Consumer<ClientInvalidationEvent> listener) {
+        cluster.registerListener(TASK_KEY, event -> {
+            if (event instanceof ClientInvalidationEvent) {
+                listener.accept((ClientInvalidationEvent) event);
+            }
+        });
+    }
+}
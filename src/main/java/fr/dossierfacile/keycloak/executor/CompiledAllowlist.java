@@ -0,0 +1,270 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Immutable, precompiled form of a client's {@code allowed.ip.ranges} attribute.
+ * <p>
+ * The attribute is split, validated, normalized by {@link CidrNormalizer} and converted
+ * to a {@link PrefixMatcher} once, so that checking a client IP only costs a parse of
+ * the IP and a few integer comparisons instead of a regex and two address parses per
+ * range. Up to {@link #LINEAR_THRESHOLD} canonical ranges are scanned linearly, up to
+ * {@link #TRIE_THRESHOLD} they are searched in an {@link IntervalTableMatcher}, and
+ * longer lists use a {@link PrefixTrieMatcher} whose cost does not depend on the
+ * number of ranges. The matchers live in a {@link RangeSetMatcher}, which can be shared
+ * with every allowlist of the same set of ranges through an {@link AllowlistInternPool}.
+ */
+public final class CompiledAllowlist {
+
+    /**
+     * Number of canonical ranges up to which a linear scan is used.
+     */
+    public static final int LINEAR_THRESHOLD = 8;
+
+    /**
+     * Number of canonical ranges above which a trie is used instead of an interval table.
+     */
+    public static final int TRIE_THRESHOLD = 32;
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledAllowlist.class);
+
+    private static final PrefixMatcher EMPTY = new LinearPrefixMatcher(new long[0], new long[0], new int[0], 0);
+
+    private static final IpListRegistry.ListReference[] NO_LISTS = new IpListRegistry.ListReference[0];
+
+    private static final CompiledAllowlist NO_RANGES =
+            new CompiledAllowlist(new RangeSetMatcher(EMPTY, EMPTY, NO_LISTS), 0, List.of());
+
+    private final RangeSetMatcher matcher;
+    private final int size;
+    private final List<String> redundantRanges;
+
+    private CompiledAllowlist(RangeSetMatcher matcher, int size, List<String> redundantRanges) {
+        this.matcher = matcher;
+        this.size = size;
+        this.redundantRanges = redundantRanges;
+    }
+
+    /**
+     * Compile a comma separated list of IPv4 and IPv6 CIDR ranges.
+     * Invalid entries are logged and skipped, as {@link IpValidationService#isIpInRanges} does.
+     *
+     * @param allowedRanges The raw attribute value (e.g. "192.168.1.0/24,10.0.0.0/8,2001:db8::/32")
+     * @return the compiled allowlist, empty if no valid range was found
+     */
+    public static CompiledAllowlist compile(String allowedRanges) {
+        return compile(allowedRanges, null);
+    }
+
+    /**
+     * Compile a comma separated list of IPv4 and IPv6 CIDR ranges and {@code @file:name} list references.
+     *
+     * @param allowedRanges The raw attribute value (e.g. "192.168.1.0/24,@file:partner-egress")
+     * @param ipLists       The external IP lists, null if list references are not enabled
+     * @return the compiled allowlist, empty if no valid range was found
+     */
+    public static CompiledAllowlist compile(String allowedRanges, IpListRegistry ipLists) {
+        return compile(allowedRanges, ipLists, null);
+    }
+
+    /**
+     * Compile a comma separated list of IPv4 and IPv6 CIDR ranges and {@code @file:name} list references,
+     * sharing the matcher with the other allowlists of the same set of ranges.
+     *
+     * @param allowedRanges The raw attribute value (e.g. "192.168.1.0/24,@file:partner-egress")
+     * @param ipLists       The external IP lists, null if list references are not enabled
+     * @param internPool    The pool of shared matchers, null to build a new matcher
+     * @return the compiled allowlist, empty if no valid range was found
+     */
+    public static CompiledAllowlist compile(String allowedRanges, IpListRegistry ipLists, AllowlistInternPool internPool) {
+        if (allowedRanges == null || allowedRanges.trim().isEmpty()) {
+            return NO_RANGES;
+        }
+
+        String[] ranges = allowedRanges.split(",");
+        Family ipv4 = new Family(ranges.length);
+        Family ipv6 = new Family(ranges.length);
+        List<IpListRegistry.ListReference> lists = new ArrayList<>();
+        long[] cidr = new long[3];
+        int count = 0;
+
+        for (String range : ranges) {
+            String cleanRange = range.trim();
+            if (cleanRange.isEmpty()) {
+                continue;
+            }
+
+            if (cleanRange.startsWith(IpListRegistry.REFERENCE_PREFIX)) {
+                String name = cleanRange.substring(IpListRegistry.REFERENCE_PREFIX.length());
+                if (ipLists == null) {
+                    logger.warn("IP list files are not enabled, ignoring: {}", cleanRange);
+                } else if (!IpListRegistry.isValidName(name)) {
+                    logger.warn("Invalid IP list name: {}", cleanRange);
+                } else {
+                    lists.add(ipLists.get(name));
+                    count++;
+                }
+                continue;
+            }
+
+            int family = IpAddressParser.parseCidr(cleanRange, cidr);
+            if (family == IpAddressParser.INVALID_FAMILY) {
+                logger.warn("Invalid CIDR notation: {}", cleanRange);
+                continue;
+            }
+
+            (family == IpAddressParser.IPV4 ? ipv4 : ipv6).add(cidr, cleanRange);
+            count++;
+        }
+
+        CidrNormalizer.Result normalizedIpv4 = ipv4.normalize();
+        CidrNormalizer.Result normalizedIpv6 = ipv6.normalize();
+
+        List<String> redundantRanges = new ArrayList<>();
+        ipv4.collectRedundant(normalizedIpv4, redundantRanges);
+        ipv6.collectRedundant(normalizedIpv6, redundantRanges);
+        if (!redundantRanges.isEmpty()) {
+            logger.info("Redundant CIDR ranges, covered by another range: {}", redundantRanges);
+        }
+
+        IpListRegistry.ListReference[] listArray = lists.isEmpty() ? NO_LISTS : lists.toArray(NO_LISTS);
+        Supplier<RangeSetMatcher> builder = () -> new RangeSetMatcher(buildMatcher(normalizedIpv4, true),
+                buildMatcher(normalizedIpv6, false), listArray);
+        RangeSetMatcher matcher = internPool == null
+                ? builder.get()
+                : internPool.intern(AllowlistInternPool.key(normalizedIpv4, normalizedIpv6, listArray), builder);
+
+        return new CompiledAllowlist(matcher, count, List.copyOf(redundantRanges));
+    }
+
+    private static PrefixMatcher buildMatcher(CidrNormalizer.Result normalized, boolean ipv4) {
+        int count = normalized.prefixCount();
+        if (count == 0) {
+            return EMPTY;
+        }
+        if (count <= LINEAR_THRESHOLD) {
+            return new LinearPrefixMatcher(normalized.prefixHi(), normalized.prefixLo(), normalized.prefixLengths(), count);
+        }
+        if (count > TRIE_THRESHOLD) {
+            return PrefixTrieMatcher.build(normalized.prefixHi(), normalized.prefixLo(), normalized.prefixLengths(), count);
+        }
+        return IntervalTableMatcher.build(normalized, ipv4);
+    }
+
+    /**
+     * Check if the given IP address is within any of the compiled ranges.
+     * IPv4-mapped IPv6 addresses are checked against the IPv4 ranges.
+     *
+     * @param clientIp The IP address to validate
+     * @return true if the IP is within any of the ranges, false otherwise
+     */
+    public boolean matches(String clientIp) {
+        if (clientIp == null || size == 0) {
+            return false;
+        }
+        return matches(clientIp, 0, clientIp.length());
+    }
+
+    /**
+     * Check if the IP address in {@code s[from, to)} is within any of the compiled ranges.
+     *
+     * @param s    The text holding the IP address
+     * @param from Start index, inclusive
+     * @param to   End index, exclusive
+     * @return true if the IP is within any of the ranges, false otherwise
+     */
+    public boolean matches(CharSequence s, int from, int to) {
+        if (size == 0) {
+            return false;
+        }
+
+        from = IpAddressParser.trimStart(s, from, to);
+        to = IpAddressParser.trimEnd(s, from, to);
+        long[] address = new long[2];
+        int family = IpAddressParser.parseAddress(s, from, to, address);
+        return contains(family, address[0], address[1]);
+    }
+
+    /**
+     * Check if an already parsed IP address is within any of the compiled ranges.
+     *
+     * @param family The family returned by {@link IpAddressParser#parseAddress}
+     * @param hi     Upper 64 bits of the address
+     * @param lo     Lower 64 bits of the address
+     * @return true if the IP is within any of the ranges, false otherwise
+     */
+    public boolean contains(int family, long hi, long lo) {
+        return matcher.contains(family, hi, lo);
+    }
+
+    /**
+     * Find the canonical prefix containing an already parsed IP address, see {@link RangeSetMatcher#findMatch}.
+     *
+     * @return the matched prefix, null if the IP is not within the ranges
+     */
+    public RangeSetMatcher.Match findMatch(int family, long hi, long lo) {
+        return matcher.findMatch(family, hi, lo);
+    }
+
+    /**
+     * @return the matcher of this allowlist, shared with the allowlists of the same set of ranges when interned
+     */
+    public RangeSetMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * @return the number of valid ranges and list references in this allowlist, including redundant ranges
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the ranges that are covered by another range of the list, in input order
+     */
+    public List<String> getRedundantRanges() {
+        return redundantRanges;
+    }
+
+    /**
+     * Ranges of one address family, collected before normalization.
+     */
+    private static final class Family {
+        private final String[] entries;
+        private final long[] his;
+        private final long[] los;
+        private final int[] lengths;
+        private int count;
+
+        Family(int capacity) {
+            entries = new String[capacity];
+            his = new long[capacity];
+            los = new long[capacity];
+            lengths = new int[capacity];
+        }
+
+        void add(long[] cidr, String entry) {
+            entries[count] = entry;
+            his[count] = cidr[0];
+            los[count] = cidr[1];
+            lengths[count] = (int) cidr[2];
+            count++;
+        }
+
+        CidrNormalizer.Result normalize() {
+            return CidrNormalizer.normalize(his, los, lengths, count);
+        }
+
+        void collectRedundant(CidrNormalizer.Result normalized, List<String> redundantRanges) {
+            for (int index : normalized.redundant()) {
+                redundantRanges.add(entries[index]);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of access decisions, keyed by client and packed client IP.
+ * <p>
+ * Machine-to-machine clients call the token endpoint from a few egress IPs, so most
+ * decisions are repeated. The cache is split into stripes, each an LRU map guarded by
+ * its own lock, and entries expire after a fixed time to live. Each entry remembers
+ * the {@code allowed.ip.ranges} value it was decided against: a lookup with another
+ * value is a miss, so decisions are dropped as soon as the attribute changes. It also
+ * remembers the {@link IpListRegistry#getVersion() version} of the IP list files read
+ * before the decision, so reloading a list drops the decisions taken with the old one.
+ */
+public class DecisionCache {
+
+    public static final int DEFAULT_TTL_SECONDS = 60;
+
+    private final Stripe[] stripes;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+
+    /**
+     * @param capacity   Maximum number of decisions, spread over the stripes
+     * @param ttlSeconds Time to live of a decision
+     */
+    public DecisionCache(int capacity, int ttlSeconds) {
+        this(capacity, ttlSeconds, System::nanoTime);
+    }
+
+    /**
+     * @param capacity   Maximum number of decisions, spread over the stripes
+     * @param ttlSeconds Time to live of a decision
+     * @param nanoClock  Source of {@link System#nanoTime()}-like timestamps
+     */
+    public DecisionCache(int capacity, int ttlSeconds, LongSupplier nanoClock) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Cache TTL must be positive: " + ttlSeconds);
+        }
+        // Power of two stripes, at most one per 64 entries so small caches stay accurate
+        int stripeCount = Math.max(1, Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 4,
+                Integer.highestOneBit(Math.max(1, capacity / 64))));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe((capacity + stripeCount - 1) / stripeCount);
+        }
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Return the cached decision for a client and address.
+     *
+     * @param clientId      The client internal id
+     * @param family        {@link IpAddressParser#IPV4} or {@link IpAddressParser#IPV6}
+     * @param hi            Upper 64 bits of the address, as written by {@link IpAddressParser#parseAddress}
+     * @param lo            Lower 64 bits of the address
+     * @param allowedRanges The current value of the client's allowed ranges attribute
+     * @param listVersion   The current version of the IP list files
+     * @return the cached decision, or null if there is none, it expired, or the ranges or lists changed
+     */
+    public Boolean get(String clientId, int family, long hi, long lo, String allowedRanges, long listVersion) {
+        Key key = new Key(clientId, family, hi, lo);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (nanoClock.getAsLong() - entry.createdAt >= ttlNanos || entry.listVersion != listVersion
+                    || !sameRanges(entry.allowedRanges, allowedRanges)) {
+                stripe.entries.remove(key);
+                return null;
+            }
+            return entry.allowed;
+        }
+    }
+
+    /**
+     * Cache a decision.
+     *
+     * @param listVersion The version of the IP list files, read before taking the decision
+     */
+    public void put(String clientId, int family, long hi, long lo, String allowedRanges, long listVersion, boolean allowed) {
+        Key key = new Key(clientId, family, hi, lo);
+        Stripe stripe = stripeFor(key);
+        Entry entry = new Entry(allowedRanges, listVersion, allowed, nanoClock.getAsLong());
+        synchronized (stripe) {
+            stripe.put(key, entry);
+        }
+    }
+
+    /**
+     * Drop every cached decision of a client.
+     *
+     * @param clientId The client internal id
+     */
+    public void invalidate(String clientId) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.keySet().removeIf(key -> key.clientId.equals(clientId));
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeFor(Key key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static boolean sameRanges(String cached, String current) {
+        // Attribute values usually come from the same cached model, so the identity check is the common case
+        return cached == current || cached.equals(current);
+    }
+
+    private record Key(String clientId, int family, long hi, long lo) {
+    }
+
+    private record Entry(String allowedRanges, long listVersion, boolean allowed, long createdAt) {
+    }
+
+    /**
+     * LRU map of one stripe, evicting its least recently used entry when full.
+     */
+    private static final class Stripe {
+        private final LinkedHashMap<Key, Entry> entries;
+        private final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        void put(Key key, Entry entry) {
+            if (entries.put(key, entry) == null && entries.size() > capacity) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+    }
+}
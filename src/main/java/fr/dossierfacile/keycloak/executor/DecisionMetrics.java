@@ -0,0 +1,173 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters of the decisions taken by {@link IpWhitelistExecutor}.
+ * <p>
+ * Decisions are counted per realm and client with {@link LongAdder}s, which stay cheap
+ * under contention, and the duration of each check is recorded in a fixed-bucket
+ * histogram per realm. Metrics are rendered in the Prometheus text format.
+ */
+public class DecisionMetrics {
+
+    /**
+     * Outcome of a check.
+     */
+    public enum Decision {
+        ALLOW("allow"),
+        DENY("deny"),
+        MISSING_IP("missing_ip"),
+        MISSING_CONFIG("missing_config"),
+        THROTTLED("throttled");
+
+        private final String label;
+
+        Decision(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final String DECISIONS = "df_ip_whitelist_decisions_total";
+    private static final String DURATION = "df_ip_whitelist_check_duration_seconds";
+
+    // Upper bounds of the histogram buckets, in nanoseconds
+    private static final long[] BUCKETS = {250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 1_000_000};
+
+    private static final Decision[] DECISION_VALUES = Decision.values();
+
+    private final Map<String, RealmMetrics> realms = new ConcurrentHashMap<>();
+
+    /**
+     * Record a decision.
+     *
+     * @param realm         The realm name
+     * @param clientId      The client id
+     * @param decision      The decision
+     * @param durationNanos The duration of the check, in nanoseconds
+     */
+    public void record(String realm, String clientId, Decision decision, long durationNanos) {
+        RealmMetrics realmMetrics = realms.computeIfAbsent(realm, name -> new RealmMetrics());
+        realmMetrics.clients.computeIfAbsent(clientId, id -> newCounters())[decision.ordinal()].increment();
+        realmMetrics.observe(durationNanos);
+    }
+
+    /**
+     * @return the number of decisions recorded for a client
+     */
+    public long count(String realm, String clientId, Decision decision) {
+        RealmMetrics realmMetrics = realms.get(realm);
+        LongAdder[] counters = realmMetrics == null ? null : realmMetrics.clients.get(clientId);
+        return counters == null ? 0 : counters[decision.ordinal()].sum();
+    }
+
+    /**
+     * Drop the counters of a client, so that a removed client is no longer exported.
+     *
+     * @param realm    The realm name
+     * @param clientId The client id
+     */
+    public void removeClient(String realm, String clientId) {
+        RealmMetrics realmMetrics = realms.get(realm);
+        if (realmMetrics != null) {
+            realmMetrics.clients.remove(clientId);
+        }
+    }
+
+    /**
+     * Drop the counters of a realm.
+     */
+    public void removeRealm(String realm) {
+        realms.remove(realm);
+    }
+
+    /**
+     * Write the metrics of a realm in the Prometheus text format (version 0.0.4).
+     *
+     * @param realm The realm name
+     * @param out   The buffer to write to
+     */
+    public void writePrometheus(String realm, StringBuilder out) {
+        RealmMetrics realmMetrics = realms.get(realm);
+
+        out.append("# HELP ").append(DECISIONS).append(" Decisions of the IP whitelist executor.\n");
+        out.append("# TYPE ").append(DECISIONS).append(" counter\n");
+        if (realmMetrics != null) {
+            realmMetrics.clients.forEach((clientId, counters) -> {
+                for (Decision decision : DECISION_VALUES) {
+                    out.append(DECISIONS).append("{realm=\"");
+                    escape(realm, out);
+                    out.append("\",client_id=\"");
+                    escape(clientId, out);
+                    out.append("\",decision=\"").append(decision.getLabel()).append("\"} ")
+                            .append(counters[decision.ordinal()].sum()).append('\n');
+                }
+            });
+        }
+
+        out.append("# HELP ").append(DURATION).append(" Duration of the IP whitelist checks.\n");
+        out.append("# TYPE ").append(DURATION).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i <= BUCKETS.length; i++) {
+            cumulative += realmMetrics == null ? 0 : realmMetrics.buckets[i].sum();
+            out.append(DURATION).append("_bucket{realm=\"");
+            escape(realm, out);
+            out.append("\",le=\"").append(i < BUCKETS.length ? Double.toString(BUCKETS[i] / 1e9) : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        out.append(DURATION).append("_sum{realm=\"");
+        escape(realm, out);
+        out.append("\"} ").append(realmMetrics == null ? 0.0 : realmMetrics.sumNanos.sum() / 1e9).append('\n');
+        out.append(DURATION).append("_count{realm=\"");
+        escape(realm, out);
+        out.append("\"} ").append(cumulative).append('\n');
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[DECISION_VALUES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static final class RealmMetrics {
+        private final Map<String, LongAdder[]> clients = new ConcurrentHashMap<>();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        RealmMetrics() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long durationNanos) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && durationNanos > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(durationNanos);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free, fixed-memory token buckets of denied callers, by client and source IP.
+ * <p>
+ * Each denial takes a token from the bucket of the caller's address for the client it
+ * called. Once the bucket is empty, the caller is throttled: its denied requests are
+ * rejected with 429 and not logged, until tokens are refilled. Buckets are per client, so
+ * denials of an address on one client never throttle it on another client where it is
+ * allowed. Buckets live in a count-min sketch: each (client, address) pair
+ * is hashed into one slot of each row, and the least used of its slots decides. Slots
+ * only store the number of tokens taken, decayed over time: colliding addresses can only
+ * add to a caller's count, and taking the least used slot keeps such false positives rare. Each slot is
+ * a single {@code long} updated by compare-and-set: the last update time in
+ * milliseconds in the upper 40 bits, the tokens taken in 1/256 in the lower 24 bits.
+ * <p>
+ * Throttled requests are not logged one by one: they are counted and summarized in
+ * the logs at most once per {@link #SUMMARY_INTERVAL_SECONDS}.
+ */
+public class DeniedCallerThrottle {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeniedCallerThrottle.class);
+
+    public static final int DEFAULT_REFILL_PER_MINUTE = 6;
+    public static final int SUMMARY_INTERVAL_SECONDS = 60;
+
+    private static final int ROWS = 2;
+    private static final int DEFAULT_SLOTS = 1 << 15;
+    private static final int UNIT = 256;
+    private static final long LEVEL_MASK = (1L << 24) - 1;
+
+    /**
+     * Largest burst that fits in a slot.
+     */
+    public static final int MAX_BURST = (int) (LEVEL_MASK / UNIT - 1);
+
+    private final AtomicLongArray slots;
+    private final int slotMask;
+    private final long[] seeds = new long[ROWS];
+    private final long threshold;
+    private final double decayPerMilli;
+    private final LongSupplier clockMillis;
+    private final long epoch;
+
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder newlyThrottled = new LongAdder();
+    private final AtomicLong lastSummary;
+
+    /**
+     * @param burst           Number of denials of a caller before it is throttled
+     * @param refillPerMinute Number of denials forgiven per minute
+     */
+    public DeniedCallerThrottle(int burst, int refillPerMinute) {
+        this(burst, refillPerMinute, DEFAULT_SLOTS, System::currentTimeMillis);
+    }
+
+    /**
+     * @param burst           Number of denials of a caller before it is throttled
+     * @param refillPerMinute Number of denials forgiven per minute
+     * @param slotsPerRow     Number of slots in each row of the sketch, rounded up to a power of two
+     * @param clockMillis     Source of {@link System#currentTimeMillis()}-like timestamps
+     */
+    public DeniedCallerThrottle(int burst, int refillPerMinute, int slotsPerRow, LongSupplier clockMillis) {
+        if (burst <= 0 || burst > MAX_BURST) {
+            throw new IllegalArgumentException("Burst must be between 1 and " + MAX_BURST + ": " + burst);
+        }
+        if (refillPerMinute < 0) {
+            throw new IllegalArgumentException("Refill rate must not be negative: " + refillPerMinute);
+        }
+        int rowSize = Integer.highestOneBit(Math.max(2, slotsPerRow - 1)) << 1;
+        this.slots = new AtomicLongArray(ROWS * rowSize);
+        this.slotMask = rowSize - 1;
+        for (int i = 0; i < ROWS; i++) {
+            // Random seeds, so that callers cannot pick colliding addresses
+            seeds[i] = ThreadLocalRandom.current().nextLong();
+        }
+        this.threshold = (long) burst * UNIT;
+        this.decayPerMilli = refillPerMinute * (double) UNIT / TimeUnit.MINUTES.toMillis(1);
+        this.clockMillis = clockMillis;
+        this.epoch = clockMillis.getAsLong();
+        this.lastSummary = new AtomicLong(epoch);
+    }
+
+    /**
+     * Check if a caller has no token left for a client. This does not take a token.
+     *
+     * @param clientId The client internal id
+     * @param family   The family returned by {@link IpAddressParser#parseAddress}
+     * @param hi       Upper 64 bits of the address
+     * @param lo       Lower 64 bits of the address
+     * @return true if the caller must be throttled
+     */
+    public boolean isThrottled(String clientId, int family, long hi, long lo) {
+        long now = now();
+        long level = Long.MAX_VALUE;
+        int client = clientId.hashCode();
+        for (int row = 0; row < ROWS; row++) {
+            level = Math.min(level, decayedLevel(slots.get(index(row, client, family, hi, lo)), now));
+        }
+        // Less than one token left
+        return level > threshold - UNIT;
+    }
+
+    /**
+     * Take a token from the bucket of a caller denied by a client.
+     *
+     * @return true if this denial emptied the bucket, so that the caller is now throttled
+     */
+    public boolean recordDenial(String clientId, int family, long hi, long lo) {
+        long now = now();
+        long level = Long.MAX_VALUE;
+        int client = clientId.hashCode();
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(row, client, family, hi, lo);
+            while (true) {
+                long current = slots.get(index);
+                long decayed = decayedLevel(current, now);
+                // Keep the previous time while less than a unit decayed, so that frequent updates do not stop the decay
+                long time = decayed == (current & LEVEL_MASK) && decayed != 0 ? current >>> 24 : now;
+                long updated = Math.min(LEVEL_MASK, decayed + UNIT);
+                if (slots.compareAndSet(index, current, time << 24 | updated)) {
+                    level = Math.min(level, updated);
+                    break;
+                }
+            }
+        }
+        if (level > threshold - UNIT && level <= threshold) {
+            newlyThrottled.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count a throttled request, and log a summary if the last one is old enough.
+     */
+    public void recordThrottled() {
+        throttled.increment();
+        long now = now();
+        long last = lastSummary.get();
+        if (now - last >= TimeUnit.SECONDS.toMillis(SUMMARY_INTERVAL_SECONDS) && lastSummary.compareAndSet(last, now)) {
+            logger.warn("Throttled {} requests of denied callers in the last {} s, {} callers newly throttled",
+                    throttled.sumThenReset(), (now - last) / 1000, newlyThrottled.sumThenReset());
+        }
+    }
+
+    private long now() {
+        // Relative to the creation of the throttle, so that it fits in 40 bits
+        return clockMillis.getAsLong() - epoch;
+    }
+
+    private long decayedLevel(long slot, long now) {
+        long level = slot & LEVEL_MASK;
+        if (level == 0) {
+            return 0;
+        }
+        long elapsed = now - (slot >>> 24);
+        return elapsed <= 0 ? level : Math.max(0, level - (long) (elapsed * decayPerMilli));
+    }
+
+    private int index(int row, int client, int family, long hi, long lo) {
+        long hash = mix(hi ^ seeds[row]) * 31 + mix(lo + ((long) client << 8 | family));
+        return row * (slotMask + 1) + (int) (mix(hash) & slotMask);
+    }
+
+    private static long mix(long z) {
+        // Finalizer of SplitMix64
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,138 @@
+package fr.dossierfacile.keycloak.executor;
+
+/**
+ * Prefix matcher searching a sorted table of disjoint address intervals.
+ * <p>
+ * The table is built from a {@link CidrNormalizer.Result}, so overlapping and adjacent
+ * prefixes are merged first. IPv4 intervals are stored as one {@code long} per bound,
+ * IPv6 intervals as two packed {@code long}s per bound. A lookup is a binary search
+ * for the last interval starting at or before the address.
+ */
+public final class IntervalTableMatcher implements PrefixMatcher {
+
+    private final boolean ipv4;
+    private final long[] starts;
+    private final long[] ends;
+    private final int intervals;
+    private final int size;
+
+    private IntervalTableMatcher(boolean ipv4, long[] starts, long[] ends, int intervals, int size) {
+        this.ipv4 = ipv4;
+        this.starts = starts;
+        this.ends = ends;
+        this.intervals = intervals;
+        this.size = size;
+    }
+
+    /**
+     * Build a table from normalized prefixes.
+     *
+     * @param normalized The normalized prefixes
+     * @param ipv4       true if the prefixes are IPv4 keys, so that a single long per bound is enough
+     * @return the table
+     */
+    public static IntervalTableMatcher build(CidrNormalizer.Result normalized, boolean ipv4) {
+        int count = normalized.intervalCount();
+        long[] intervals = normalized.intervals();
+
+        if (ipv4) {
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = intervals[4 * i] >>> 32;
+                ends[i] = intervals[4 * i + 2] >>> 32;
+            }
+            return new IntervalTableMatcher(true, starts, ends, count, normalized.prefixCount());
+        }
+
+        long[] starts = new long[2 * count];
+        long[] ends = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            starts[2 * i] = intervals[4 * i];
+            starts[2 * i + 1] = intervals[4 * i + 1];
+            ends[2 * i] = intervals[4 * i + 2];
+            ends[2 * i + 1] = intervals[4 * i + 3];
+        }
+        return new IntervalTableMatcher(false, starts, ends, count, normalized.prefixCount());
+    }
+
+    @Override
+    public boolean contains(long hi, long lo) {
+        if (ipv4) {
+            // IPv4 bounds fit in 32 bits, so signed comparisons are fine
+            long address = hi >>> 32;
+            int low = 0;
+            int high = intervals - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= address) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high >= 0 && address <= ends[high];
+        }
+
+        int low = 0;
+        int high = intervals - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (CidrNormalizer.compareUnsigned(starts[2 * mid], starts[2 * mid + 1], hi, lo) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && CidrNormalizer.compareUnsigned(hi, lo, ends[2 * high], ends[2 * high + 1]) <= 0;
+    }
+
+    @Override
+    public int matchLength(long hi, long lo) {
+        if (ipv4) {
+            long address = hi >>> 32;
+            int low = 0;
+            int high = intervals - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= address) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high < 0 ? -1
+                    : PrefixMatcher.largestBlock(hi, lo, starts[high] << 32, 0, ends[high] << 32 | 0xFFFFFFFFL, -1L);
+        }
+
+        int low = 0;
+        int high = intervals - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (CidrNormalizer.compareUnsigned(starts[2 * mid], starts[2 * mid + 1], hi, lo) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high < 0 ? -1 : PrefixMatcher.largestBlock(hi, lo, starts[2 * high], starts[2 * high + 1],
+                ends[2 * high], ends[2 * high + 1]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long retainedBytes() {
+        return 32 + PrefixMatcher.arrayBytes(starts.length, 8) + PrefixMatcher.arrayBytes(ends.length, 8);
+    }
+
+    /**
+     * @return the number of intervals in the table, after merging
+     */
+    public int intervalCount() {
+        return intervals;
+    }
+}
@@ -0,0 +1,22 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.util.function.Consumer;
+
+/**
+ * Channel carrying {@link ClientInvalidationEvent}s between the Keycloak nodes.
+ * <p>
+ * Delivery is best effort and unordered: receivers rely on the event versions to
+ * ignore duplicate and out-of-date events. A node never receives its own events.
+ */
+public interface InvalidationBus {
+
+    /**
+     * Send an event to the other nodes.
+     */
+    void publish(ClientInvalidationEvent event);
+
+    /**
+     * Register the listener of the events sent by the other nodes.
+     */
+    void subscribe(Consumer<ClientInvalidationEvent> listener);
+}
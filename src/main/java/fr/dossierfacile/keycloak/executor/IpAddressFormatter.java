@@ -0,0 +1,83 @@
+package fr.dossierfacile.keycloak.executor;
+
+/**
+ * Formats addresses and prefixes parsed by {@link IpAddressParser} back to text.
+ * <p>
+ * IPv6 addresses use the canonical form of RFC 5952: lowercase hexadecimal without
+ * leading zeros, and the longest run of two or more zero groups replaced by {@code ::}.
+ */
+public final class IpAddressFormatter {
+
+    private IpAddressFormatter() {
+    }
+
+    /**
+     * Append an address.
+     *
+     * @param out    The buffer to append to
+     * @param family {@link IpAddressParser#IPV4} or {@link IpAddressParser#IPV6}
+     * @param hi     Upper 64 bits of the address
+     * @param lo     Lower 64 bits of the address
+     * @return the buffer
+     */
+    public static StringBuilder appendAddress(StringBuilder out, int family, long hi, long lo) {
+        if (family == IpAddressParser.IPV4) {
+            long ipv4 = hi >>> 32;
+            return out.append(ipv4 >>> 24).append('.').append((ipv4 >>> 16) & 0xFF).append('.')
+                    .append((ipv4 >>> 8) & 0xFF).append('.').append(ipv4 & 0xFF);
+        }
+
+        // Longest run of zero groups, the first one on ties
+        int bestStart = -1;
+        int bestLength = 1;
+        int runStart = -1;
+        for (int i = 0; i <= 8; i++) {
+            if (i < 8 && group(hi, lo, i) == 0) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            } else if (runStart >= 0) {
+                if (i - runStart > bestLength) {
+                    bestStart = runStart;
+                    bestLength = i - runStart;
+                }
+                runStart = -1;
+            }
+        }
+
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                out.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (i > 0 && i != bestStart + bestLength) {
+                out.append(':');
+            }
+            out.append(Integer.toHexString(group(hi, lo, i)));
+        }
+        return out;
+    }
+
+    /**
+     * Append a prefix in CIDR notation.
+     *
+     * @param length The prefix length, up to 32 for IPv4 and 128 for IPv6
+     * @return the buffer
+     */
+    public static StringBuilder appendPrefix(StringBuilder out, int family, long hi, long lo, int length) {
+        return appendAddress(out, family, hi, lo).append('/').append(length);
+    }
+
+    /**
+     * @return the address as text
+     */
+    public static String formatAddress(int family, long hi, long lo) {
+        return appendAddress(new StringBuilder(39), family, hi, lo).toString();
+    }
+
+    private static int group(long hi, long lo, int index) {
+        long half = index < 4 ? hi : lo;
+        return (int) (half >>> (48 - 16 * (index & 3))) & 0xFFFF;
+    }
+}
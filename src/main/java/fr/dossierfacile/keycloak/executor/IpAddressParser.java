@@ -0,0 +1,435 @@
+package fr.dossierfacile.keycloak.executor;
+
+/**
+ * Parser for IPv4 and IPv6 address literals.
+ * <p>
+ * Unlike {@link java.net.InetAddress#getByName(String)}, this parser never
+ * resolves host names and does not allocate: it reads a range of a
+ * {@link CharSequence} and returns the address as primitives. IPv4 addresses
+ * are returned as an unsigned 32-bit value in a {@code long}, IPv6 addresses
+ * as two {@code long}s (high and low 64 bits) written to a caller supplied array.
+ * <p>
+ * Only strict literals are accepted: dotted IPv4 with four decimal parts and no
+ * leading zeros, and IPv6 with optional {@code ::} compression and an optional
+ * trailing embedded IPv4 part. Zone ids ({@code fe80::1%eth0}), brackets and
+ * surrounding text are rejected.
+ */
+public final class IpAddressParser {
+
+    /**
+     * Value returned by {@link #parseIpv4} for an invalid literal.
+     */
+    public static final long INVALID = -1L;
+
+    /**
+     * Family returned by {@link #parseAddress} and {@link #parseCidr} for an invalid literal.
+     */
+    public static final int INVALID_FAMILY = 0;
+
+    /**
+     * Family of IPv4 addresses, and of IPv4-mapped IPv6 addresses once normalized.
+     */
+    public static final int IPV4 = 4;
+
+    /**
+     * Family of IPv6 addresses.
+     */
+    public static final int IPV6 = 6;
+
+    private IpAddressParser() {
+    }
+
+    /**
+     * Parse an IPv4 literal, ignoring surrounding whitespace.
+     *
+     * @param s The text to parse
+     * @return the address as an unsigned 32-bit value, or {@link #INVALID}
+     */
+    public static long parseIpv4(CharSequence s) {
+        if (s == null) {
+            return INVALID;
+        }
+        int from = trimStart(s, 0, s.length());
+        return parseIpv4(s, from, trimEnd(s, from, s.length()));
+    }
+
+    /**
+     * Parse an IPv4 literal in {@code s[from, to)}.
+     *
+     * @param s    The text to parse
+     * @param from Start index, inclusive
+     * @param to   End index, exclusive
+     * @return the address as an unsigned 32-bit value, or {@link #INVALID}
+     */
+    public static long parseIpv4(CharSequence s, int from, int to) {
+        long address = 0;
+        int parts = 0;
+        int i = from;
+
+        while (true) {
+            int start = i;
+            int part = 0;
+            while (i < to && i - start < 3) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                part = part * 10 + digit;
+                i++;
+            }
+
+            int digits = i - start;
+            // Reject empty parts, values above 255 and leading zeros (e.g. "01", which some parsers read as octal)
+            if (digits == 0 || part > 255 || (digits > 1 && s.charAt(start) == '0')) {
+                return INVALID;
+            }
+
+            address = address << 8 | part;
+            parts++;
+
+            if (i == to) {
+                return parts == 4 ? address : INVALID;
+            }
+            if (parts == 4 || s.charAt(i) != '.') {
+                return INVALID;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Parse an IPv6 literal, ignoring surrounding whitespace.
+     *
+     * @param s   The text to parse
+     * @param out Array receiving the high 64 bits at index 0 and the low 64 bits at index 1
+     * @return true if {@code s} is a valid IPv6 literal
+     */
+    public static boolean parseIpv6(CharSequence s, long[] out) {
+        if (s == null) {
+            return false;
+        }
+        int from = trimStart(s, 0, s.length());
+        return parseIpv6(s, from, trimEnd(s, from, s.length()), out);
+    }
+
+    /**
+     * Parse an IPv6 literal in {@code s[from, to)}.
+     *
+     * @param s    The text to parse
+     * @param from Start index, inclusive
+     * @param to   End index, exclusive
+     * @param out  Array receiving the high 64 bits at index 0 and the low 64 bits at index 1,
+     *             or null to only validate the literal
+     * @return true if the range is a valid IPv6 literal, in which case {@code out} has been written
+     */
+    public static boolean parseIpv6(CharSequence s, int from, int to, long[] out) {
+        if (to - from < 2) {
+            return false;
+        }
+
+        // Groups before "::" go to head, groups after it go to tail
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int groups = 0;
+        int gapAt = -1;
+        int i = from;
+
+        if (s.charAt(i) == ':') {
+            if (s.charAt(i + 1) != ':') {
+                return false;
+            }
+            gapAt = 0;
+            i += 2;
+        }
+
+        while (i < to) {
+            int start = i;
+            int group = 0;
+            while (i < to && i - start < 4) {
+                int digit = hexDigit(s.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                group = group << 4 | digit;
+                i++;
+            }
+
+            if (i < to && s.charAt(i) == '.') {
+                // Embedded IPv4, only allowed as the last two groups
+                long ipv4 = parseIpv4(s, start, to);
+                if (ipv4 == INVALID || groups > 6) {
+                    return false;
+                }
+                if (gapAt < 0) {
+                    headHi = headHi << 32 | headLo >>> 32;
+                    headLo = headLo << 32 | ipv4;
+                } else {
+                    tailHi = tailHi << 32 | tailLo >>> 32;
+                    tailLo = tailLo << 32 | ipv4;
+                }
+                groups += 2;
+                break;
+            }
+
+            if (i == start || groups == 8) {
+                return false;
+            }
+
+            if (gapAt < 0) {
+                headHi = headHi << 16 | headLo >>> 48;
+                headLo = headLo << 16 | group;
+            } else {
+                tailHi = tailHi << 16 | tailLo >>> 48;
+                tailLo = tailLo << 16 | group;
+            }
+            groups++;
+
+            if (i == to) {
+                break;
+            }
+            if (s.charAt(i) != ':' || ++i == to) {
+                return false;
+            }
+            if (s.charAt(i) == ':') {
+                if (gapAt >= 0) {
+                    return false;
+                }
+                gapAt = groups;
+                i++;
+            }
+        }
+
+        if (gapAt < 0) {
+            if (groups != 8) {
+                return false;
+            }
+            if (out != null) {
+                out[0] = headHi;
+                out[1] = headLo;
+            }
+            return true;
+        }
+
+        if (groups > 7) {
+            return false;
+        }
+
+        // Move the head groups to the top of the address, "::" fills the middle with zeros
+        int shift = 16 * (8 - gapAt);
+        if (shift == 128) {
+            headHi = 0;
+            headLo = 0;
+        } else if (shift >= 64) {
+            headHi = headLo << (shift - 64);
+            headLo = 0;
+        } else {
+            headHi = headHi << shift | headLo >>> (64 - shift);
+            headLo = headLo << shift;
+        }
+        if (out != null) {
+            out[0] = headHi | tailHi;
+            out[1] = headLo | tailLo;
+        }
+        return true;
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 literal, ignoring surrounding whitespace.
+     *
+     * @param s   The text to parse
+     * @param out Array receiving the address as a {@link PrefixMatcher} key: high 64 bits at index 0, low 64 bits at index 1
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #INVALID_FAMILY}
+     * @see #parseAddress(CharSequence, int, int, long[])
+     */
+    public static int parseAddress(CharSequence s, long[] out) {
+        if (s == null) {
+            return INVALID_FAMILY;
+        }
+        int from = trimStart(s, 0, s.length());
+        return parseAddress(s, from, trimEnd(s, from, s.length()), out);
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 literal in {@code s[from, to)} into a {@link PrefixMatcher} key.
+     * <p>
+     * IPv4-mapped IPv6 addresses ({@code ::ffff:a.b.c.d}) are normalized to IPv4, so that
+     * a dual-stack listener reporting them still matches IPv4 ranges.
+     *
+     * @param s    The text to parse
+     * @param from Start index, inclusive
+     * @param to   End index, exclusive
+     * @param out  Array receiving the high 64 bits at index 0 and the low 64 bits at index 1
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #INVALID_FAMILY}
+     */
+    public static int parseAddress(CharSequence s, int from, int to, long[] out) {
+        long ipv4 = parseIpv4(s, from, to);
+        if (ipv4 != INVALID) {
+            out[0] = PrefixMatcher.ipv4Key(ipv4);
+            out[1] = 0;
+            return IPV4;
+        }
+        if (!parseIpv6(s, from, to, out)) {
+            return INVALID_FAMILY;
+        }
+        if (isIpv4Mapped(out[0], out[1])) {
+            out[0] = out[1] << 32;
+            out[1] = 0;
+            return IPV4;
+        }
+        return IPV6;
+    }
+
+    /**
+     * Parse a CIDR range such as {@code 192.168.1.0/24} or {@code 2001:db8::/32}, ignoring surrounding whitespace.
+     *
+     * @param s   The text to parse
+     * @param out Array receiving the network key (high bits at index 0, low bits at index 1) and the prefix length at index 2
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #INVALID_FAMILY}
+     * @see #parseCidr(CharSequence, int, int, long[])
+     */
+    public static int parseCidr(CharSequence s, long[] out) {
+        if (s == null) {
+            return INVALID_FAMILY;
+        }
+        int from = trimStart(s, 0, s.length());
+        return parseCidr(s, from, trimEnd(s, from, s.length()), out);
+    }
+
+    /**
+     * Parse a CIDR range in {@code s[from, to)}.
+     * <p>
+     * The prefix length must be between 0 and 32 for IPv4 and between 0 and 128 for IPv6.
+     * IPv4-mapped IPv6 ranges of at least 96 bits ({@code ::ffff:10.0.0.0/104}) are normalized
+     * to the matching IPv4 range ({@code 10.0.0.0/8}). Host bits are kept as written.
+     *
+     * @param s    The text to parse
+     * @param from Start index, inclusive
+     * @param to   End index, exclusive
+     * @param out  Array receiving the network key (high bits at index 0, low bits at index 1) and the prefix length at index 2
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #INVALID_FAMILY}
+     */
+    public static int parseCidr(CharSequence s, int from, int to, long[] out) {
+        int slash = from;
+        while (slash < to && s.charAt(slash) != '/') {
+            slash++;
+        }
+        if (slash == to) {
+            return INVALID_FAMILY;
+        }
+
+        long ipv4 = parseIpv4(s, from, slash);
+        if (ipv4 != INVALID) {
+            int length = parsePrefixLength(s, slash + 1, to, 32);
+            if (length < 0) {
+                return INVALID_FAMILY;
+            }
+            out[0] = PrefixMatcher.ipv4Key(ipv4);
+            out[1] = 0;
+            out[2] = length;
+            return IPV4;
+        }
+
+        if (!parseIpv6(s, from, slash, out)) {
+            return INVALID_FAMILY;
+        }
+        int length = parsePrefixLength(s, slash + 1, to, 128);
+        if (length < 0) {
+            return INVALID_FAMILY;
+        }
+        if (length >= 96 && isIpv4Mapped(out[0], out[1])) {
+            out[0] = out[1] << 32;
+            out[1] = 0;
+            out[2] = length - 96;
+            return IPV4;
+        }
+        out[2] = length;
+        return IPV6;
+    }
+
+    /**
+     * @return true if the IPv6 address is an IPv4-mapped address ({@code ::ffff:0:0/96})
+     */
+    public static boolean isIpv4Mapped(long hi, long lo) {
+        return hi == 0 && lo >>> 32 == 0xFFFFL;
+    }
+
+    /**
+     * Check if a text is an IPv4 or IPv6 literal, ignoring surrounding whitespace.
+     *
+     * @param s The text to check
+     * @return true if {@code s} is a valid IP literal
+     */
+    public static boolean isIpLiteral(CharSequence s) {
+        if (s == null) {
+            return false;
+        }
+        int from = trimStart(s, 0, s.length());
+        return isIpLiteral(s, from, trimEnd(s, from, s.length()));
+    }
+
+    /**
+     * Check if {@code s[from, to)} is an IPv4 or IPv6 literal.
+     */
+    public static boolean isIpLiteral(CharSequence s, int from, int to) {
+        return parseIpv4(s, from, to) != INVALID || parseIpv6(s, from, to, null);
+    }
+
+    /**
+     * Parse a CIDR prefix length in {@code s[from, to)}.
+     *
+     * @param s         The text to parse
+     * @param from      Start index, inclusive
+     * @param to        End index, exclusive
+     * @param maxLength The address width (32 for IPv4, 128 for IPv6)
+     * @return the prefix length, or -1 if the range is not a decimal number between 0 and {@code maxLength}
+     */
+    public static int parsePrefixLength(CharSequence s, int from, int to, int maxLength) {
+        if (from == to || to - from > 3 || (to - from > 1 && s.charAt(from) == '0')) {
+            return -1;
+        }
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            length = length * 10 + digit;
+        }
+        return length <= maxLength ? length : -1;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first index in {@code s[from, to)} that is not whitespace, or {@code to}
+     */
+    public static int trimStart(CharSequence s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return the index after the last character in {@code s[from, to)} that is not whitespace, or {@code from}
+     */
+    public static int trimEnd(CharSequence s, int from, int to) {
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+}
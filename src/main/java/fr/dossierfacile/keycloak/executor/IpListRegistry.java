@@ -0,0 +1,314 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * External IP list files, referenced from {@code allowed.ip.ranges} as {@code @file:name}.
+ * <p>
+ * Names are resolved against a single directory and restricted to letters, digits,
+ * {@code .}, {@code _} and {@code -}, so a reference cannot escape the directory.
+ * Each list is compiled into a {@link MappedIpList} the first time it is referenced.
+ * A {@link WatchService} recompiles it when the file changes, and the new list is
+ * swapped in atomically: compiled allowlists hold a {@link ListReference}, so they
+ * see the new ranges without being recompiled.
+ * <p>
+ * A file rewritten in place may be read while it is being written. A file is only loaded if
+ * it is not empty, ends with a new line, and did not change while it was compiled; otherwise
+ * the previous version is kept until the next change. The registry only holds weak
+ * references to the lists, so a list is released once no compiled allowlist references it.
+ */
+public class IpListRegistry implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IpListRegistry.class);
+
+    /**
+     * Prefix of a list reference in {@code allowed.ip.ranges}.
+     */
+    public static final String REFERENCE_PREFIX = "@file:";
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    private final Path directory;
+    private final Path compiledDirectory;
+    private final Map<String, WeakListReference> lists = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ListReference> released = new ReferenceQueue<>();
+    private final AtomicLong version = new AtomicLong();
+    private WatchService watchService;
+
+    /**
+     * @param directory The directory holding the list files
+     * @throws IOException if the directory of compiled lists cannot be created
+     */
+    public IpListRegistry(Path directory) throws IOException {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.compiledDirectory = Files.createTempDirectory("df-ip-lists");
+        this.compiledDirectory.toFile().deleteOnExit();
+    }
+
+    /**
+     * @return true if {@code name} is a valid list name
+     */
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    /**
+     * Return the list with the given name, compiling it on first use.
+     * A missing or unreadable file is logged and gives an empty list until it is fixed.
+     *
+     * @param name The list name
+     * @return the reference to the current version of the list
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    public ListReference get(String name) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid IP list name: " + name);
+        }
+        expungeReleased();
+        ListReference[] reference = new ListReference[1];
+        lists.compute(name, (key, existing) -> {
+            reference[0] = existing != null ? existing.get() : null;
+            if (reference[0] != null) {
+                return existing;
+            }
+            reference[0] = new ListReference(key);
+            return new WeakListReference(reference[0], released);
+        });
+        reference[0].ensureLoaded();
+        return reference[0];
+    }
+
+    /**
+     * @return the number of lists still referenced by a compiled allowlist
+     */
+    public int size() {
+        expungeReleased();
+        return lists.size();
+    }
+
+    /**
+     * Return the version of the lists, incremented after any list is swapped. A value read
+     * before a lookup changes if the lookup may have seen an older version of a list.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Start watching the directory for changes of the referenced lists, on a daemon thread.
+     *
+     * @throws IOException if the directory cannot be watched
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(() -> watch(watchService), "df-ip-list-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("Watching IP list files in {}", directory);
+    }
+
+    private void watch(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        lists.values().forEach(WeakListReference::reload);
+                    } else {
+                        WeakListReference reference = lists.get(event.context().toString());
+                        if (reference != null) {
+                            reference.reload();
+                        }
+                    }
+                    expungeReleased();
+                }
+                if (!key.reset()) {
+                    logger.error("IP list directory {} is no longer watched", directory);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Registry closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Error closing the IP list watcher", e);
+            }
+            watchService = null;
+        }
+        lists.clear();
+    }
+
+    private void expungeReleased() {
+        WeakListReference reference;
+        while ((reference = (WeakListReference) released.poll()) != null) {
+            lists.remove(reference.name, reference);
+        }
+    }
+
+    /**
+     * Check that a list file looks completely written: not empty, and ending with a new line.
+     *
+     * @return the size and modification time of the file, to check that it did not change
+     * while it was compiled, or null if it is being written
+     * @throws NoSuchFileException if the file does not exist
+     */
+    private static FileState completeState(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            FileTime modified = Files.getLastModifiedTime(source);
+            long size = channel.size();
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (size == 0 || channel.read(last, size - 1) != 1 || last.get(0) != '\n') {
+                return null;
+            }
+            return new FileState(size, modified);
+        }
+    }
+
+    private record FileState(long size, FileTime modified) {
+    }
+
+    /**
+     * Weak reference from the registry to a list, cleared once no allowlist references the list.
+     */
+    private static final class WeakListReference extends WeakReference<ListReference> {
+        private final String name;
+
+        WeakListReference(ListReference reference, ReferenceQueue<ListReference> queue) {
+            super(reference, queue);
+            this.name = reference.getName();
+        }
+
+        void reload() {
+            ListReference reference = get();
+            if (reference != null) {
+                reference.reload();
+            }
+        }
+    }
+
+    /**
+     * Reference to the current version of a list, swapped atomically on reload.
+     */
+    public final class ListReference {
+        private final String name;
+        private final AtomicReference<MappedIpList> current = new AtomicReference<>(MappedIpList.EMPTY);
+        private volatile boolean loaded;
+
+        private ListReference(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the current version of the list
+         */
+        public MappedIpList get() {
+            return current.get();
+        }
+
+        /**
+         * Check if an already parsed IP address is within the current version of the list.
+         */
+        public boolean contains(int family, long hi, long lo) {
+            return current.get().contains(family, hi, lo);
+        }
+
+        private void ensureLoaded() {
+            if (!loaded) {
+                synchronized (this) {
+                    if (!loaded) {
+                        reload();
+                        loaded = true;
+                    }
+                }
+            }
+        }
+
+        private synchronized void reload() {
+            Path source = directory.resolve(name);
+            Path binary = null;
+            try {
+                long start = System.nanoTime();
+                FileState state = completeState(source);
+                if (state == null) {
+                    logger.warn("IP list file {} is empty or does not end with a new line, it is considered being written: "
+                            + "keeping the previous version", source);
+                    return;
+                }
+                binary = Files.createTempFile(compiledDirectory, name, ".bin");
+                MappedIpList.compile(source, binary);
+                if (!state.equals(completeState(source))) {
+                    logger.warn("IP list file {} changed while it was compiled, keeping the previous version", source);
+                    return;
+                }
+                MappedIpList list = MappedIpList.map(binary);
+                current.set(list);
+                version.incrementAndGet();
+                logger.info("Loaded IP list {}: {} ranges in {} intervals, compiled in {} ms", name, list.rangeCount(),
+                        list.intervalCount(), (System.nanoTime() - start) / 1_000_000);
+            } catch (NoSuchFileException e) {
+                current.set(MappedIpList.EMPTY);
+                version.incrementAndGet();
+                logger.warn("IP list file not found: {}", source);
+            } catch (IOException | RuntimeException e) {
+                // Keep the previous version, the file may be written again
+                logger.error("Error loading IP list {}, keeping the previous version", name, e);
+            } finally {
+                deleteCompiled(binary);
+            }
+        }
+
+        private void deleteCompiled(Path binary) {
+            if (binary == null) {
+                return;
+            }
+            try {
+                // The mapping stays valid on POSIX systems, elsewhere the file is removed on exit
+                Files.delete(binary);
+            } catch (IOException e) {
+                binary.toFile().deleteOnExit();
+            }
+        }
+    }
+}
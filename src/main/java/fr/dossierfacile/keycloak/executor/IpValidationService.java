@@ -3,10 +3,7 @@ package fr.dossierfacile.keycloak.executor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.List;
-import java.util.regex.Pattern;
 
 /**
  * Service for validating IP addresses against CIDR ranges.
@@ -18,11 +15,6 @@ public class IpValidationService {
 
     private static final Logger logger = LoggerFactory.getLogger(IpValidationService.class);
 
-    // Pattern for validating CIDR notation (e.g., 192.168.1.0/24)
-    private static final Pattern CIDR_PATTERN = Pattern.compile(
-            "^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)/([0-9]|[1-2][0-9]|3[0-2])$"
-    );
-
     /**
      * Check if the given IP address is within any of the specified CIDR ranges.
      *
@@ -41,35 +33,31 @@ public class IpValidationService {
             return false;
         }
 
-        // Clean the client IP (remove any whitespace)
-        clientIp = clientIp.trim();
-
-        // Validate client IP format
-        if (!isValidIpAddress(clientIp)) {
+        // Parse the client IP once (surrounding whitespace is ignored)
+        long[] address = new long[2];
+        int family = IpAddressParser.parseAddress(clientIp, address);
+        if (family == IpAddressParser.INVALID_FAMILY) {
             logger.warn("Invalid client IP format: {}", clientIp);
             return false;
         }
 
+        // Each range is parsed once, into the same buffer
+        long[] network = new long[3];
         for (String range : allowedRanges) {
             if (range == null || range.trim().isEmpty()) {
                 continue;
             }
 
             String cleanRange = range.trim();
-
-            // Validate CIDR format
-            if (!isValidCidrNotation(cleanRange)) {
+            int networkFamily = IpAddressParser.parseCidr(cleanRange, network);
+            if (networkFamily == IpAddressParser.INVALID_FAMILY) {
                 logger.warn("Invalid CIDR notation: {}", cleanRange);
                 continue;
             }
 
-            try {
-                if (isIpInCidr(clientIp, cleanRange)) {
-                    logger.debug("IP {} matches CIDR range {}", clientIp, cleanRange);
-                    return true;
-                }
-            } catch (Exception e) {
-                logger.error("Error checking IP {} against CIDR range {}: {}", clientIp, cleanRange, e.getMessage());
+            if (isAddressInNetwork(family, address, networkFamily, network)) {
+                logger.debug("IP {} matches CIDR range {}", clientIp, cleanRange);
+                return true;
             }
         }
 
@@ -79,112 +67,71 @@ public class IpValidationService {
 
     /**
      * Check if an IP address is within a specific CIDR range.
+     * <p>
+     * IPv4 and IPv6 are both supported. An IPv4-mapped IPv6 address ({@code ::ffff:192.168.1.1})
+     * is treated as the IPv4 address it maps.
      *
      * @param ip   The IP address to check
-     * @param cidr The CIDR range (e.g., "192.168.1.0/24")
+     * @param cidr The CIDR range (e.g., "192.168.1.0/24" or "2001:db8::/32")
      * @return true if the IP is within the CIDR range
-     * @throws IllegalArgumentException if the CIDR notation is invalid
+     * @throws IllegalArgumentException if the IP address or the CIDR notation is invalid
      */
     public static boolean isIpInCidr(String ip, String cidr) {
         if (ip == null || cidr == null) {
             throw new IllegalArgumentException("IP and CIDR cannot be null");
         }
 
-        String[] parts = cidr.split("/");
-        if (parts.length != 2) {
-            throw new IllegalArgumentException("Invalid CIDR format: " + cidr);
+        long[] address = new long[2];
+        int family = IpAddressParser.parseAddress(ip, address);
+        if (family == IpAddressParser.INVALID_FAMILY) {
+            throw new IllegalArgumentException("Invalid IP address: " + ip);
         }
 
-        String networkAddress = parts[0];
-        int prefixLength = Integer.parseInt(parts[1]);
-
-        try {
-            InetAddress ipAddr = InetAddress.getByName(ip);
-            InetAddress networkAddr = InetAddress.getByName(networkAddress);
-
-            // Convert to byte arrays
-            byte[] ipBytes = ipAddr.getAddress();
-            byte[] networkBytes = networkAddr.getAddress();
-
-            // Check if IP and network are the same type (IPv4 or IPv6)
-            if (ipBytes.length != networkBytes.length) {
-                return false;
-            }
-
-            // Calculate the number of bytes to check
-            int bytesToCheck = prefixLength / 8;
-            int bitsToCheck = prefixLength % 8;
-
-            // Check full bytes
-            for (int i = 0; i < bytesToCheck; i++) {
-                if (ipBytes[i] != networkBytes[i]) {
-                    return false;
-                }
-            }
-
-            // Check remaining bits
-            if (bitsToCheck > 0 && bytesToCheck < ipBytes.length) {
-                int mask = 0xFF << (8 - bitsToCheck);
-                if ((ipBytes[bytesToCheck] & mask) != (networkBytes[bytesToCheck] & mask)) {
-                    return false;
-                }
-            }
-
-            return true;
-
-        } catch (UnknownHostException e) {
-            throw new IllegalArgumentException("Invalid IP address or network: " + e.getMessage());
+        long[] network = new long[3];
+        int networkFamily = IpAddressParser.parseCidr(cidr, network);
+        if (networkFamily == IpAddressParser.INVALID_FAMILY) {
+            throw new IllegalArgumentException("Invalid CIDR format: " + cidr);
         }
+
+        return isAddressInNetwork(family, address, networkFamily, network);
     }
 
     /**
-     * Validate if a string is a valid IP address (IPv4 or IPv6).
+     * Check a parsed address against a parsed CIDR range.
      *
-     * @param ip The IP address string to validate
-     * @return true if the string is a valid IP address
+     * @param family        The address family, as returned by {@link IpAddressParser#parseAddress}
+     * @param address       The address key, as written by {@link IpAddressParser#parseAddress}
+     * @param networkFamily The range family, as returned by {@link IpAddressParser#parseCidr}
+     * @param network       The range, as written by {@link IpAddressParser#parseCidr}
+     * @return true if the address is within the CIDR range
      */
-    public static boolean isValidIpAddress(String ip) {
-        if (ip == null || ip.trim().isEmpty()) {
+    private static boolean isAddressInNetwork(int family, long[] address, int networkFamily, long[] network) {
+        // An IPv6 address never matches an IPv4 network, and conversely
+        if (networkFamily != family) {
             return false;
         }
 
-        String trimmedIp = ip.trim();
-
-        try {
-            InetAddress addr = InetAddress.getByName(trimmedIp);
-            String resolvedAddress = addr.getHostAddress();
-
-            // For IPv4, ensure exact match to prevent cases like "192.168.1" being resolved to "192.168.0.1"
-            if (addr instanceof java.net.Inet4Address) {
-                return resolvedAddress.equals(trimmedIp);
-            }
-
-            // For IPv6, check if the input is a valid IPv6 format
-            // We need to handle normalization (e.g., "::1" -> "0:0:0:0:0:0:0:1")
-            if (addr instanceof java.net.Inet6Address) {
-                // Check if the input looks like a valid IPv6 address
-                return isIPv6Format(trimmedIp);
-            }
-
-            return false;
-        } catch (UnknownHostException e) {
-            return false;
-        }
+        int prefixLength = (int) network[2];
+        return ((address[0] ^ network[0]) & PrefixMatcher.maskHi(prefixLength)) == 0
+                && ((address[1] ^ network[1]) & PrefixMatcher.maskLo(prefixLength)) == 0;
     }
 
     /**
-     * Check if a string looks like a valid IPv6 address format.
+     * Validate if a string is a valid IP address (IPv4 or IPv6).
+     * <p>
+     * Only literals are accepted, host names are never resolved.
      *
-     * @param ip The IP string to check
-     * @return true if it looks like IPv6
+     * @param ip The IP address string to validate
+     * @return true if the string is a valid IP address
      */
-    private static boolean isIPv6Format(String ip) {
-        // Basic IPv6 format check - contains colons and/or double colons
-        return ip.contains(":") && !ip.contains(".");
+    public static boolean isValidIpAddress(String ip) {
+        return IpAddressParser.isIpLiteral(ip);
     }
 
     /**
      * Validate if a string is a valid CIDR notation.
+     * <p>
+     * IPv4 ranges accept a prefix length between 0 and 32, IPv6 ranges between 0 and 128.
      *
      * @param cidr The CIDR string to validate
      * @return true if the string is a valid CIDR notation
@@ -194,6 +141,6 @@ public class IpValidationService {
             return false;
         }
 
-        return CIDR_PATTERN.matcher(cidr.trim()).matches();
+        return IpAddressParser.parseCidr(cidr, new long[3]) != IpAddressParser.INVALID_FAMILY;
     }
 }
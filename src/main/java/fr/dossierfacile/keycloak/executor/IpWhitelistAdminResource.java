@@ -0,0 +1,381 @@
+package fr.dossierfacile.keycloak.executor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.InternalServerErrorException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.idm.ClientPoliciesRepresentation;
+import org.keycloak.representations.idm.ClientPolicyConditionRepresentation;
+import org.keycloak.representations.idm.ClientPolicyExecutorRepresentation;
+import org.keycloak.representations.idm.ClientPolicyRepresentation;
+import org.keycloak.representations.idm.ClientProfileRepresentation;
+import org.keycloak.representations.idm.ClientProfilesRepresentation;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.executor.ClientPolicyExecutorProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Admin resource of the IP whitelist executor, served under {@code /admin/realms/{realm}/ip-whitelist}.
+ */
+public class IpWhitelistAdminResource {
+
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Maximum number of addresses evaluated in one call.
+     */
+    public static final int MAX_ADDRESSES = 100_000;
+
+    /**
+     * Maximum length of an address, longer tokens are truncated and denied. The longest IPv6 literal has 45 characters.
+     */
+    public static final int MAX_TOKEN_LENGTH = 64;
+
+    /**
+     * Vote of a client policy condition on a token request of a client, or {@link #UNKNOWN} if it
+     * depends on the request (e.g. its scopes) or on a condition provider this resource does not know.
+     */
+    enum Vote {
+        YES, NO, ABSTAIN, UNKNOWN
+    }
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+
+    public IpWhitelistAdminResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+    }
+
+    /**
+     * Decision counters and check durations of the realm, and the allowlist sharing statistics,
+     * in the Prometheus text format. They name the realm's clients, so viewing the realm is required.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(PROMETHEUS_CONTENT_TYPE)
+    public String getMetrics() {
+        auth.realm().requireViewRealm();
+
+        IpWhitelistExecutorFactory factory = getExecutorFactory();
+        StringBuilder out = new StringBuilder(1024);
+        factory.getMetrics().writePrometheus(realm.getName(), out);
+        factory.getInternPool().writePrometheus(out);
+        if (factory.getAuditLog() != null) {
+            factory.getAuditLog().writePrometheus(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Evaluate a batch of IP addresses for a client, as the executor would on a token request:
+     * against the ranges of the client profile using the executor, then the client's own ranges.
+     * Only the profiles of the enabled client policies whose conditions match the client are
+     * considered; if none applies, a token request of the client is not checked and the call
+     * fails with 409 instead of reporting decisions that would never be made.
+     * The body lists the addresses, separated by new lines, spaces or commas; {@code #} starts a comment.
+     * The response has one JSON line per address, in the same order.
+     *
+     * @param clientId    The client id, as in the admin console
+     * @param profileName The client profile whose executor settings apply, needed only if several profiles apply
+     */
+    @POST
+    @Path("clients/{clientId}/evaluate")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(NDJSON_CONTENT_TYPE)
+    public StreamingOutput evaluate(@PathParam("clientId") String clientId, @QueryParam("profile") String profileName,
+                                    InputStream body) {
+        ClientModel client = realm.getClientByClientId(clientId);
+        if (client == null) {
+            auth.clients().requireList();
+            throw new NotFoundException("Client not found");
+        }
+        auth.clients().requireView(client);
+
+        // Same executor and configuration as on a token request, so the result is the one of a token request
+        IpWhitelistExecutor executor = getExecutorFactory().create(session);
+        executor.setupConfiguration(getProfileConfiguration(client, profileName));
+        String realmId = realm.getId();
+        String id = client.getId();
+        String allowedRanges = client.getAttribute(IpWhitelistExecutor.ALLOWED_IP_RANGES_ATTR);
+
+        return output -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            evaluate(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)), writer, executor, realmId, id,
+                    allowedRanges, MAX_ADDRESSES);
+            writer.flush();
+        };
+    }
+
+    /**
+     * Return the executor settings of the client profile using the executor that applies to the client:
+     * the given one, or the only one. The throttle and the decision cache are left out, so that an
+     * evaluation neither fills the cache nor throttles anyone.
+     */
+    private IpWhitelistExecutor.Configuration getProfileConfiguration(ClientModel client, String profileName) {
+        ClientProfilesRepresentation profiles;
+        ClientPoliciesRepresentation policies;
+        try {
+            profiles = session.clientPolicy().getClientProfiles(realm, true);
+            policies = session.clientPolicy().getClientPolicies(realm);
+        } catch (ClientPolicyException e) {
+            throw new InternalServerErrorException("Cannot read the client policies: " + e.getMessage());
+        }
+
+        Map<String, JsonNode> configurations = new LinkedHashMap<>();
+        for (List<ClientProfileRepresentation> list : Arrays.asList(profiles.getProfiles(), profiles.getGlobalProfiles())) {
+            for (ClientProfileRepresentation profile : list != null ? list : List.<ClientProfileRepresentation>of()) {
+                for (ClientPolicyExecutorRepresentation executor : profile.getExecutors() != null ? profile.getExecutors()
+                        : List.<ClientPolicyExecutorRepresentation>of()) {
+                    if (IpWhitelistExecutorFactory.PROVIDER_ID.equals(executor.getExecutorProviderId())) {
+                        configurations.putIfAbsent(profile.getName(), executor.getConfiguration());
+                    }
+                }
+            }
+        }
+        if (profileName != null && !configurations.containsKey(profileName)) {
+            throw new NotFoundException("No client profile " + profileName + " uses " + IpWhitelistExecutorFactory.PROVIDER_ID);
+        }
+
+        // Only the profiles of the policies that apply to the client are run on its token requests
+        Set<String> applied = new HashSet<>();
+        for (ClientPolicyRepresentation policy : policies != null && policies.getPolicies() != null ? policies.getPolicies()
+                : List.<ClientPolicyRepresentation>of()) {
+            if (Boolean.TRUE.equals(policy.isEnabled()) && policy.getProfiles() != null && mayApply(policy, client)) {
+                applied.addAll(policy.getProfiles());
+            }
+        }
+        configurations.keySet().retainAll(applied);
+
+        JsonNode configuration;
+        if (profileName != null) {
+            if (!configurations.containsKey(profileName)) {
+                throw new ClientErrorException("No enabled client policy applying to client " + client.getClientId()
+                        + " uses the client profile " + profileName, Response.Status.CONFLICT);
+            }
+            configuration = configurations.get(profileName);
+        } else if (configurations.isEmpty()) {
+            throw new ClientErrorException("Client " + client.getClientId() + " is not covered by any enabled client policy using "
+                    + IpWhitelistExecutorFactory.PROVIDER_ID, Response.Status.CONFLICT);
+        } else if (configurations.size() > 1) {
+            throw new BadRequestException("Several client profiles using " + IpWhitelistExecutorFactory.PROVIDER_ID
+                    + " apply to the client, choose one with the profile parameter: " + String.join(", ", configurations.keySet()));
+        } else {
+            configuration = configurations.values().iterator().next();
+        }
+
+        IpWhitelistExecutor.Configuration result = new IpWhitelistExecutor.Configuration();
+        if (configuration != null && !configuration.isNull()) {
+            result.setAllowedIpRanges(JsonSerialization.mapper.convertValue(configuration, IpWhitelistExecutor.Configuration.class)
+                    .getAllowedIpRanges());
+        }
+        return result;
+    }
+
+    /**
+     * Check if a client policy may apply to the token requests of a client, as Keycloak evaluates it:
+     * a policy without conditions never applies, abstaining conditions are skipped, and the policy
+     * applies if no condition votes no and at least one votes yes. A condition depending on the
+     * request may vote yes, so the policy is then considered to apply.
+     */
+    static boolean mayApply(ClientPolicyRepresentation policy, ClientModel client) {
+        boolean yes = false;
+        for (ClientPolicyConditionRepresentation condition : policy.getConditions() != null ? policy.getConditions()
+                : List.<ClientPolicyConditionRepresentation>of()) {
+            Vote vote = vote(condition, client);
+            if (vote == Vote.NO) {
+                return false;
+            }
+            yes |= vote == Vote.YES || vote == Vote.UNKNOWN;
+        }
+        return yes;
+    }
+
+    /**
+     * Vote of a condition on a token request of a client, for the conditions that only depend on the client.
+     */
+    static Vote vote(ClientPolicyConditionRepresentation condition, ClientModel client) {
+        JsonNode configuration = condition.getConfiguration();
+        String providerId = condition.getConditionProviderId();
+        Vote vote;
+        if ("any-client".equals(providerId)) {
+            vote = Vote.YES;
+        } else if ("client-roles".equals(providerId)) {
+            vote = Vote.NO;
+            for (JsonNode role : configuration != null ? configuration.path("roles") : JsonSerialization.mapper.createArrayNode()) {
+                if (client.getRole(role.asText()) != null) {
+                    vote = Vote.YES;
+                }
+            }
+        } else if ("client-access-type".equals(providerId)) {
+            String type = client.isBearerOnly() ? "bearer-only" : client.isPublicClient() ? "public" : "confidential";
+            vote = Vote.NO;
+            for (JsonNode accessType : configuration != null ? configuration.path("type") : JsonSerialization.mapper.createArrayNode()) {
+                if (type.equals(accessType.asText())) {
+                    vote = Vote.YES;
+                }
+            }
+        } else if (providerId != null && providerId.startsWith("client-updater-")) {
+            // Only vote on client registration and update requests
+            return Vote.ABSTAIN;
+        } else {
+            return Vote.UNKNOWN;
+        }
+        if (configuration != null && configuration.path("is-negative-logic").asBoolean(false)) {
+            return vote == Vote.YES ? Vote.NO : Vote.YES;
+        }
+        return vote;
+    }
+
+    private IpWhitelistExecutorFactory getExecutorFactory() {
+        IpWhitelistExecutorFactory factory = (IpWhitelistExecutorFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(ClientPolicyExecutorProvider.class, IpWhitelistExecutorFactory.PROVIDER_ID);
+        if (factory == null) {
+            throw new NotFoundException();
+        }
+        return factory;
+    }
+
+    /**
+     * Evaluate each address read from {@code in} with {@link IpWhitelistExecutor#decide} and write one JSON
+     * line per address to {@code out}: the address, the decision and, if it is allowed, the canonical prefix
+     * that matched it, from the profile ranges first.
+     *
+     * @param in              The addresses, separated by new lines, spaces or commas
+     * @param out             The JSON lines
+     * @param executor        The executor, configured as in the client profile
+     * @param realmId         The realm id
+     * @param clientId        The client internal id
+     * @param allowedIpRanges The client's allowed ranges attribute, null if it has none
+     * @param maxAddresses    Number of addresses after which the evaluation stops with an error line
+     * @return the number of addresses evaluated
+     * @throws IOException if reading or writing fails
+     */
+    public static int evaluate(Reader in, Writer out, IpWhitelistExecutor executor, String realmId, String clientId,
+                               String allowedIpRanges, int maxAddresses) throws IOException {
+        StringBuilder token = new StringBuilder(MAX_TOKEN_LENGTH);
+        StringBuilder line = new StringBuilder(128);
+        long[] address = new long[2];
+        int count = 0;
+        boolean comment = false;
+        boolean truncated = false;
+
+        while (true) {
+            int c = in.read();
+            if (c == '#') {
+                comment = true;
+            } else if (c == '\n' || c == '\r') {
+                comment = false;
+            }
+            if (c >= 0 && !comment && c != ',' && !Character.isWhitespace(c)) {
+                // A line without separators must not grow the token without bound
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.append((char) c);
+                } else {
+                    truncated = true;
+                }
+                continue;
+            }
+
+            if (token.length() > 0) {
+                if (count == maxAddresses) {
+                    out.write("{\"error\":\"Too many addresses, only the first " + maxAddresses + " were evaluated\"}\n");
+                    return count;
+                }
+                line.setLength(0);
+                if (truncated) {
+                    appendTooLong(line, token);
+                } else {
+                    appendResult(line, token, address, executor, realmId, clientId, allowedIpRanges);
+                }
+                out.append(line);
+                token.setLength(0);
+                truncated = false;
+                count++;
+            }
+            if (c < 0) {
+                return count;
+            }
+        }
+    }
+
+    private static void appendTooLong(StringBuilder line, CharSequence start) {
+        line.append("{\"ip\":");
+        AuditLog.appendJsonString(line, start + "...");
+        line.append(",\"decision\":\"").append(DecisionMetrics.Decision.DENY.getLabel())
+                .append("\",\"match\":null,\"error\":\"Address too long\"}\n");
+    }
+
+    private static void appendResult(StringBuilder line, CharSequence ip, long[] address, IpWhitelistExecutor executor,
+                                     String realmId, String clientId, String allowedIpRanges) {
+        line.append("{\"ip\":");
+        AuditLog.appendJsonString(line, ip);
+        line.append(",\"decision\":\"");
+
+        int family = IpAddressParser.parseAddress(ip, 0, ip.length(), address);
+        DecisionMetrics.Decision decision = executor.decide(realmId, clientId, allowedIpRanges, family, address);
+        line.append(decision.getLabel()).append("\",\"match\":");
+        if (decision != DecisionMetrics.Decision.ALLOW) {
+            line.append("null");
+            if (decision == DecisionMetrics.Decision.DENY && family == IpAddressParser.INVALID_FAMILY) {
+                line.append(",\"error\":\"Invalid IP address\"");
+            }
+            line.append("}\n");
+            return;
+        }
+
+        RangeSetMatcher.Match match = executor.getProfileAllowlist().findMatch(family, address[0], address[1]);
+        boolean fromProfile = match != null;
+        if (match == null && allowedIpRanges != null && !allowedIpRanges.isEmpty()) {
+            match = executor.getClientAllowlist(realmId, clientId, allowedIpRanges).findMatch(family, address[0], address[1]);
+        }
+        if (match == null) {
+            // The IP list was reloaded in between
+            line.append("null");
+        } else {
+            line.append('"').append(match.toCidr()).append('"');
+            if (fromProfile) {
+                line.append(",\"source\":\"profile\"");
+            }
+            if (match.list() != null) {
+                line.append(",\"list\":");
+                AuditLog.appendJsonString(line, match.list());
+            }
+        }
+        line.append("}\n");
+    }
+}
@@ -0,0 +1,22 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Admin extension of the IP whitelist executor, authenticated and authorized by the admin REST API.
+ */
+public class IpWhitelistAdminResourceProvider implements AdminRealmResourceProvider {
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new IpWhitelistAdminResource(session, realm, auth);
+    }
+
+    @Override
+    public void close() {
+    }
+}
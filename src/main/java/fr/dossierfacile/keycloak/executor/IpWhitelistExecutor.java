@@ -1,123 +1,289 @@
 package fr.dossierfacile.keycloak.executor;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.ws.rs.core.Response;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.representations.idm.ClientPolicyExecutorConfigurationRepresentation;
 import org.keycloak.services.clientpolicy.ClientPolicyContext;
+import org.keycloak.services.clientpolicy.ClientPolicyEvent;
 import org.keycloak.services.clientpolicy.ClientPolicyException;
-import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
-import org.keycloak.services.clientpolicy.context.TokenRequestContext;
 import org.keycloak.services.clientpolicy.executor.ClientPolicyExecutorProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
-public class IpWhitelistExecutor implements ClientPolicyExecutorProvider<ClientPolicyExecutorConfigurationRepresentation> {
+public class IpWhitelistExecutor implements ClientPolicyExecutorProvider<IpWhitelistExecutor.Configuration> {
     private static final Logger logger = LoggerFactory.getLogger(IpWhitelistExecutor.class);
     private final KeycloakSession session;
+    private final AllowlistCache allowlistCache;
+    private final ClientIpResolver clientIpResolver;
+    private final DecisionMetrics metrics;
+    private final AuditLog auditLog;
+    private final IpWhitelistExecutorFactory factory;
+    private DecisionCache decisionCache;
+    private DeniedCallerThrottle throttle;
+    private CompiledAllowlist profileAllowlist;
+    private Set<ClientPolicyEvent> events;
 
-    private static final String ALLOWED_IP_RANGES_ATTR = "allowed.ip.ranges";
+    static final String ALLOWED_IP_RANGES_ATTR = "allowed.ip.ranges";
 
-    public IpWhitelistExecutor(KeycloakSession session) {
+    public IpWhitelistExecutor(KeycloakSession session, IpWhitelistExecutorFactory factory) {
         this.session = session;
+        this.factory = factory;
+        this.allowlistCache = factory.getAllowlistCache();
+        this.clientIpResolver = factory.getClientIpResolver();
+        this.metrics = factory.getMetrics();
+        this.auditLog = factory.getAuditLog();
+        this.profileAllowlist = factory.getProfileAllowlist(null);
+        this.events = factory.getEvents(null);
     }
 
     @Override
-    public void executeOnEvent(ClientPolicyContext context) throws ClientPolicyException {
+    public Class<Configuration> getExecutorConfigurationClass() {
+        return Configuration.class;
+    }
+
+    @Override
+    public void setupConfiguration(Configuration config) {
+        int decisionCacheSize = config != null && config.getDecisionCacheSize() != null ? config.getDecisionCacheSize() : 0;
+        int decisionCacheTtl = config != null && config.getDecisionCacheTtl() != null
+                ? config.getDecisionCacheTtl()
+                : DecisionCache.DEFAULT_TTL_SECONDS;
+        decisionCache = decisionCacheSize > 0 && decisionCacheTtl > 0
+                ? factory.getDecisionCache(decisionCacheSize, decisionCacheTtl)
+                : null;
+        int denyBurst = config != null && config.getDenyBurst() != null ? config.getDenyBurst() : 0;
+        int denyRefill = config != null && config.getDenyRefillPerMinute() != null
+                ? config.getDenyRefillPerMinute()
+                : DeniedCallerThrottle.DEFAULT_REFILL_PER_MINUTE;
+        throttle = denyBurst > 0 ? factory.getThrottle(denyBurst, denyRefill) : null;
+        profileAllowlist = factory.getProfileAllowlist(config != null ? config.getAllowedIpRanges() : null);
+        events = factory.getEvents(config != null ? config.getEvents() : null);
+    }
+
+    /**
+     * Configuration of the executor in a client profile.
+     */
+    public static class Configuration extends ClientPolicyExecutorConfigurationRepresentation {
+
+        @JsonProperty(IpWhitelistExecutorFactory.ALLOWED_IP_RANGES)
+        protected List<String> allowedIpRanges;
+
+        @JsonProperty(IpWhitelistExecutorFactory.EVENTS)
+        protected List<String> events;
+
+        @JsonProperty(IpWhitelistExecutorFactory.DECISION_CACHE_SIZE)
+        protected Integer decisionCacheSize;
+
+        @JsonProperty(IpWhitelistExecutorFactory.DECISION_CACHE_TTL)
+        protected Integer decisionCacheTtl;
+
+        @JsonProperty(IpWhitelistExecutorFactory.DENY_BURST)
+        protected Integer denyBurst;
+
+        @JsonProperty(IpWhitelistExecutorFactory.DENY_REFILL_PER_MINUTE)
+        protected Integer denyRefillPerMinute;
+
+        public List<String> getAllowedIpRanges() {
+            return allowedIpRanges;
+        }
+
+        public void setAllowedIpRanges(List<String> allowedIpRanges) {
+            this.allowedIpRanges = allowedIpRanges;
+        }
+
+        public List<String> getEvents() {
+            return events;
+        }
 
-        logger.info("IpWhitelistExecutor called");
+        public void setEvents(List<String> events) {
+            this.events = events;
+        }
+
+        public Integer getDecisionCacheSize() {
+            return decisionCacheSize;
+        }
+
+        public void setDecisionCacheSize(Integer decisionCacheSize) {
+            this.decisionCacheSize = decisionCacheSize;
+        }
+
+        public Integer getDecisionCacheTtl() {
+            return decisionCacheTtl;
+        }
+
+        public void setDecisionCacheTtl(Integer decisionCacheTtl) {
+            this.decisionCacheTtl = decisionCacheTtl;
+        }
+
+        public Integer getDenyBurst() {
+            return denyBurst;
+        }
+
+        public void setDenyBurst(Integer denyBurst) {
+            this.denyBurst = denyBurst;
+        }
+
+        public Integer getDenyRefillPerMinute() {
+            return denyRefillPerMinute;
+        }
 
-        boolean isTokenEndpointContext =
-                context instanceof TokenRequestContext
-                || context instanceof ServiceAccountTokenRequestContext;
+        public void setDenyRefillPerMinute(Integer denyRefillPerMinute) {
+            this.denyRefillPerMinute = denyRefillPerMinute;
+        }
+    }
+
+    @Override
+    public void executeOnEvent(ClientPolicyContext context) throws ClientPolicyException {
 
-        // Ne traiter que les jetons service account (client_credentials)
-        if (! isTokenEndpointContext) {
-            logger.info("Ignoring non-token endpoint context: {}", context.getClass().getSimpleName());
+        // Only the configured events (by default the token requests) are checked
+        if (!events.contains(context.getEvent())) {
+            logger.debug("Ignoring client policy event: {}", context.getEvent());
             return;
         }
 
+        long start = System.nanoTime();
         KeycloakContext kc = session.getContext();
         ClientModel client = kc.getClient();
         if (client == null) return;
+        String realmName = kc.getRealm().getName();
 
-        String remoteIp = getClientIpAddress(kc);
+        String remoteIp = clientIpResolver.resolve(kc);
+
+        long[] address = new long[2];
+        int family = IpAddressParser.parseAddress(remoteIp, address);
 
         if (remoteIp == null || remoteIp.isEmpty()) {
-            logger.error("Could not determine client IP address");
+            if (auditLog == null) {
+                logger.error("Could not determine client IP address");
+            }
+            record(realmName, client, DecisionMetrics.Decision.MISSING_IP, family, address, start);
             throw new ClientPolicyException("Access denied from IpWhitelistExecutor: Unable to determine client IP");
         }
 
         String allowedIpRangesStr = client.getAttribute(ALLOWED_IP_RANGES_ATTR);
         logger.debug("Allowed IP ranges: {}", allowedIpRangesStr);
+        logger.debug("Client ID: {}, IP: {}", client.getClientId(), remoteIp);
+        DecisionMetrics.Decision decision = decide(kc.getRealm().getId(), client.getId(), allowedIpRangesStr, family, address);
 
-        if (allowedIpRangesStr == null || allowedIpRangesStr.isEmpty()) {
-            logger.error("No allowed IP ranges configured for client ID: {}", client.getClientId());
+        if (decision == DecisionMetrics.Decision.MISSING_CONFIG) {
+            if (auditLog == null) {
+                logger.error("No allowed IP ranges configured for client ID: {}", client.getClientId());
+            }
+            record(realmName, client, DecisionMetrics.Decision.MISSING_CONFIG, family, address, start);
             throw new ClientPolicyException("Access denied from IpWhitelistExecutor: No allowed IP ranges configured");
         }
 
-        logger.debug("Client ID: {}, IP: {}", client.getClientId(), remoteIp);
-        List<String> allowedIpRanges = Arrays.asList(allowedIpRangesStr.split(","));
-
-        var isIpValid = IpValidationService.isIpInRanges(remoteIp, allowedIpRanges);
-
+        var isIpValid = decision == DecisionMetrics.Decision.ALLOW;
         if (isIpValid) {
-            logger.info("Access granted from IpWhitelistExecutor for IP: {}", remoteIp);
+            record(realmName, client, DecisionMetrics.Decision.ALLOW, family, address, start);
+            logger.debug("Access granted from IpWhitelistExecutor for IP: {}", remoteIp);
         } else {
-            logger.error("Access denied from IpWhitelistExecutor for IP: {}", remoteIp);
+            // Callers repeatedly denied for this client are rejected without a log line each.
+            // Only denied requests are throttled, so an allowed caller never gets a 429.
+            if (throttle != null && family != IpAddressParser.INVALID_FAMILY
+                    && throttle.isThrottled(client.getId(), family, address[0], address[1])) {
+                throttle.recordThrottled();
+                record(realmName, client, DecisionMetrics.Decision.THROTTLED, family, address, start);
+                throw new ClientPolicyException("Too many denied requests from IpWhitelistExecutor", "invalid_client",
+                        Response.Status.TOO_MANY_REQUESTS);
+            }
+            record(realmName, client, DecisionMetrics.Decision.DENY, family, address, start);
+            if (auditLog == null) {
+                logger.error("Access denied from IpWhitelistExecutor for IP: {}", remoteIp);
+            }
+            if (throttle != null && family != IpAddressParser.INVALID_FAMILY
+                    && throttle.recordDenial(client.getId(), family, address[0], address[1])) {
+                logger.warn("Throttling IP {} after repeated denials, further requests are rejected with 429", remoteIp);
+            }
             throw new ClientPolicyException("Access denied from IpWhitelistExecutor", "invalid_client", Response.Status.FORBIDDEN);
         }
 
     }
 
-    @Override
-    public String getProviderId() {
-        return IpWhitelistExecutorFactory.PROVIDER_ID;
+    private void record(String realmName, ClientModel client, DecisionMetrics.Decision decision, int family, long[] address,
+                        long start) {
+        metrics.record(realmName, client.getClientId(), decision, System.nanoTime() - start);
+        if (auditLog != null) {
+            auditLog.record(realmName, client.getClientId(), decision, family, address[0], address[1]);
+        }
     }
 
     /**
-     * Extract client IP address from the authentication context.
+     * Decide whether an address may call a client, as on a token request: it must be within the
+     * profile ranges or the client's own ranges. The admin evaluation uses the same method, so
+     * both always agree. Throttling is not applied.
      *
-     * @param context The client authentication context
-     * @return The client IP address or null if not found
+     * @param realmId         The realm id
+     * @param clientId        The client internal id
+     * @param allowedIpRanges The client's allowed ranges attribute, null or empty if it has none
+     * @param family          The family returned by {@link IpAddressParser#parseAddress}
+     * @param address         The parsed address
+     * @return {@code ALLOW}, {@code DENY}, or {@code MISSING_CONFIG} if neither the profile nor the client has ranges
      */
-    private String getClientIpAddress(KeycloakContext context) {
-        try {
-            // Try to get IP from X-Forwarded-For header first (for load balancers/proxies)
-            String forwardedFor = context.getHttpRequest().getHttpHeaders().getHeaderString("X-Forwarded-For");
-            if (forwardedFor != null && !forwardedFor.trim().isEmpty()) {
-                // X-Forwarded-For can contain multiple IPs, take the first one
-                String clientIp = forwardedFor.split(",")[0].trim();
-                logger.debug("Client IP from X-Forwarded-For: {}", clientIp);
-                return clientIp;
-            }
+    DecisionMetrics.Decision decide(String realmId, String clientId, String allowedIpRanges, int family, long[] address) {
+        boolean hasClientRanges = allowedIpRanges != null && !allowedIpRanges.isEmpty();
+        if (!hasClientRanges && profileAllowlist.size() == 0) {
+            return DecisionMetrics.Decision.MISSING_CONFIG;
+        }
+        return family != IpAddressParser.INVALID_FAMILY
+                && isAllowed(realmId, clientId, family, address, hasClientRanges ? allowedIpRanges : null)
+                ? DecisionMetrics.Decision.ALLOW
+                : DecisionMetrics.Decision.DENY;
+    }
 
-            // Try X-Real-IP header (alternative proxy header)
-            String realIp = context.getHttpRequest().getHttpHeaders().getHeaderString("X-Real-IP");
-            if (realIp != null && !realIp.trim().isEmpty()) {
-                logger.debug("Client IP from X-Real-IP: {}", realIp);
-                return realIp.trim();
-            }
+    /**
+     * @return the compiled ranges of the profile, empty if it has none
+     */
+    CompiledAllowlist getProfileAllowlist() {
+        return profileAllowlist;
+    }
 
-            // Fall back to remote address
-            String remoteAddr = context.getConnection().getRemoteAddr();
-            if (remoteAddr != null && !remoteAddr.trim().isEmpty()) {
-                logger.debug("Client IP from remote address: {}", remoteAddr);
-                return remoteAddr;
-            }
+    /**
+     * @return the compiled ranges of a client, shared with {@link #decide}
+     */
+    CompiledAllowlist getClientAllowlist(String realmId, String clientId, String allowedIpRanges) {
+        return allowlistCache.get(realmId, clientId, allowedIpRanges);
+    }
 
-            logger.warn("Could not determine client IP address from any source");
-            return null;
+    /**
+     * Check the client IP against the profile ranges, then against the client's own ranges.
+     *
+     * @param allowedIpRangesStr The client's allowed ranges attribute, null if it has none
+     */
+    private boolean isAllowed(String realmId, String clientId, int family, long[] address, String allowedIpRangesStr) {
+        if (profileAllowlist.contains(family, address[0], address[1])) {
+            return true;
+        }
+        if (allowedIpRangesStr == null) {
+            return false;
+        }
 
-        } catch (Exception e) {
-            logger.error("Error extracting client IP address", e);
-            return null;
+        if (decisionCache == null) {
+            return allowlistCache.get(realmId, clientId, allowedIpRangesStr)
+                    .contains(family, address[0], address[1]);
         }
+
+        // Read before the lookup, so a list reloaded meanwhile makes this decision stale
+        long listVersion = factory.getIpListVersion();
+        Boolean cached = decisionCache.get(clientId, family, address[0], address[1], allowedIpRangesStr, listVersion);
+        if (cached != null) {
+            return cached;
+        }
+
+        boolean allowed = allowlistCache.get(realmId, clientId, allowedIpRangesStr)
+                .contains(family, address[0], address[1]);
+        decisionCache.put(clientId, family, address[0], address[1], allowedIpRangesStr, listVersion, allowed);
+        return allowed;
     }
 
-}
+    @Override
+    public String getProviderId() {
+        return IpWhitelistExecutorFactory.PROVIDER_ID;
+    }
 
+}
@@ -1,33 +1,363 @@
 package fr.dossierfacile.keycloak.executor;
 
 import org.keycloak.Config;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.clientpolicy.ClientPolicyEvent;
 import org.keycloak.services.clientpolicy.executor.ClientPolicyExecutorProviderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class IpWhitelistExecutorFactory implements ClientPolicyExecutorProviderFactory {
+    private static final Logger logger = LoggerFactory.getLogger(IpWhitelistExecutorFactory.class);
 
     public static final String PROVIDER_ID = "df-ip-whitelist-client";
 
+    public static final String ALLOWED_IP_RANGES = "allowed-ip-ranges";
+    public static final String EVENTS = "events";
+    public static final String DECISION_CACHE_SIZE = "decision-cache-size";
+    public static final String DECISION_CACHE_TTL = "decision-cache-ttl";
+    public static final String DENY_BURST = "deny-burst";
+    public static final String DENY_REFILL_PER_MINUTE = "deny-refill-per-minute";
+
+    // Distinct profile range sets kept compiled, far more than the profiles of a deployment
+    private static final int MAX_PROFILE_ALLOWLISTS = 256;
+
+    private static final Set<ClientPolicyEvent> DEFAULT_EVENTS =
+            Collections.unmodifiableSet(EnumSet.of(ClientPolicyEvent.TOKEN_REQUEST, ClientPolicyEvent.SERVICE_ACCOUNT_TOKEN_REQUEST));
+
+    private static final List<ProviderConfigProperty> CONFIG_PROPERTIES = List.of(
+            new ProviderConfigProperty(ALLOWED_IP_RANGES, "Allowed IP ranges",
+                    "CIDR ranges allowed for every client of the profile, in addition to the client's allowed.ip.ranges attribute.",
+                    ProviderConfigProperty.MULTIVALUED_STRING_TYPE, null),
+            eventsProperty(),
+            new ProviderConfigProperty(DECISION_CACHE_SIZE, "Decision cache size",
+                    "Number of (client, IP) decisions kept in memory for repeat callers. 0 disables the cache.",
+                    ProviderConfigProperty.STRING_TYPE, "0"),
+            new ProviderConfigProperty(DECISION_CACHE_TTL, "Decision cache TTL",
+                    "Time to live of a cached decision, in seconds.",
+                    ProviderConfigProperty.STRING_TYPE, String.valueOf(DecisionCache.DEFAULT_TTL_SECONDS)),
+            new ProviderConfigProperty(DENY_BURST, "Denials before throttling",
+                    "Number of denied requests from an IP to a client before its denied requests are rejected with 429 and no longer logged, "
+                            + "between 1 and " + DeniedCallerThrottle.MAX_BURST + ". Requires trusted proxies. 0 disables throttling.",
+                    ProviderConfigProperty.STRING_TYPE, "0"),
+            new ProviderConfigProperty(DENY_REFILL_PER_MINUTE, "Denials forgiven per minute",
+                    "Number of denied requests of an IP forgiven per minute, 0 or more. 0 never forgives them.",
+                    ProviderConfigProperty.STRING_TYPE, String.valueOf(DeniedCallerThrottle.DEFAULT_REFILL_PER_MINUTE)));
+
+    private AllowlistCache allowlistCache;
+    private ClientIpResolver clientIpResolver;
+    private IpListRegistry ipLists;
+    private AuditLog auditLog;
+    private AllowlistWarmUp warmUp;
+    private AllowlistInvalidator invalidator;
+    private final DecisionMetrics metrics = new DecisionMetrics();
+    private final AllowlistInternPool internPool = new AllowlistInternPool();
+    // Decision caches shared by the executors with the same settings, keyed by size and TTL
+    private final Map<Long, DecisionCache> decisionCaches = new ConcurrentHashMap<>();
+    // Throttles shared by the executors with the same thresholds, keyed by burst and refill rate
+    private final Map<Long, DeniedCallerThrottle> throttles = new ConcurrentHashMap<>();
+    private final AtomicBoolean throttleRefused = new AtomicBoolean();
+    // Profile ranges, compiled once and shared by the profiles with the same ranges
+    private final Map<String, CompiledAllowlist> profileAllowlists = new ConcurrentHashMap<>();
+
     @Override
     public IpWhitelistExecutor create(KeycloakSession session) {
-        return new IpWhitelistExecutor(session);
+        return new IpWhitelistExecutor(session, this);
     }
 
     @Override
     public void init(Config.Scope config) {
+        String ipListDirectory = config.get("ipListDirectory");
+        if (ipListDirectory != null && !ipListDirectory.isBlank()) {
+            ipLists = createIpListRegistry(Paths.get(ipListDirectory));
+        }
+        allowlistCache = new AllowlistCache(config.getInt("allowlistCacheSize", AllowlistCache.DEFAULT_MAX_SIZE), ipLists, internPool);
+        invalidator = new AllowlistInvalidator(allowlistCache, decisionCaches.values());
+
+        CompiledAllowlist trustedProxies = CompiledAllowlist.compile(config.get("trustedProxies"));
+        clientIpResolver = new ClientIpResolver(trustedProxies, config.get("forwardedHeader", ClientIpResolver.X_FORWARDED_FOR));
+        if (trustedProxies.size() > 0) {
+            logger.info("Only the {} header is trusted, from {} proxy ranges", clientIpResolver.getForwardedHeader(),
+                    trustedProxies.size());
+        } else {
+            logger.warn("No trusted proxies configured, the first X-Forwarded-For entry is used as client IP");
+        }
+
+        String auditDirectory = config.get("auditDirectory");
+        if (auditDirectory != null && !auditDirectory.isBlank()) {
+            auditLog = createAuditLog(Paths.get(auditDirectory), config);
+        }
+
+        if (config.getBoolean("warmUp", false)) {
+            warmUp = new AllowlistWarmUp(allowlistCache,
+                    config.getInt("warmUpParallelism", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                    AllowlistWarmUp.DEFAULT_VALIDATION_ITERATIONS);
+        }
+    }
+
+    private static AuditLog createAuditLog(Path directory, Config.Scope config) {
+        AuditLog log = new AuditLog(directory,
+                config.getInt("auditBufferSize", AuditLog.DEFAULT_BUFFER_SIZE),
+                Double.parseDouble(config.get("auditAllowSampleRate", String.valueOf(AuditLog.DEFAULT_ALLOW_SAMPLE_RATE))),
+                config.getLong("auditMaxFileSize", AuditLog.DEFAULT_MAX_FILE_SIZE),
+                config.getInt("auditMaxFiles", AuditLog.DEFAULT_MAX_FILES));
+        try {
+            log.start();
+            return log;
+        } catch (IOException e) {
+            logger.error("Cannot write IP whitelist audit records to {}, decisions are logged instead", directory, e);
+            return null;
+        }
+    }
+
+    private static IpListRegistry createIpListRegistry(Path directory) {
+        try {
+            IpListRegistry registry = new IpListRegistry(directory);
+            try {
+                registry.startWatching();
+            } catch (IOException e) {
+                logger.error("Cannot watch IP list directory {}, list files will not be reloaded", directory, e);
+            }
+            return registry;
+        } catch (IOException e) {
+            logger.error("Cannot enable IP list files from {}", directory, e);
+            return null;
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        // Once the database is ready, join the cluster and warm up the allowlists.
+        // Drop cached allowlists and decisions once a client or realm change is committed, on every node
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                connectCluster(((PostMigrationEvent) event).getFactory());
+                if (warmUp != null) {
+                    warmUp.start(((PostMigrationEvent) event).getFactory());
+                }
+            } else if (event instanceof ClientModel.ClientUpdatedEvent) {
+                ClientModel client = ((ClientModel.ClientUpdatedEvent) event).getUpdatedClient();
+                String realmId = client.getRealm().getId();
+                String clientId = client.getId();
+                afterCommit(((ClientModel.ClientUpdatedEvent) event).getKeycloakSession(),
+                        () -> invalidator.clientChanged(realmId, clientId));
+            } else if (event instanceof ClientModel.ClientRemovedEvent) {
+                ClientModel client = ((ClientModel.ClientRemovedEvent) event).getClient();
+                String realmId = client.getRealm().getId();
+                String realmName = client.getRealm().getName();
+                String id = client.getId();
+                String clientId = client.getClientId();
+                afterCommit(((ClientModel.ClientRemovedEvent) event).getKeycloakSession(), () -> {
+                    invalidator.clientRemoved(realmId, id);
+                    metrics.removeClient(realmName, clientId);
+                });
+            } else if (event instanceof RealmModel.RealmRemovedEvent) {
+                RealmModel realm = ((RealmModel.RealmRemovedEvent) event).getRealm();
+                String realmId = realm.getId();
+                String realmName = realm.getName();
+                afterCommit(((RealmModel.RealmRemovedEvent) event).getKeycloakSession(), () -> {
+                    invalidator.realmRemoved(realmId);
+                    metrics.removeRealm(realmName);
+                });
+            }
+        });
+    }
+
+    /**
+     * Run a task once the transaction of the session is committed, so that the other nodes
+     * reload the committed client, and nothing if it is rolled back.
+     */
+    private static void afterCommit(KeycloakSession session, Runnable task) {
+        if (session == null || !session.getTransactionManager().isActive()) {
+            task.run();
+            return;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                task.run();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation") // ClusterProvider has no public replacement, see ClusterInvalidationBus
+    private void connectCluster(KeycloakSessionFactory factory) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+                if (cluster != null) {
+                    invalidator.connect(new ClusterInvalidationBus(cluster));
+                    logger.info("Client changes are propagated to the other nodes of the cluster");
+                } else {
+                    logger.info("No cluster provider, client changes only invalidate the local caches");
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("Cannot join the cluster, client changes only invalidate the local caches", e);
+        }
+    }
+
+    AllowlistCache getAllowlistCache() {
+        return allowlistCache;
+    }
+
+    /**
+     * @return the version of the IP list files, 0 if they are disabled
+     */
+    long getIpListVersion() {
+        return ipLists != null ? ipLists.getVersion() : 0;
+    }
+
+    ClientIpResolver getClientIpResolver() {
+        return clientIpResolver;
+    }
+
+    /**
+     * @return the decision cache shared by the executors configured with this size and TTL
+     */
+    DecisionCache getDecisionCache(int size, int ttlSeconds) {
+        return decisionCaches.computeIfAbsent((long) size << 32 | ttlSeconds, key -> new DecisionCache(size, ttlSeconds));
+    }
+
+    /**
+     * Return the throttle shared by the executors configured with these thresholds. Values out
+     * of range are clamped, with a warning logged once for each configuration.
+     *
+     * @return the throttle, null if no trusted proxies are configured
+     */
+    DeniedCallerThrottle getThrottle(int burst, int refillPerMinute) {
+        if (!clientIpResolver.hasTrustedProxies()) {
+            // The caller chooses its X-Forwarded-For address, and could get any address throttled
+            if (throttleRefused.compareAndSet(false, true)) {
+                logger.error("{} is ignored: throttling requires trusted proxies, otherwise callers choose the throttled address",
+                        DENY_BURST);
+            }
+            return null;
+        }
+        return throttles.computeIfAbsent((long) burst << 32 | (refillPerMinute & 0xFFFFFFFFL), key -> {
+            int clampedBurst = Math.min(Math.max(burst, 1), DeniedCallerThrottle.MAX_BURST);
+            int clampedRefill = Math.max(refillPerMinute, 0);
+            if (clampedBurst != burst || clampedRefill != refillPerMinute) {
+                logger.warn("{}={} and {}={} are out of range, using {} and {}", DENY_BURST, burst, DENY_REFILL_PER_MINUTE,
+                        refillPerMinute, clampedBurst, clampedRefill);
+            }
+            return new DeniedCallerThrottle(clampedBurst, clampedRefill);
+        });
+    }
+
+    /**
+     * @return the compiled profile ranges, shared by the profiles with the same ranges
+     */
+    CompiledAllowlist getProfileAllowlist(List<String> allowedRanges) {
+        if (allowedRanges == null || allowedRanges.isEmpty()) {
+            return CompiledAllowlist.compile(null);
+        }
+        String key = String.join(",", allowedRanges);
+        CompiledAllowlist allowlist = profileAllowlists.get(key);
+        if (allowlist != null) {
+            return allowlist;
+        }
+        if (profileAllowlists.size() >= MAX_PROFILE_ALLOWLISTS) {
+            // Every edit of a profile adds its new ranges: drop them all, the ranges in use are compiled again once
+            profileAllowlists.clear();
+        }
+        return profileAllowlists.computeIfAbsent(key, ranges -> CompiledAllowlist.compile(ranges, ipLists, internPool));
+    }
+
+    /**
+     * @return the events to check, the token requests if none is configured or none of
+     * the configured ones is known, so that a typo never disables the check
+     */
+    Set<ClientPolicyEvent> getEvents(List<String> eventNames) {
+        if (eventNames == null || eventNames.isEmpty()) {
+            return DEFAULT_EVENTS;
+        }
+        Set<ClientPolicyEvent> events = EnumSet.noneOf(ClientPolicyEvent.class);
+        for (String eventName : eventNames) {
+            try {
+                events.add(ClientPolicyEvent.valueOf(eventName.trim()));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown client policy event: {}", eventName);
+            }
+        }
+        if (events.isEmpty()) {
+            logger.error("No known client policy event in {}, the token requests are checked instead: {}", EVENTS, eventNames);
+            return DEFAULT_EVENTS;
+        }
+        return events;
+    }
+
+    /**
+     * @return the decision metrics of all executors created by this factory
+     */
+    public DecisionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the audit trail of the decisions, null if it is not enabled
+     */
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * @return the pool of matchers shared by the allowlists of all executors
+     */
+    public AllowlistInternPool getInternPool() {
+        return internPool;
     }
 
     @Override
     public void close() {
+        if (warmUp != null) {
+            warmUp.close();
+        }
+        if (allowlistCache != null) {
+            allowlistCache.clear();
+        }
+        decisionCaches.clear();
+        throttles.clear();
+        profileAllowlists.clear();
+        internPool.clear();
+        if (ipLists != null) {
+            ipLists.close();
+        }
+        if (auditLog != null) {
+            auditLog.close();
+        }
+    }
+
+    private static ProviderConfigProperty eventsProperty() {
+        ProviderConfigProperty property = new ProviderConfigProperty(EVENTS, "Events",
+                "Client policy events on which the client IP is checked.",
+                ProviderConfigProperty.MULTIVALUED_LIST_TYPE, DEFAULT_EVENTS.stream().map(Enum::name).toList());
+        property.setOptions(Arrays.stream(ClientPolicyEvent.values()).map(Enum::name).toList());
+        return property;
     }
 
     @Override
@@ -37,11 +367,15 @@ public class IpWhitelistExecutorFactory implements ClientPolicyExecutorProviderF
 
     @Override
     public String getHelpText() {
-        return "On authorization endpoint and token endpoint, this executor checks whether the client is confidential client. If not, it denies its request.";
+        return "On the configured events (token requests by default), this executor checks the client IP address against "
+                + "the profile's allowed IP ranges and the client's allowed.ip.ranges attribute, and denies the request if it "
+                + "matches neither. Decisions can be cached for repeat callers. Behind trusted proxies, an IP denied "
+                + "repeatedly by a client can have its further denials answered with 429 and no longer logged; allowed "
+                + "requests are never throttled.";
     }
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        return Collections.emptyList();
+        return CONFIG_PROPERTIES;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,62 @@
+package fr.dossierfacile.keycloak.executor;
+
+/**
+ * Prefix matcher scanning a flat array of network/mask pairs.
+ * <p>
+ * This is the cheapest structure for the short lists most clients have.
+ */
+public final class LinearPrefixMatcher implements PrefixMatcher {
+
+    // Network and mask of prefix i are stored at 2i (high bits) and 2i + 1 (low bits)
+    private final long[] networks;
+    private final long[] masks;
+
+    /**
+     * @param his     High 64 bits of each network
+     * @param los     Low 64 bits of each network
+     * @param lengths Prefix length of each network
+     * @param count   Number of prefixes to read from the arrays
+     */
+    public LinearPrefixMatcher(long[] his, long[] los, int[] lengths, int count) {
+        this.networks = new long[2 * count];
+        this.masks = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            long maskHi = PrefixMatcher.maskHi(lengths[i]);
+            long maskLo = PrefixMatcher.maskLo(lengths[i]);
+            networks[2 * i] = his[i] & maskHi;
+            networks[2 * i + 1] = los[i] & maskLo;
+            masks[2 * i] = maskHi;
+            masks[2 * i + 1] = maskLo;
+        }
+    }
+
+    @Override
+    public boolean contains(long hi, long lo) {
+        for (int i = 0; i < networks.length; i += 2) {
+            if ((hi & masks[i]) == networks[i] && (lo & masks[i + 1]) == networks[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int matchLength(long hi, long lo) {
+        for (int i = 0; i < networks.length; i += 2) {
+            if ((hi & masks[i]) == networks[i] && (lo & masks[i + 1]) == networks[i + 1]) {
+                return Long.bitCount(masks[i]) + Long.bitCount(masks[i + 1]);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return networks.length / 2;
+    }
+
+    @Override
+    public long retainedBytes() {
+        return 24 + PrefixMatcher.arrayBytes(networks.length, 8) + PrefixMatcher.arrayBytes(masks.length, 8);
+    }
+}
@@ -0,0 +1,284 @@
+package fr.dossierfacile.keycloak.executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only, memory-mapped list of IP ranges compiled from an external list file.
+ * <p>
+ * The text file holds CIDR ranges separated by commas, spaces or new lines, with
+ * {@code #} comments. It is normalized by {@link CidrNormalizer} into sorted, disjoint
+ * intervals and written in a compact binary format:
+ * <pre>
+ * int magic, int version, int ipv4 interval count, int ipv6 interval count, int range count, int reserved
+ * ipv4 intervals: int start, int end (unsigned)
+ * ipv6 intervals: long start hi, long start lo, long end hi, long end lo
+ * </pre>
+ * The binary file is then mapped, and lookups binary-search the mapped buffer directly,
+ * without materializing any object.
+ */
+public final class MappedIpList {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedIpList.class);
+
+    private static final int MAGIC = 0x44464950; // "DFIP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int IPV4_INTERVAL_SIZE = 8;
+    private static final int IPV6_INTERVAL_SIZE = 32;
+
+    /**
+     * List without any range, used while a file is missing.
+     */
+    public static final MappedIpList EMPTY = new MappedIpList(ByteBuffer.allocate(0), 0, 0, 0);
+
+    private final ByteBuffer buffer;
+    private final int ipv4Count;
+    private final int ipv6Count;
+    private final int rangeCount;
+    private final int ipv6Offset;
+
+    private MappedIpList(ByteBuffer buffer, int ipv4Count, int ipv6Count, int rangeCount) {
+        this.buffer = buffer;
+        this.ipv4Count = ipv4Count;
+        this.ipv6Count = ipv6Count;
+        this.rangeCount = rangeCount;
+        this.ipv6Offset = HEADER_SIZE + ipv4Count * IPV4_INTERVAL_SIZE;
+    }
+
+    /**
+     * Compile a text list file into the binary format.
+     *
+     * @param source The text list file
+     * @param target The binary file to write
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void compile(Path source, Path target) throws IOException {
+        Ranges ipv4 = new Ranges();
+        Ranges ipv6 = new Ranges();
+        long[] cidr = new long[3];
+        int invalid = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                int end = comment < 0 ? line.length() : comment;
+                int start = 0;
+                while (start < end) {
+                    int entryEnd = start;
+                    while (entryEnd < end && !isSeparator(line.charAt(entryEnd))) {
+                        entryEnd++;
+                    }
+                    if (entryEnd > start) {
+                        int family = IpAddressParser.parseCidr(line, start, entryEnd, cidr);
+                        if (family == IpAddressParser.INVALID_FAMILY) {
+                            if (invalid++ < 10) {
+                                logger.warn("Invalid CIDR notation in {}: {}", source.getFileName(), line.substring(start, entryEnd));
+                            }
+                        } else {
+                            (family == IpAddressParser.IPV4 ? ipv4 : ipv6).add(cidr);
+                        }
+                    }
+                    start = entryEnd + 1;
+                }
+            }
+        }
+        if (invalid > 0) {
+            logger.warn("{} invalid CIDR entries skipped in {}", invalid, source.getFileName());
+        }
+
+        CidrNormalizer.Result normalizedIpv4 = ipv4.normalize();
+        CidrNormalizer.Result normalizedIpv6 = ipv6.normalize();
+        int ipv4Count = normalizedIpv4.intervalCount();
+        int ipv6Count = normalizedIpv6.intervalCount();
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + ipv4Count * IPV4_INTERVAL_SIZE + ipv6Count * IPV6_INTERVAL_SIZE);
+        out.putInt(MAGIC).putInt(VERSION).putInt(ipv4Count).putInt(ipv6Count).putInt(ipv4.count + ipv6.count).putInt(0);
+        long[] intervals = normalizedIpv4.intervals();
+        for (int i = 0; i < ipv4Count; i++) {
+            out.putInt((int) (intervals[4 * i] >>> 32)).putInt((int) (intervals[4 * i + 2] >>> 32));
+        }
+        intervals = normalizedIpv6.intervals();
+        for (int i = 0; i < 4 * ipv6Count; i++) {
+            out.putLong(intervals[i]);
+        }
+        out.flip();
+
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+
+    /**
+     * Map a binary list file. The mapping stays valid after the file is deleted.
+     *
+     * @param binary The binary file written by {@link #compile}
+     * @return the mapped list
+     * @throws IOException if the file cannot be mapped or is not a valid list
+     */
+    public static MappedIpList map(Path binary) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a compiled IP list: " + binary);
+        }
+        int ipv4Count = buffer.getInt(8);
+        int ipv6Count = buffer.getInt(12);
+        if (ipv4Count < 0 || ipv6Count < 0
+                || buffer.capacity() != HEADER_SIZE + (long) ipv4Count * IPV4_INTERVAL_SIZE + (long) ipv6Count * IPV6_INTERVAL_SIZE) {
+            throw new IOException("Truncated compiled IP list: " + binary);
+        }
+        return new MappedIpList(buffer, ipv4Count, ipv6Count, buffer.getInt(16));
+    }
+
+    /**
+     * Check if an already parsed IP address is within the list.
+     *
+     * @param family The family returned by {@link IpAddressParser#parseAddress}
+     * @param hi     Upper 64 bits of the address
+     * @param lo     Lower 64 bits of the address
+     * @return true if the IP is within any of the ranges, false otherwise
+     */
+    public boolean contains(int family, long hi, long lo) {
+        if (family == IpAddressParser.IPV4) {
+            int address = (int) (hi >>> 32);
+            int index = findIpv4(address);
+            return index >= 0 && Integer.compareUnsigned(address, buffer.getInt(HEADER_SIZE + index * IPV4_INTERVAL_SIZE + 4)) <= 0;
+        }
+        if (family != IpAddressParser.IPV6) {
+            return false;
+        }
+        int index = findIpv6(hi, lo);
+        if (index < 0) {
+            return false;
+        }
+        int offset = ipv6Offset + index * IPV6_INTERVAL_SIZE;
+        return CidrNormalizer.compareUnsigned(hi, lo, buffer.getLong(offset + 16), buffer.getLong(offset + 24)) <= 0;
+    }
+
+    /**
+     * Find the largest CIDR block of the list that contains an address.
+     *
+     * @param family The family returned by {@link IpAddressParser#parseAddress}
+     * @param hi     Upper 64 bits of the address
+     * @param lo     Lower 64 bits of the address
+     * @return the length of the block, -1 if the address is not within the list
+     */
+    public int matchLength(int family, long hi, long lo) {
+        if (family == IpAddressParser.IPV4) {
+            int index = findIpv4((int) (hi >>> 32));
+            if (index < 0) {
+                return -1;
+            }
+            long start = Integer.toUnsignedLong(buffer.getInt(HEADER_SIZE + index * IPV4_INTERVAL_SIZE));
+            long end = Integer.toUnsignedLong(buffer.getInt(HEADER_SIZE + index * IPV4_INTERVAL_SIZE + 4));
+            return PrefixMatcher.largestBlock(hi, lo, start << 32, 0, end << 32 | 0xFFFFFFFFL, -1L);
+        }
+        if (family != IpAddressParser.IPV6) {
+            return -1;
+        }
+        int index = findIpv6(hi, lo);
+        if (index < 0) {
+            return -1;
+        }
+        int offset = ipv6Offset + index * IPV6_INTERVAL_SIZE;
+        return PrefixMatcher.largestBlock(hi, lo, buffer.getLong(offset), buffer.getLong(offset + 8),
+                buffer.getLong(offset + 16), buffer.getLong(offset + 24));
+    }
+
+    /**
+     * @return the index of the last IPv4 interval starting at or before the address, -1 if there is none
+     */
+    private int findIpv4(int address) {
+        int low = 0;
+        int high = ipv4Count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Integer.compareUnsigned(buffer.getInt(HEADER_SIZE + mid * IPV4_INTERVAL_SIZE), address) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return the index of the last IPv6 interval starting at or before the address, -1 if there is none
+     */
+    private int findIpv6(long hi, long lo) {
+        int low = 0;
+        int high = ipv6Count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = ipv6Offset + mid * IPV6_INTERVAL_SIZE;
+            if (CidrNormalizer.compareUnsigned(buffer.getLong(offset), buffer.getLong(offset + 8), hi, lo) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return the number of valid ranges in the source file, before merging
+     */
+    public int rangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * @return the number of intervals in the list, after merging
+     */
+    public int intervalCount() {
+        return ipv4Count + ipv6Count;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
+    /**
+     * Growable ranges of one address family.
+     */
+    private static final class Ranges {
+        private long[] his = new long[64];
+        private long[] los = new long[64];
+        private int[] lengths = new int[64];
+        private int count;
+
+        void add(long[] cidr) {
+            if (count == his.length) {
+                his = Arrays.copyOf(his, 2 * count);
+                los = Arrays.copyOf(los, 2 * count);
+                lengths = Arrays.copyOf(lengths, 2 * count);
+            }
+            his[count] = cidr[0];
+            los[count] = cidr[1];
+            lengths[count] = (int) cidr[2];
+            count++;
+        }
+
+        CidrNormalizer.Result normalize() {
+            return CidrNormalizer.normalize(his, los, lengths, count);
+        }
+    }
+}
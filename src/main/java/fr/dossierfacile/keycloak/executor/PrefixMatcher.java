@@ -0,0 +1,88 @@
+package fr.dossierfacile.keycloak.executor;
+
+/**
+ * Compiled, immutable set of CIDR prefixes of a single address family.
+ * <p>
+ * Addresses are passed as two 64-bit halves. IPv6 addresses use both halves,
+ * IPv4 addresses are stored in the upper 32 bits of {@code hi} with {@code lo} set to 0,
+ * so that a /n IPv4 prefix is also a /n prefix of the 128-bit key.
+ */
+public interface PrefixMatcher {
+
+    /**
+     * Check if an address is within any of the prefixes.
+     *
+     * @param hi The high 64 bits of the address
+     * @param lo The low 64 bits of the address
+     * @return true if a prefix contains the address
+     */
+    boolean contains(long hi, long lo);
+
+    /**
+     * Find the prefix containing an address. Matchers built from intervals return the largest
+     * CIDR block of the interval that contains the address.
+     *
+     * @param hi The high 64 bits of the address
+     * @param lo The low 64 bits of the address
+     * @return the length of the prefix containing the address, -1 if there is none
+     */
+    int matchLength(long hi, long lo);
+
+    /**
+     * @return the number of prefixes this matcher was built from
+     */
+    int size();
+
+    /**
+     * @return an estimate of the heap retained by this matcher, in bytes
+     */
+    long retainedBytes();
+
+    /**
+     * @return an estimate of the heap used by an array, in bytes
+     */
+    static long arrayBytes(int length, int elementSize) {
+        // 16 bytes of header, aligned to 8 bytes
+        return (16L + (long) length * elementSize + 7) & ~7L;
+    }
+
+    /**
+     * Convert an IPv4 address, as returned by {@link IpAddressParser#parseIpv4}, to the high half of a key.
+     */
+    static long ipv4Key(long ipv4) {
+        return ipv4 << 32;
+    }
+
+    /**
+     * Find the largest CIDR block that contains an address and fits in an interval.
+     *
+     * @return the length of the block, -1 if the interval does not contain the address
+     */
+    static int largestBlock(long hi, long lo, long startHi, long startLo, long endHi, long endLo) {
+        if (CidrNormalizer.compareUnsigned(hi, lo, startHi, startLo) < 0 || CidrNormalizer.compareUnsigned(hi, lo, endHi, endLo) > 0) {
+            return -1;
+        }
+        for (int length = 0; ; length++) {
+            long blockHi = hi & maskHi(length);
+            long blockLo = lo & maskLo(length);
+            if (CidrNormalizer.compareUnsigned(blockHi, blockLo, startHi, startLo) >= 0
+                    && CidrNormalizer.compareUnsigned(blockHi | ~maskHi(length), blockLo | ~maskLo(length), endHi, endLo) <= 0) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * @return the mask of the high 64 bits for a prefix length between 0 and 128
+     */
+    static long maskHi(int prefixLength) {
+        return prefixLength == 0 ? 0 : prefixLength >= 64 ? -1L : -1L << (64 - prefixLength);
+    }
+
+    /**
+     * @return the mask of the low 64 bits for a prefix length between 0 and 128
+     */
+    static long maskLo(int prefixLength) {
+        return prefixLength <= 64 ? 0 : -1L << (128 - prefixLength);
+    }
+}
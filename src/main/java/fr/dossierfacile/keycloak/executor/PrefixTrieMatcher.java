@@ -0,0 +1,235 @@
+package fr.dossierfacile.keycloak.executor;
+
+import java.util.Arrays;
+
+/**
+ * Prefix matcher backed by a path-compressed binary trie (Patricia trie).
+ * <p>
+ * Nodes are stored in parallel primitive arrays rather than as objects. Each node
+ * holds a prefix (key and length); internal nodes always have two children and
+ * leaves are the allowed prefixes. Since any containing prefix is enough to allow
+ * an address, a prefix covered by a shorter one is never stored. A lookup walks
+ * at most one node per bit of the address, so its cost depends on the address
+ * width (32 or 128 bits) and not on the number of prefixes.
+ */
+public final class PrefixTrieMatcher implements PrefixMatcher {
+
+    private static final int NONE = -1;
+
+    private final long[] keyHi;
+    private final long[] keyLo;
+    private final int[] lengths;
+    private final int[] child0;
+    private final int[] child1;
+    private final int size;
+
+    private PrefixTrieMatcher(long[] keyHi, long[] keyLo, int[] lengths, int[] child0, int[] child1, int size) {
+        this.keyHi = keyHi;
+        this.keyLo = keyLo;
+        this.lengths = lengths;
+        this.child0 = child0;
+        this.child1 = child1;
+        this.size = size;
+    }
+
+    /**
+     * Build a trie from a list of prefixes.
+     *
+     * @param his     High 64 bits of each network
+     * @param los     Low 64 bits of each network
+     * @param lengths Prefix length of each network, between 0 and 128
+     * @param count   Number of prefixes to read from the arrays
+     * @return the trie
+     */
+    public static PrefixTrieMatcher build(long[] his, long[] los, int[] lengths, int count) {
+        Builder builder = new Builder(Math.max(1, 2 * count));
+        for (int i = 0; i < count; i++) {
+            int length = lengths[i];
+            builder.insert(his[i] & PrefixMatcher.maskHi(length), los[i] & PrefixMatcher.maskLo(length), length);
+        }
+        return builder.compact(count);
+    }
+
+    @Override
+    public boolean contains(long hi, long lo) {
+        int node = lengths.length == 0 ? NONE : 0;
+        while (node != NONE) {
+            int length = lengths[node];
+            if ((hi & PrefixMatcher.maskHi(length)) != keyHi[node] || (lo & PrefixMatcher.maskLo(length)) != keyLo[node]) {
+                return false;
+            }
+            if (child0[node] == NONE) {
+                return true;
+            }
+            node = bit(hi, lo, length) == 0 ? child0[node] : child1[node];
+        }
+        return false;
+    }
+
+    @Override
+    public int matchLength(long hi, long lo) {
+        int node = lengths.length == 0 ? NONE : 0;
+        while (node != NONE) {
+            int length = lengths[node];
+            if ((hi & PrefixMatcher.maskHi(length)) != keyHi[node] || (lo & PrefixMatcher.maskLo(length)) != keyLo[node]) {
+                return -1;
+            }
+            if (child0[node] == NONE) {
+                return length;
+            }
+            node = bit(hi, lo, length) == 0 ? child0[node] : child1[node];
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long retainedBytes() {
+        return 40 + 2 * PrefixMatcher.arrayBytes(keyHi.length, 8) + 3 * PrefixMatcher.arrayBytes(lengths.length, 4);
+    }
+
+    /**
+     * @return the number of nodes in the trie
+     */
+    public int nodeCount() {
+        return lengths.length;
+    }
+
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1;
+    }
+
+    private static int commonPrefixLength(long aHi, long aLo, long bHi, long bLo, int limit) {
+        long diff = aHi ^ bHi;
+        int common = diff != 0 ? Long.numberOfLeadingZeros(diff) : 64 + Long.numberOfLeadingZeros(aLo ^ bLo);
+        return Math.min(common, limit);
+    }
+
+    /**
+     * Mutable trie used during construction. Replaced subtrees are left in the arrays
+     * and dropped by {@link #compact}.
+     */
+    private static final class Builder {
+        private long[] keyHi;
+        private long[] keyLo;
+        private int[] lengths;
+        private int[] child0;
+        private int[] child1;
+        private int nodes;
+        private int root = NONE;
+
+        Builder(int capacity) {
+            keyHi = new long[capacity];
+            keyLo = new long[capacity];
+            lengths = new int[capacity];
+            child0 = new int[capacity];
+            child1 = new int[capacity];
+        }
+
+        void insert(long hi, long lo, int length) {
+            if (root == NONE) {
+                root = newNode(hi, lo, length, NONE, NONE);
+                return;
+            }
+
+            int parent = NONE;
+            int node = root;
+            while (true) {
+                int nodeLength = lengths[node];
+                int common = commonPrefixLength(hi, lo, keyHi[node], keyLo[node], Math.min(length, nodeLength));
+
+                if (common == nodeLength) {
+                    if (child0[node] == NONE) {
+                        // Already covered by this leaf
+                        return;
+                    }
+                    if (length == nodeLength) {
+                        // The new prefix covers the whole subtree
+                        child0[node] = NONE;
+                        child1[node] = NONE;
+                        return;
+                    }
+                    parent = node;
+                    node = bit(hi, lo, nodeLength) == 0 ? child0[node] : child1[node];
+                    continue;
+                }
+
+                int replacement;
+                if (common == length) {
+                    // The new prefix covers this node and its subtree
+                    replacement = newNode(hi, lo, length, NONE, NONE);
+                } else {
+                    int leaf = newNode(hi, lo, length, NONE, NONE);
+                    long splitHi = hi & PrefixMatcher.maskHi(common);
+                    long splitLo = lo & PrefixMatcher.maskLo(common);
+                    replacement = bit(hi, lo, common) == 0
+                            ? newNode(splitHi, splitLo, common, leaf, node)
+                            : newNode(splitHi, splitLo, common, node, leaf);
+                }
+
+                if (parent == NONE) {
+                    root = replacement;
+                } else if (child0[parent] == node) {
+                    child0[parent] = replacement;
+                } else {
+                    child1[parent] = replacement;
+                }
+                return;
+            }
+        }
+
+        /**
+         * Copy the nodes reachable from the root in depth-first order, so a lookup reads
+         * mostly forward in the arrays.
+         */
+        PrefixTrieMatcher compact(int size) {
+            int reachable = root == NONE ? 0 : count(root);
+            PrefixTrieMatcher trie = new PrefixTrieMatcher(new long[reachable], new long[reachable], new int[reachable],
+                    new int[reachable], new int[reachable], size);
+            if (root != NONE) {
+                copy(root, trie, new int[]{0});
+            }
+            return trie;
+        }
+
+        private int count(int node) {
+            return child0[node] == NONE ? 1 : 1 + count(child0[node]) + count(child1[node]);
+        }
+
+        private int copy(int node, PrefixTrieMatcher trie, int[] next) {
+            int index = next[0]++;
+            trie.keyHi[index] = keyHi[node];
+            trie.keyLo[index] = keyLo[node];
+            trie.lengths[index] = lengths[node];
+            if (child0[node] == NONE) {
+                trie.child0[index] = NONE;
+                trie.child1[index] = NONE;
+            } else {
+                trie.child0[index] = copy(child0[node], trie, next);
+                trie.child1[index] = copy(child1[node], trie, next);
+            }
+            return index;
+        }
+
+        private int newNode(long hi, long lo, int length, int zero, int one) {
+            if (nodes == lengths.length) {
+                int capacity = nodes * 2;
+                keyHi = Arrays.copyOf(keyHi, capacity);
+                keyLo = Arrays.copyOf(keyLo, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                child0 = Arrays.copyOf(child0, capacity);
+                child1 = Arrays.copyOf(child1, capacity);
+            }
+            keyHi[nodes] = hi;
+            keyLo[nodes] = lo;
+            lengths[nodes] = length;
+            child0[nodes] = zero;
+            child1[nodes] = one;
+            return nodes++;
+        }
+    }
+}
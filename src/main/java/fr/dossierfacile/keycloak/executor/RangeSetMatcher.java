@@ -0,0 +1,150 @@
+package fr.dossierfacile.keycloak.executor;
+
+/**
+ * Immutable matcher of a normalized set of ranges and list references.
+ * <p>
+ * This is the part of a {@link CompiledAllowlist} that only depends on the set of
+ * ranges, not on how the attribute was written, so it can be shared by every client
+ * with the same set through an {@link AllowlistInternPool}.
+ */
+public final class RangeSetMatcher {
+
+    private final PrefixMatcher ipv4;
+    private final PrefixMatcher ipv6;
+    private final IpListRegistry.ListReference[] lists;
+
+    RangeSetMatcher(PrefixMatcher ipv4, PrefixMatcher ipv6, IpListRegistry.ListReference[] lists) {
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+        this.lists = lists;
+    }
+
+    /**
+     * Check if an already parsed IP address is within any of the ranges.
+     *
+     * @param family The family returned by {@link IpAddressParser#parseAddress}
+     * @param hi     Upper 64 bits of the address
+     * @param lo     Lower 64 bits of the address
+     * @return true if the IP is within any of the ranges, false otherwise
+     */
+    public boolean contains(int family, long hi, long lo) {
+        if (family == IpAddressParser.IPV4) {
+            if (ipv4.contains(hi, 0)) {
+                return true;
+            }
+        } else if (family != IpAddressParser.IPV6) {
+            return false;
+        } else if (ipv6.contains(hi, lo)) {
+            return true;
+        }
+        for (IpListRegistry.ListReference list : lists) {
+            if (list.contains(family, hi, lo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the canonical prefix containing an address: the largest CIDR block of the set of
+     * ranges that contains it. It does not depend on how the ranges were written, so adjacent
+     * ranges (two /25) give a single block (a /24). This is slower than {@link #contains}
+     * and meant for diagnostics.
+     *
+     * @param family The family returned by {@link IpAddressParser#parseAddress}
+     * @param hi     Upper 64 bits of the address
+     * @param lo     Lower 64 bits of the address
+     * @return the matched prefix, null if the address is not within the ranges
+     */
+    public Match findMatch(int family, long hi, long lo) {
+        PrefixMatcher prefixes;
+        if (family == IpAddressParser.IPV4) {
+            prefixes = ipv4;
+            lo = 0;
+        } else if (family == IpAddressParser.IPV6) {
+            prefixes = ipv6;
+        } else {
+            return null;
+        }
+
+        int length = prefixes.matchLength(hi, lo);
+        if (length >= 0) {
+            length = widen(prefixes, hi, lo, length);
+            return new Match(family, hi & PrefixMatcher.maskHi(length), lo & PrefixMatcher.maskLo(length), length, null);
+        }
+        for (IpListRegistry.ListReference list : lists) {
+            length = list.get().matchLength(family, hi, lo);
+            if (length >= 0) {
+                return new Match(family, hi & PrefixMatcher.maskHi(length), lo & PrefixMatcher.maskLo(length), length,
+                        list.getName());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merge the matched prefix with its sibling while the sibling is covered by the other prefixes.
+     */
+    private static int widen(PrefixMatcher prefixes, long hi, long lo, int length) {
+        while (length > 0) {
+            int parent = length - 1;
+            long siblingHi = (hi & PrefixMatcher.maskHi(length)) ^ (parent < 64 ? 1L << (63 - parent) : 0);
+            long siblingLo = (lo & PrefixMatcher.maskLo(length)) ^ (parent >= 64 ? 1L << (127 - parent) : 0);
+            if (!covers(prefixes, siblingHi, siblingLo, length)) {
+                break;
+            }
+            length = parent;
+        }
+        return length;
+    }
+
+    /**
+     * @return true if the prefixes cover every address of a block
+     */
+    private static boolean covers(PrefixMatcher prefixes, long startHi, long startLo, int length) {
+        long endHi = startHi | ~PrefixMatcher.maskHi(length);
+        long endLo = startLo | ~PrefixMatcher.maskLo(length);
+        long hi = startHi;
+        long lo = startLo;
+        while (true) {
+            int found = prefixes.matchLength(hi, lo);
+            if (found < 0) {
+                return false;
+            }
+            long foundEndHi = hi | ~PrefixMatcher.maskHi(found);
+            long foundEndLo = lo | ~PrefixMatcher.maskLo(found);
+            if (CidrNormalizer.compareUnsigned(foundEndHi, foundEndLo, endHi, endLo) >= 0) {
+                return true;
+            }
+            // Next address after the found prefix, which is before the end of the block
+            lo = foundEndLo + 1;
+            hi = lo == 0 ? foundEndHi + 1 : foundEndHi;
+        }
+    }
+
+    /**
+     * @return an estimate of the heap retained by this matcher, in bytes
+     */
+    public long retainedBytes() {
+        return 24 + ipv4.retainedBytes() + ipv6.retainedBytes() + PrefixMatcher.arrayBytes(lists.length, 4);
+    }
+
+    /**
+     * Prefix of a set of ranges that contains an address.
+     *
+     * @param family {@link IpAddressParser#IPV4} or {@link IpAddressParser#IPV6}
+     * @param hi     Upper 64 bits of the network
+     * @param lo     Lower 64 bits of the network
+     * @param length The prefix length
+     * @param list   The name of the IP list file of the prefix, null for the ranges of the attribute
+     */
+    public record Match(int family, long hi, long lo, int length, String list) {
+
+        /**
+         * @return the prefix in CIDR notation
+         */
+        public String toCidr() {
+            return IpAddressFormatter.appendPrefix(new StringBuilder(43), family, hi, lo, length).toString();
+        }
+    }
+}
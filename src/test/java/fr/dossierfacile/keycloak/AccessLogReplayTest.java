@@ -0,0 +1,203 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.IpListRegistry;
+import fr.dossierfacile.keycloak.replay.AccessLogReplay;
+import fr.dossierfacile.keycloak.replay.RealmExport;
+import fr.dossierfacile.keycloak.replay.ReplayReport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AccessLogReplay.
+ */
+@DisplayName("Access Log Replay Tests")
+class AccessLogReplayTest {
+
+    private static final String EXPORT = """
+            [{"realm":"dossier-facile","clients":[
+              {"clientId":"partner","attributes":{"has.ip.restriction":"true","allowed.ip.ranges":"10.0.0.0/8,2001:db8::/32"}},
+              {"clientId":"unconfigured","attributes":{"has.ip.restriction":"true"}},
+              {"clientId":"public","attributes":{}}
+            ]},
+            {"realm":"other","clients":[
+              {"clientId":"partner","attributes":{"has.ip.restriction":"true","allowed.ip.ranges":"192.168.0.0/16"}}
+            ]}]
+            """;
+
+    @TempDir
+    Path directory;
+
+    private RealmExport export;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path file = directory.resolve("export.json");
+        Files.writeString(file, EXPORT);
+        export = RealmExport.read(file);
+    }
+
+    private static String line(String ip, String realm, String clientId) {
+        return ip + " - - [01/Jan/2024:12:00:00 +0000] \"POST /realms/" + realm
+                + "/protocol/openid-connect/token?client_id=" + clientId + "&grant_type=client_credentials HTTP/1.1\" 200 1234\n";
+    }
+
+    private static ReplayReport.ClientTally tally(ReplayReport report, String realm, String clientId) {
+        return report.getClients().entrySet().stream()
+                .filter(entry -> entry.getKey().realm().equals(realm) && entry.getKey().clientId().equals(clientId))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Test
+    @DisplayName("Should read the restricted clients of an export")
+    void testExport() {
+        assertEquals(2, export.getRealms().get("dossier-facile").size());
+        assertEquals("", export.getRealms().get("dossier-facile").get("unconfigured").allowedRanges());
+        assertEquals("192.168.0.0/16", export.getRealms().get("other").get("partner").allowedRanges());
+    }
+
+    @Test
+    @DisplayName("Should tally each line once across chunk boundaries")
+    void testChunks() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append(line("10.0." + (i % 256) + ".1", "dossier-facile", "partner"));
+            log.append(line("203.0.113." + (i % 3), "dossier-facile", "partner"));
+            log.append(line("192.168.1.1", "other", "partner"));
+            log.append(line("2001:db8::" + i, "dossier-facile", "partner"));
+            log.append(line("10.0.0.1", "dossier-facile", "public"));
+            log.append("garbage\r\n");
+        }
+        Path file = directory.resolve("access.log");
+        Files.writeString(file, log);
+
+        // Chunks far smaller than the file, and not aligned on lines
+        AccessLogReplay replay = new AccessLogReplay(export, Map.of(), null, Pattern.compile(AccessLogReplay.COMBINED_PATTERN), 997);
+        ReplayReport report = replay.replay(List.of(file, file));
+
+        assertEquals(12000, report.getLines());
+        assertEquals(4000, report.getSkipped());
+        ReplayReport.ClientTally partner = tally(report, "dossier-facile", "partner");
+        assertEquals(4000, partner.getAllowed());
+        assertEquals(2000, partner.getDenied());
+        assertEquals(Map.of("203.0.113.0", 668L, "203.0.113.1", 666L, "203.0.113.2", 666L), partner.getDeniedIps());
+        assertEquals(2000, tally(report, "other", "partner").getAllowed());
+    }
+
+    @Test
+    @DisplayName("Should replay proposed ranges in place of the exported ones")
+    void testOverrides() throws Exception {
+        Path file = directory.resolve("access.log");
+        Files.writeString(file, line("203.0.113.7", "dossier-facile", "partner")
+                + line("10.1.2.3", "dossier-facile", "partner")
+                + line("10.1.2.3", "dossier-facile", "unconfigured")
+                + line("10.1.2.3", "dossier-facile", "new-partner"));
+
+        AccessLogReplay replay = new AccessLogReplay(export, Map.of("partner", "203.0.113.0/24", "new-partner", "10.0.0.0/8"),
+                "dossier-facile", Pattern.compile(AccessLogReplay.COMBINED_PATTERN), AccessLogReplay.DEFAULT_CHUNK_SIZE);
+        ReplayReport report = replay.replay(List.of(file));
+
+        assertEquals(1, tally(report, "dossier-facile", "partner").getAllowed());
+        assertEquals(Map.of("10.1.2.3", 1L), tally(report, "dossier-facile", "partner").getDeniedIps());
+        assertEquals(1, tally(report, "dossier-facile", "unconfigured").getDenied());
+        assertEquals(1, tally(report, "dossier-facile", "new-partner").getAllowed());
+        assertNull(tally(report, "other", "new-partner"));
+    }
+
+    @Test
+    @DisplayName("Should resolve IP list files, and not count the requests of unresolved lists as denied")
+    void testIpLists() throws Exception {
+        Path lists = Files.createDirectory(directory.resolve("ip-lists"));
+        Files.writeString(lists.resolve("partner-egress"), "203.0.113.0/24\n");
+        Path file = directory.resolve("access.log");
+        Files.writeString(file, line("203.0.113.7", "dossier-facile", "partner")
+                + line("10.1.2.3", "dossier-facile", "partner")
+                + line("198.51.100.1", "dossier-facile", "partner")
+                + line("198.51.100.1", "dossier-facile", "missing"));
+        Map<String, String> overrides = Map.of("partner", "10.0.0.0/8,@file:partner-egress", "missing", "@file:missing-egress");
+
+        // Without directory, the list may allow anyone
+        ReplayReport report = new AccessLogReplay(export, overrides, "dossier-facile",
+                Pattern.compile(AccessLogReplay.COMBINED_PATTERN), AccessLogReplay.DEFAULT_CHUNK_SIZE).replay(List.of(file));
+        ReplayReport.ClientTally partner = tally(report, "dossier-facile", "partner");
+        assertEquals(1, partner.getAllowed());
+        assertEquals(0, partner.getDenied());
+        assertEquals(2, partner.getUnresolved());
+        assertEquals(List.of("@file:partner-egress"), partner.getUnresolvedReferences());
+
+        try (IpListRegistry registry = new IpListRegistry(lists)) {
+            report = new AccessLogReplay(export, overrides, "dossier-facile", Pattern.compile(AccessLogReplay.COMBINED_PATTERN),
+                    registry, AccessLogReplay.DEFAULT_CHUNK_SIZE).replay(List.of(file));
+        }
+        partner = tally(report, "dossier-facile", "partner");
+        assertEquals(2, partner.getAllowed());
+        assertEquals(Map.of("198.51.100.1", 1L), partner.getDeniedIps());
+        assertEquals(0, partner.getUnresolved());
+
+        // A missing file is not resolved either
+        ReplayReport.ClientTally missing = tally(report, "dossier-facile", "missing");
+        assertEquals(0, missing.getDenied());
+        assertEquals(1, missing.getUnresolved());
+        assertEquals(List.of("@file:missing-egress"), missing.getUnresolvedReferences());
+    }
+
+    @Test
+    @DisplayName("Should attribute token requests by the Basic authentication user")
+    void testBasicAuth() throws Exception {
+        Path file = directory.resolve("access.log");
+        Files.writeString(file, """
+                10.0.0.1 - partner [01/Jan/2024:12:00:00 +0000] "POST /realms/dossier-facile/protocol/openid-connect/token HTTP/1.1" 200 1234
+                203.0.113.7 - partner [01/Jan/2024:12:00:00 +0000] "POST /realms/dossier-facile/protocol/openid-connect/token HTTP/1.1" 401 56
+                10.0.0.1 - - [01/Jan/2024:12:00:00 +0000] "POST /realms/dossier-facile/protocol/openid-connect/token HTTP/1.1" 200 1234
+                10.0.0.1 - public [01/Jan/2024:12:00:00 +0000] "GET /realms/dossier-facile/account?client_id=partner HTTP/1.1" 200 1234
+                """);
+
+        AccessLogReplay replay = new AccessLogReplay(export, Map.of(), null, Pattern.compile(AccessLogReplay.COMBINED_PATTERN),
+                AccessLogReplay.DEFAULT_CHUNK_SIZE);
+        ReplayReport report = replay.replay(List.of(file));
+
+        // The query string wins over the user
+        assertEquals(2, tally(report, "dossier-facile", "partner").getAllowed());
+        assertEquals(Map.of("203.0.113.7", 1L), tally(report, "dossier-facile", "partner").getDeniedIps());
+        assertEquals(1, report.getUnattributed());
+        assertEquals(0, report.getSkipped());
+    }
+
+    @Test
+    @DisplayName("Should replay audit files")
+    void testAuditFormat() throws Exception {
+        Path file = directory.resolve("ip-whitelist-audit.jsonl");
+        Files.writeString(file, """
+                {"time":"2024-01-01T12:00:00.123Z","realm":"dossier-facile","clientId":"partner","ip":"203.0.113.7","decision":"deny"}
+                {"time":"2024-01-01T12:00:00.124Z","realm":"dossier-facile","clientId":"partner","ip":"10.0.0.1","decision":"allow"}
+                {"time":"2024-01-01T12:00:00.125Z","realm":"dossier-facile","clientId":"partner","ip":null,"decision":"missing_ip"}
+                """);
+
+        AccessLogReplay replay = new AccessLogReplay(export, Map.of("partner", "203.0.113.0/24"), null,
+                Pattern.compile(AccessLogReplay.AUDIT_PATTERN), AccessLogReplay.DEFAULT_CHUNK_SIZE);
+        ReplayReport report = replay.replay(List.of(file));
+
+        assertEquals(3, report.getLines());
+        assertEquals(1, report.getSkipped());
+        assertEquals(1, tally(report, "dossier-facile", "partner").getAllowed());
+        assertEquals(Map.of("10.0.0.1", 1L), tally(report, "dossier-facile", "partner").getDeniedIps());
+    }
+
+    @Test
+    @DisplayName("Should reject a pattern without the ip and client groups")
+    void testInvalidPattern() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new AccessLogReplay(export, Map.of(), null, Pattern.compile("(?<ip>\\S+)"), 1024));
+    }
+}
@@ -0,0 +1,87 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.AllowlistCache;
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AllowlistCache and CompiledAllowlist.
+ */
+@DisplayName("Allowlist Cache Tests")
+class AllowlistCacheTest {
+
+    @Test
+    @DisplayName("Should match the same IPs as IpValidationService")
+    void testCompiledAllowlistMatches() {
+        CompiledAllowlist allowlist = CompiledAllowlist.compile("192.168.1.0/24, 10.0.0.0/8,invalid-cidr,,192.168.1.0/33");
+
+        assertEquals(2, allowlist.size());
+        assertTrue(allowlist.matches("192.168.1.100"));
+        assertTrue(allowlist.matches(" 10.255.255.255 "));
+        assertFalse(allowlist.matches("192.168.2.100"));
+        assertFalse(allowlist.matches("8.8.8.8"));
+        assertFalse(allowlist.matches("invalid"));
+        assertFalse(allowlist.matches(null));
+
+        assertFalse(CompiledAllowlist.compile("").matches("10.0.0.1"));
+        assertTrue(CompiledAllowlist.compile("2001:db8::/32,10.0.0.0/8").matches("2001:db8::42"));
+        assertTrue(CompiledAllowlist.compile("2001:db8::/32,10.0.0.0/8").matches("::ffff:10.0.0.1"));
+        assertFalse(CompiledAllowlist.compile("2001:db8::/32,10.0.0.0/8").matches("2001:db9::42"));
+        assertTrue(CompiledAllowlist.compile("0.0.0.0/0").matches("203.0.113.1"));
+    }
+
+    @Test
+    @DisplayName("Should reuse compiled allowlists until the attribute changes")
+    void testCacheHitAndRecompile() {
+        AllowlistCache cache = new AllowlistCache(10);
+
+        CompiledAllowlist first = cache.get("realm", "client", "10.0.0.0/8");
+        assertSame(first, cache.get("realm", "client", "10.0.0.0/8"));
+
+        CompiledAllowlist updated = cache.get("realm", "client", "192.168.0.0/16");
+        assertNotSame(first, updated);
+        assertTrue(updated.matches("192.168.1.1"));
+        assertFalse(updated.matches("10.0.0.1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    @DisplayName("Should invalidate and evict entries")
+    void testInvalidateAndEvict() {
+        AllowlistCache cache = new AllowlistCache(2);
+
+        CompiledAllowlist first = cache.get("realm", "a", "10.0.0.0/8");
+        cache.invalidate("realm", "a");
+        assertNotSame(first, cache.get("realm", "a", "10.0.0.0/8"));
+
+        cache.get("realm", "b", "10.0.0.0/8");
+        cache.get("realm", "c", "10.0.0.0/8");
+        assertEquals(2, cache.size());
+
+        cache.invalidateRealm("realm");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    @DisplayName("Should evict the oldest live entry after an invalidation")
+    void testEvictAfterInvalidate() {
+        AllowlistCache cache = new AllowlistCache(2);
+
+        cache.get("realm", "a", "10.0.0.0/8");
+        CompiledAllowlist b = cache.get("realm", "b", "10.0.0.0/8");
+        cache.invalidate("realm", "a");
+        CompiledAllowlist c = cache.get("realm", "c", "10.0.0.0/8");
+        assertEquals(2, cache.size());
+
+        // The invalidated entry left no trace: b and c are still cached
+        assertSame(b, cache.get("realm", "b", "10.0.0.0/8"));
+        assertSame(c, cache.get("realm", "c", "10.0.0.0/8"));
+
+        cache.get("realm", "d", "10.0.0.0/8");
+        assertEquals(2, cache.size());
+        assertNotSame(b, cache.get("realm", "b", "10.0.0.0/8"));
+    }
+}
@@ -0,0 +1,77 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.AllowlistCache;
+import fr.dossierfacile.keycloak.executor.AllowlistInternPool;
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AllowlistInternPool.
+ */
+@DisplayName("Allowlist Intern Pool Tests")
+class AllowlistInternPoolTest {
+
+    @Test
+    @DisplayName("Should share one matcher between equivalent range sets")
+    void testSharing() {
+        AllowlistInternPool pool = new AllowlistInternPool();
+        CompiledAllowlist first = CompiledAllowlist.compile("10.0.0.0/8,192.168.1.0/24", null, pool);
+        // Other order, redundant and adjacent ranges: same set of addresses
+        CompiledAllowlist second = CompiledAllowlist.compile(" 192.168.1.0/25, 192.168.1.128/25,10.0.0.0/8,10.1.0.0/16", null, pool);
+        CompiledAllowlist other = CompiledAllowlist.compile("10.0.0.0/8", null, pool);
+
+        assertSame(first.getMatcher(), second.getMatcher());
+        assertNotSame(first.getMatcher(), other.getMatcher());
+        assertEquals(2, first.size());
+        assertEquals(4, second.size());
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertTrue(pool.getHitBytes() > 0);
+        assertEquals(first.getMatcher().retainedBytes() + other.getMatcher().retainedBytes(), pool.getPoolBytes());
+    }
+
+    @Test
+    @DisplayName("Should keep address families apart")
+    void testFamilies() {
+        AllowlistInternPool pool = new AllowlistInternPool();
+        CompiledAllowlist ipv4 = CompiledAllowlist.compile("10.0.0.0/8", null, pool);
+        CompiledAllowlist mapped = CompiledAllowlist.compile("::ffff:10.0.0.0/104", null, pool);
+        CompiledAllowlist ipv6 = CompiledAllowlist.compile("a00::/8", null, pool);
+
+        assertSame(ipv4.getMatcher(), mapped.getMatcher());
+        assertNotSame(ipv4.getMatcher(), ipv6.getMatcher());
+        assertTrue(ipv6.matches("a00::1"));
+        assertFalse(ipv4.matches("a00::1"));
+    }
+
+    @Test
+    @DisplayName("Should share matchers across clients and realms of the cache")
+    void testCache() {
+        AllowlistInternPool pool = new AllowlistInternPool();
+        AllowlistCache cache = new AllowlistCache(100, null, pool);
+
+        CompiledAllowlist first = cache.get("realm-a", "client-1", "10.0.0.0/8,2001:db8::/32");
+        CompiledAllowlist second = cache.get("realm-b", "client-2", "2001:db8::/32, 10.0.0.0/8");
+
+        assertSame(first.getMatcher(), second.getMatcher());
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    @DisplayName("Should release matchers that are no longer used")
+    void testRelease() throws InterruptedException {
+        AllowlistInternPool pool = new AllowlistInternPool();
+        CompiledAllowlist.compile("10.0.0.0/8", null, pool);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.size() > 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,142 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.AllowlistCache;
+import fr.dossierfacile.keycloak.executor.AllowlistInvalidator;
+import fr.dossierfacile.keycloak.executor.DecisionCache;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.support.LocalInvalidationBus;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AllowlistInvalidator.
+ */
+@DisplayName("Allowlist Invalidator Tests")
+class AllowlistInvalidatorTest {
+
+    private static final long IP = 0x0A000001L << 32;
+
+    /**
+     * Caches of one simulated Keycloak node.
+     */
+    private static final class Node {
+        final AllowlistCache allowlistCache = new AllowlistCache(100);
+        final DecisionCache decisionCache = new DecisionCache(100, 60);
+        final AllowlistInvalidator invalidator = new AllowlistInvalidator(allowlistCache, List.of(decisionCache));
+
+        Node(LocalInvalidationBus bus) {
+            invalidator.connect(bus.join());
+        }
+
+        void fill(String realmId, String clientId) {
+            allowlistCache.get(realmId, clientId, "10.0.0.0/8");
+            decisionCache.put(clientId, IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0, true);
+        }
+
+        boolean isCached(String clientId) {
+            return decisionCache.get(clientId, IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0) != null;
+        }
+    }
+
+    @Test
+    @DisplayName("Should invalidate a changed client on every node")
+    void testInvalidateEveryNode() {
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        List<Node> nodes = List.of(new Node(bus), new Node(bus), new Node(bus));
+        for (Node node : nodes) {
+            node.fill("realm", "partner");
+            node.fill("realm", "other");
+        }
+
+        nodes.get(0).invalidator.clientChanged("realm", "partner");
+
+        for (Node node : nodes) {
+            assertEquals(1, node.allowlistCache.size());
+            assertFalse(node.isCached("partner"));
+            assertTrue(node.isCached("other"));
+            assertEquals(nodes.get(0).invalidator.getVersion("realm", "partner"), node.invalidator.getVersion("realm", "partner"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should ignore duplicate and out-of-date events")
+    void testIgnoreOutOfDateEvents() {
+        List<Runnable> pending = new ArrayList<>();
+        LocalInvalidationBus bus = new LocalInvalidationBus(pending::add);
+        Node writer = new Node(bus);
+        Node reader = new Node(bus);
+
+        writer.invalidator.clientChanged("realm", "partner");
+        writer.invalidator.clientChanged("realm", "partner");
+        long latest = writer.invalidator.getVersion("realm", "partner");
+        assertEquals(2, pending.size());
+
+        // Newest event first: the older one is then ignored, even if the client was cached in between
+        Collections.reverse(pending);
+        pending.get(0).run();
+        assertEquals(latest, reader.invalidator.getVersion("realm", "partner"));
+        reader.fill("realm", "partner");
+        pending.get(1).run();
+        pending.get(0).run();
+        assertTrue(reader.isCached("partner"));
+        assertEquals(latest, reader.invalidator.getVersion("realm", "partner"));
+    }
+
+    @Test
+    @DisplayName("Should converge when nodes change the same client concurrently")
+    void testConcurrentChanges() {
+        List<Runnable> pending = new ArrayList<>();
+        LocalInvalidationBus bus = new LocalInvalidationBus(pending::add);
+        List<Node> nodes = List.of(new Node(bus), new Node(bus), new Node(bus));
+
+        nodes.get(0).invalidator.clientChanged("realm", "partner");
+        nodes.get(1).invalidator.clientChanged("realm", "partner");
+        assertNotEquals(nodes.get(0).invalidator.getVersion("realm", "partner"),
+                nodes.get(1).invalidator.getVersion("realm", "partner"));
+
+        pending.forEach(Runnable::run);
+        long version = nodes.get(0).invalidator.getVersion("realm", "partner");
+        for (Node node : nodes) {
+            assertEquals(version, node.invalidator.getVersion("realm", "partner"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should forget the version of a removed client on every node")
+    void testClientRemoved() {
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        List<Node> nodes = List.of(new Node(bus), new Node(bus));
+        nodes.get(0).invalidator.clientChanged("realm", "partner");
+        nodes.get(1).fill("realm", "partner");
+
+        nodes.get(0).invalidator.clientRemoved("realm", "partner");
+
+        for (Node node : nodes) {
+            assertEquals(0, node.allowlistCache.size());
+            assertFalse(node.isCached("partner"));
+            assertEquals(0, node.invalidator.getVersion("realm", "partner"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should invalidate every client of a removed realm")
+    void testRealmRemoved() {
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        Node node1 = new Node(bus);
+        Node node2 = new Node(bus);
+        node2.fill("realm", "partner");
+        node2.fill("realm", "other");
+        node2.fill("other-realm", "client");
+
+        node1.invalidator.realmRemoved("realm");
+
+        assertEquals(1, node2.allowlistCache.size());
+        assertFalse(node2.isCached("partner"));
+    }
+}
@@ -0,0 +1,81 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.AllowlistCache;
+import fr.dossierfacile.keycloak.executor.AllowlistWarmUp;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AllowlistWarmUp.
+ */
+@DisplayName("Allowlist Warm-Up Tests")
+class AllowlistWarmUpTest {
+
+    @Test
+    @DisplayName("Should compile the allowlists of the restricted clients of every realm")
+    void testCompileRestrictedClients() {
+        RealmModel realm1 = KeycloakStubs.realm("realm1");
+        RealmModel realm2 = KeycloakStubs.realm("realm2");
+        Map<RealmModel, List<ClientModel>> restricted = Map.of(
+                realm1, IntStream.range(0, 50)
+                        .mapToObj(i -> KeycloakStubs.client(realm1, "client-" + i, Map.of("allowed.ip.ranges", "10." + i + ".0.0/16")))
+                        .toList(),
+                realm2, List.of(
+                        KeycloakStubs.client(realm2, "partner", Map.of("allowed.ip.ranges", "2001:db8::/32,192.0.2.0/24")),
+                        KeycloakStubs.client(realm2, "no-ranges", Map.of())));
+
+        RealmProvider realms = KeycloakStubs.stub(RealmProvider.class, (method, args) ->
+                "getRealmsStream".equals(method) ? restricted.keySet().stream() : null);
+        ClientProvider clients = KeycloakStubs.stub(ClientProvider.class, (method, args) -> {
+            if ("searchClientsByAttributes".equals(method)) {
+                assertEquals(Map.of(AllowlistWarmUp.RESTRICTION_ATTR, "true"), args[1]);
+                return restricted.get((RealmModel) args[0]).stream();
+            }
+            return null;
+        });
+        KeycloakSession session = KeycloakStubs.stub(KeycloakSession.class, (method, args) -> switch (method) {
+            case "realms" -> realms;
+            case "clients" -> clients;
+            default -> null;
+        });
+
+        AllowlistCache cache = new AllowlistCache(1000);
+        AllowlistWarmUp warmUp = new AllowlistWarmUp(cache, 4, 1000);
+        List<AllowlistWarmUp.ClientRanges> ranges = warmUp.collect(session);
+
+        assertEquals(51, ranges.size());
+        assertEquals(51, warmUp.compile(ranges));
+        assertEquals(51, cache.size());
+        assertTrue(warmUp.validate(ranges) >= 0);
+        assertEquals(51, cache.size(), "Synthetic checks must only hit the compiled allowlists");
+    }
+
+    @Test
+    @DisplayName("Should not block nor throw when the clients cannot be read")
+    void testFailureIsLogged() throws Exception {
+        KeycloakSessionFactory factory = KeycloakStubs.stub(KeycloakSessionFactory.class, (method, args) -> {
+            throw new IllegalStateException("Database not available");
+        });
+
+        AllowlistWarmUp warmUp = new AllowlistWarmUp(new AllowlistCache(10), 1, 10);
+        try {
+            warmUp.start(factory).get(5, TimeUnit.SECONDS);
+        } finally {
+            warmUp.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.AuditLog;
+import fr.dossierfacile.keycloak.executor.DecisionMetrics.Decision;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuditLog.
+ */
+@DisplayName("Audit Log Tests")
+class AuditLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @DisplayName("Should write every denial and sample allowed requests")
+    void testRecords() throws Exception {
+        AuditLog auditLog = new AuditLog(directory, 1024, 0, AuditLog.DEFAULT_MAX_FILE_SIZE, 2);
+        auditLog.start();
+
+        long[] address = new long[2];
+        int family = IpAddressParser.parseAddress("2001:db8::1", address);
+        auditLog.record("test", "partner", Decision.DENY, family, address[0], address[1]);
+        auditLog.record("test", "partner", Decision.ALLOW, family, address[0], address[1]);
+        auditLog.record("test", "a\"b", Decision.MISSING_IP, IpAddressParser.INVALID_FAMILY, 0, 0);
+        auditLog.close();
+
+        List<String> lines = Files.readAllLines(directory.resolve(AuditLog.FILE_NAME));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\{\"time\":\"[0-9T:.\\-]+Z\",\"realm\":\"test\",\"clientId\":\"partner\","
+                + "\"ip\":\"2001:db8::1\",\"decision\":\"deny\"}"), lines.get(0));
+        assertTrue(lines.get(1).endsWith("\"clientId\":\"a\\\"b\",\"ip\":null,\"decision\":\"missing_ip\"}"), lines.get(1));
+        assertEquals(2, auditLog.getWritten());
+        assertEquals(0, auditLog.getDropped());
+    }
+
+    @Test
+    @DisplayName("Should drop and count records when the buffer is full")
+    void testDropped() {
+        // Not started: nothing drains the buffer
+        AuditLog auditLog = new AuditLog(directory, 4, 1, AuditLog.DEFAULT_MAX_FILE_SIZE, 1);
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (auditLog.record("test", "partner", Decision.ALLOW, IpAddressParser.IPV4, (long) i << 32, 0)) {
+                accepted++;
+            }
+        }
+        assertEquals(4, accepted);
+        assertEquals(6, auditLog.getDropped());
+    }
+
+    @Test
+    @DisplayName("Should rotate files by size from concurrent writers")
+    void testRotation() throws Exception {
+        AuditLog auditLog = new AuditLog(directory, 1 << 16, 1, 4096, 3);
+        auditLog.start();
+
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int thread = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    auditLog.record("test", "client-" + thread, Decision.ALLOW, IpAddressParser.IPV4, (long) i << 32, 0);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        auditLog.close();
+
+        assertEquals(4000, auditLog.getWritten() + auditLog.getDropped());
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> auditFiles = files.sorted().toList();
+            assertEquals(List.of(AuditLog.FILE_NAME, AuditLog.FILE_NAME + ".1", AuditLog.FILE_NAME + ".2"),
+                    auditFiles.stream().map(path -> path.getFileName().toString()).toList());
+            for (Path file : auditFiles) {
+                assertTrue(Files.size(file) <= 4096);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.CidrNormalizer;
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.IntervalTableMatcher;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.executor.LinearPrefixMatcher;
+import fr.dossierfacile.keycloak.executor.PrefixMatcher;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for CidrNormalizer and IntervalTableMatcher.
+ */
+@DisplayName("CIDR Normalizer Tests")
+class CidrNormalizerTest {
+
+    @Test
+    @DisplayName("Should drop covered ranges and report them")
+    void testRedundantRanges() {
+        CidrNormalizer.Result result = normalizeIpv4("10.1.0.0/16", "10.0.0.0/8", "192.168.1.0/24", "10.0.0.0/8", "192.168.1.128/25");
+
+        assertArrayEquals(new int[]{0, 3, 4}, result.redundant());
+        assertEquals(2, result.prefixCount());
+        assertEquals(2, result.intervalCount());
+    }
+
+    @Test
+    @DisplayName("Should mask host bits and coalesce adjacent ranges")
+    void testCoalesceAdjacentRanges() {
+        CidrNormalizer.Result result = normalizeIpv4("10.0.1.7/24", "10.0.0.0/24", "10.0.2.0/23", "10.0.5.0/24");
+
+        assertEquals(0, result.redundant().length);
+        assertEquals(4, result.prefixCount());
+        assertEquals(2, result.intervalCount());
+
+        IntervalTableMatcher table = IntervalTableMatcher.build(result, true);
+        assertTrue(table.contains(ipv4("10.0.0.0"), 0));
+        assertTrue(table.contains(ipv4("10.0.3.255"), 0));
+        assertFalse(table.contains(ipv4("10.0.4.1"), 0));
+        assertTrue(table.contains(ipv4("10.0.5.1"), 0));
+        assertFalse(table.contains(ipv4("10.0.6.0"), 0));
+        assertFalse(table.contains(ipv4("9.255.255.255"), 0));
+    }
+
+    @Test
+    @DisplayName("Should report redundant entries of a compiled allowlist")
+    void testCompiledAllowlistRedundantRanges() {
+        CompiledAllowlist allowlist = CompiledAllowlist.compile("10.0.0.0/8,10.1.0.0/16,192.168.1.1/32,192.168.1.0/24");
+
+        assertEquals(List.of("10.1.0.0/16", "192.168.1.1/32"), allowlist.getRedundantRanges());
+        assertEquals(4, allowlist.size());
+        assertTrue(allowlist.matches("10.1.2.3"));
+        assertTrue(allowlist.matches("192.168.1.1"));
+        assertFalse(allowlist.matches("192.168.2.1"));
+    }
+
+    @Test
+    @DisplayName("Should agree with a linear scan on random prefixes")
+    void testAgreesWithLinearScan() {
+        Random random = new Random(7);
+        for (boolean ipv4 : new boolean[]{true, false}) {
+            int count = 300;
+            long[] his = new long[count];
+            long[] los = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                his[i] = randomHi(random, ipv4);
+                los[i] = ipv4 ? 0 : random.nextLong();
+                lengths[i] = ipv4 ? 8 + random.nextInt(25) : random.nextInt(129);
+            }
+
+            PrefixMatcher linear = new LinearPrefixMatcher(his, los, lengths, count);
+            PrefixMatcher table = IntervalTableMatcher.build(CidrNormalizer.normalize(his, los, lengths, count), ipv4);
+            for (int i = 0; i < 100_000; i++) {
+                long hi = randomHi(random, ipv4);
+                long lo = ipv4 ? 0 : random.nextLong();
+                if (i % 2 == 0) {
+                    int p = random.nextInt(count);
+                    hi = his[p] ^ (randomHi(random, ipv4) & ~PrefixMatcher.maskHi(lengths[p]));
+                    lo = ipv4 ? 0 : los[p] ^ (random.nextLong() & ~PrefixMatcher.maskLo(lengths[p]));
+                }
+                assertEquals(linear.contains(hi, lo), table.contains(hi, lo), ipv4 ? "IPv4" : "IPv6");
+            }
+        }
+    }
+
+    private static long randomHi(Random random, boolean ipv4) {
+        // Few distinct leading bits so that prefixes overlap, nest and touch
+        long hi = random.nextLong() & 0xC3F0_FFFF_FFFF_FFFFL;
+        return ipv4 ? hi & 0xFFFF_FFFF_0000_0000L : hi;
+    }
+
+    private static long ipv4(String ip) {
+        return PrefixMatcher.ipv4Key(IpAddressParser.parseIpv4(ip));
+    }
+
+    private static CidrNormalizer.Result normalizeIpv4(String... cidrs) {
+        long[] his = new long[cidrs.length];
+        int[] lengths = new int[cidrs.length];
+        for (int i = 0; i < cidrs.length; i++) {
+            int slash = cidrs[i].indexOf('/');
+            his[i] = PrefixMatcher.ipv4Key(IpAddressParser.parseIpv4(cidrs[i], 0, slash));
+            lengths[i] = IpAddressParser.parsePrefixLength(cidrs[i], slash + 1, cidrs[i].length(), 32);
+        }
+        return CidrNormalizer.normalize(his, new long[cidrs.length], lengths, cidrs.length);
+    }
+}
@@ -0,0 +1,97 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.ClientIpResolver;
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for ClientIpResolver.
+ */
+@DisplayName("Client IP Resolver Tests")
+class ClientIpResolverTest {
+
+    private static final ClientIpResolver LEGACY = new ClientIpResolver(CompiledAllowlist.compile(null));
+    private static final ClientIpResolver TRUSTED = new ClientIpResolver(CompiledAllowlist.compile("10.0.0.0/8,2001:db8:ffff::/48"));
+    private static final ClientIpResolver TRUSTED_FORWARDED =
+            new ClientIpResolver(CompiledAllowlist.compile("10.0.0.0/8,2001:db8:ffff::/48"), "forwarded");
+
+    @Test
+    @DisplayName("Should keep the legacy behaviour without trusted proxies")
+    void testLegacyResolution() {
+        assertEquals("203.0.113.7", resolve(LEGACY, "10.0.0.1", "X-Forwarded-For", " 203.0.113.7 , 10.0.0.2"));
+        assertEquals("198.51.100.1", resolve(LEGACY, "10.0.0.1", "X-Real-IP", "198.51.100.1"));
+        assertEquals("10.0.0.1", resolve(LEGACY, "10.0.0.1", "X-Forwarded-For", "evil.example.com"));
+        assertEquals("10.0.0.1", resolve(LEGACY, "10.0.0.1"));
+    }
+
+    @Test
+    @DisplayName("Should ignore forwarding headers from untrusted peers")
+    void testUntrustedPeer() {
+        assertEquals("203.0.113.50", resolve(TRUSTED, "203.0.113.50", "X-Forwarded-For", "192.0.2.1"));
+        assertEquals("203.0.113.50", resolve(TRUSTED, "203.0.113.50", "Forwarded", "for=192.0.2.1"));
+        assertEquals("203.0.113.50", resolve(TRUSTED, "203.0.113.50", "X-Real-IP", "192.0.2.1"));
+    }
+
+    @Test
+    @DisplayName("Should only read the header set by the trusted proxies")
+    void testForgedHeaders() {
+        // The proxy appended the real peer to X-Forwarded-For, and passed the forged Forwarded header through
+        assertEquals("203.0.113.7", resolve(TRUSTED, "10.0.0.1",
+                "Forwarded", "for=192.0.2.1", "X-Forwarded-For", "203.0.113.7"));
+        assertEquals("10.0.0.1", resolve(TRUSTED, "10.0.0.1", "Forwarded", "for=192.0.2.1"));
+        assertEquals("10.0.0.1", resolve(TRUSTED, "10.0.0.1", "X-Real-IP", "192.0.2.1"));
+        // And conversely when the proxies set Forwarded
+        assertEquals("203.0.113.7", resolve(TRUSTED_FORWARDED, "10.0.0.1",
+                "Forwarded", "for=203.0.113.7", "X-Forwarded-For", "192.0.2.1"));
+        assertEquals("10.0.0.1", resolve(TRUSTED_FORWARDED, "10.0.0.1", "X-Forwarded-For", "192.0.2.1"));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new ClientIpResolver(CompiledAllowlist.compile("10.0.0.0/8"), "X-Client-IP"));
+    }
+
+    @Test
+    @DisplayName("Should walk X-Forwarded-For from right to left, skipping trusted hops")
+    void testForwardedForWalk() {
+        // The client forged the first entry, the ingress appended the real peer
+        assertEquals("203.0.113.7", resolve(TRUSTED, "10.0.0.1", "X-Forwarded-For", "192.0.2.1, 203.0.113.7, 10.1.1.1"));
+        assertEquals("203.0.113.7", resolve(TRUSTED, "10.0.0.1", "X-Forwarded-For", "203.0.113.7"));
+        assertEquals("2001:db8::7", resolve(TRUSTED, "10.0.0.1", "X-Forwarded-For", "2001:db8::7,2001:db8:ffff::1"));
+        // Only trusted hops: the leftmost one is the client
+        assertEquals("10.2.0.1", resolve(TRUSTED, "10.0.0.1", "X-Forwarded-For", "10.2.0.1,10.1.1.1"));
+        // A garbage hop cannot be skipped
+        assertNull(resolve(TRUSTED, "10.0.0.1", "X-Forwarded-For", "192.0.2.1, unknown, 10.1.1.1"));
+        // No header at all: the trusted proxy itself is the caller
+        assertEquals("10.0.0.1", resolve(TRUSTED, "10.0.0.1"));
+    }
+
+    @Test
+    @DisplayName("Should read the for parameter of RFC 7239 Forwarded headers")
+    void testForwardedWalk() {
+        assertEquals("203.0.113.7", resolve(TRUSTED_FORWARDED, "10.0.0.1", "Forwarded",
+                "for=192.0.2.1;proto=https, for=\"203.0.113.7:4711\";by=10.0.0.1, For=10.1.1.1"));
+        assertEquals("2001:db8:cafe::17", resolve(TRUSTED_FORWARDED, "10.0.0.1", "Forwarded",
+                "proto=https;for=\"[2001:db8:cafe::17]:4711\""));
+        assertEquals("2001:db8:cafe::17", resolve(TRUSTED_FORWARDED, "10.0.0.1", "Forwarded",
+                "for=\"[2001:db8:cafe::17]\";host=\"a;b,c\", for=10.1.1.1"));
+        assertNull(resolve(TRUSTED_FORWARDED, "10.0.0.1", "Forwarded", "for=unknown"));
+        assertNull(resolve(TRUSTED_FORWARDED, "10.0.0.1", "Forwarded", "for=_hidden, for=10.1.1.1"));
+        assertNull(resolve(TRUSTED_FORWARDED, "10.0.0.1", "Forwarded", "proto=https"));
+    }
+
+    private static String resolve(ClientIpResolver resolver, String remoteAddr, String... headers) {
+        Map<String, String> headerMap = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            headerMap.put(headers[i], headers[i + 1]);
+        }
+        RealmModel realm = KeycloakStubs.realm("test");
+        return resolver.resolve(KeycloakStubs.context(realm, null, headerMap, remoteAddr));
+    }
+}
@@ -0,0 +1,120 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.DecisionCache;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutor;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for DecisionCache.
+ */
+@DisplayName("Decision Cache Tests")
+class DecisionCacheTest {
+
+    private static final long IP = 0x0A000001L << 32;
+
+    @Test
+    @DisplayName("Should return cached decisions until they expire")
+    void testTtl() {
+        AtomicLong now = new AtomicLong();
+        DecisionCache cache = new DecisionCache(100, 60, now::get);
+
+        assertNull(cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+        cache.put("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0, true);
+        assertEquals(Boolean.TRUE, cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertEquals(Boolean.TRUE, cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    @DisplayName("Should miss when the allowed ranges change")
+    void testRangesChange() {
+        DecisionCache cache = new DecisionCache(100, 60);
+        cache.put("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0, true);
+
+        assertNull(cache.get("client", IpAddressParser.IPV4, IP, 0, "192.168.0.0/16", 0));
+        assertNull(cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+    }
+
+    @Test
+    @DisplayName("Should miss when an IP list was reloaded")
+    void testListReload() {
+        DecisionCache cache = new DecisionCache(100, 60);
+        cache.put("client", IpAddressParser.IPV4, IP, 0, "@file:partner-egress", 3, true);
+
+        assertEquals(Boolean.TRUE, cache.get("client", IpAddressParser.IPV4, IP, 0, "@file:partner-egress", 3));
+        assertNull(cache.get("client", IpAddressParser.IPV4, IP, 0, "@file:partner-egress", 4));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    @DisplayName("Should keep clients and address families apart")
+    void testKeys() {
+        DecisionCache cache = new DecisionCache(100, 60);
+        cache.put("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0, true);
+
+        assertNull(cache.get("other", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+        assertNull(cache.get("client", IpAddressParser.IPV6, IP, 0, "10.0.0.0/8", 0));
+        assertNull(cache.get("client", IpAddressParser.IPV4, IP + (1L << 32), 0, "10.0.0.0/8", 0));
+    }
+
+    @Test
+    @DisplayName("Should stay bounded, evicting least recently used decisions")
+    void testBounded() {
+        DecisionCache cache = new DecisionCache(10, 60);
+        cache.put("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0, true);
+        for (int i = 1; i <= 100; i++) {
+            // Keep the first entry recently used
+            assertEquals(Boolean.TRUE, cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+            cache.put("client", IpAddressParser.IPV4, IP + ((long) i << 32), 0, "10.0.0.0/8", 0, false);
+        }
+
+        assertTrue(cache.size() <= 10);
+        assertEquals(Boolean.TRUE, cache.get("client", IpAddressParser.IPV4, IP, 0, "10.0.0.0/8", 0));
+    }
+
+    @Test
+    @DisplayName("Should follow attribute changes when used by the executor")
+    void testExecutor() {
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("allowed.ip.ranges", "10.0.0.0/8");
+        RealmModel realm = KeycloakStubs.realm("test");
+        KeycloakSession session = KeycloakStubs.session(KeycloakStubs.context(realm,
+                KeycloakStubs.client(realm, "partner", attributes), Map.of("X-Real-IP", "10.0.0.1"), null));
+        var context = new ServiceAccountTokenRequestContext(null, null);
+
+        IpWhitelistExecutor.Configuration configuration = new IpWhitelistExecutor.Configuration();
+        configuration.setDecisionCacheSize(100);
+        IpWhitelistExecutor executor = factory.create(session);
+        executor.setupConfiguration(configuration);
+
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+
+        attributes.put("allowed.ip.ranges", "192.168.0.0/16");
+        assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+        factory.close();
+    }
+}
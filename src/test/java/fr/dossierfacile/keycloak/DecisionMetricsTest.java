@@ -0,0 +1,128 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.DecisionMetrics;
+import fr.dossierfacile.keycloak.executor.DecisionMetrics.Decision;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for DecisionMetrics.
+ */
+@DisplayName("Decision Metrics Tests")
+class DecisionMetricsTest {
+
+    @Test
+    @DisplayName("Should render counters and histogram in the Prometheus text format")
+    void testPrometheusFormat() {
+        DecisionMetrics metrics = new DecisionMetrics();
+        metrics.record("test", "client-a", Decision.ALLOW, 200);
+        metrics.record("test", "client-a", Decision.ALLOW, 3_000);
+        metrics.record("test", "client-a", Decision.DENY, 2_000_000);
+        metrics.record("other", "client-b", Decision.DENY, 100);
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus("test", out);
+        String text = out.toString();
+
+        assertTrue(text.contains("# TYPE df_ip_whitelist_decisions_total counter\n"));
+        assertTrue(text.contains("df_ip_whitelist_decisions_total{realm=\"test\",client_id=\"client-a\",decision=\"allow\"} 2\n"));
+        assertTrue(text.contains("df_ip_whitelist_decisions_total{realm=\"test\",client_id=\"client-a\",decision=\"deny\"} 1\n"));
+        assertTrue(text.contains("df_ip_whitelist_decisions_total{realm=\"test\",client_id=\"client-a\",decision=\"missing_ip\"} 0\n"));
+        assertFalse(text.contains("client-b"));
+
+        assertTrue(text.contains("df_ip_whitelist_check_duration_seconds_bucket{realm=\"test\",le=\"2.5E-7\"} 1\n"));
+        assertTrue(text.contains("df_ip_whitelist_check_duration_seconds_bucket{realm=\"test\",le=\"5.0E-6\"} 2\n"));
+        assertTrue(text.contains("df_ip_whitelist_check_duration_seconds_bucket{realm=\"test\",le=\"0.001\"} 2\n"));
+        assertTrue(text.contains("df_ip_whitelist_check_duration_seconds_bucket{realm=\"test\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("df_ip_whitelist_check_duration_seconds_count{realm=\"test\"} 3\n"));
+    }
+
+    @Test
+    @DisplayName("Should escape label values")
+    void testLabelEscaping() {
+        DecisionMetrics metrics = new DecisionMetrics();
+        metrics.record("test", "a\"b\\c\nd", Decision.ALLOW, 1);
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus("test", out);
+
+        assertTrue(out.toString().contains("client_id=\"a\\\"b\\\\c\\nd\""));
+    }
+
+    @Test
+    @DisplayName("Should drop the counters of a removed client")
+    void testClientRemoved() {
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+        ProviderEventListener[] listener = new ProviderEventListener[1];
+        factory.postInit(KeycloakStubs.stub(KeycloakSessionFactory.class, (method, args) -> {
+            if ("register".equals(method)) {
+                listener[0] = (ProviderEventListener) args[0];
+            }
+            return null;
+        }));
+
+        RealmModel realm = KeycloakStubs.realm("test");
+        ClientModel client = KeycloakStubs.client(realm, "partner", Map.of());
+        DecisionMetrics metrics = factory.getMetrics();
+        metrics.record("test", "partner", Decision.ALLOW, 1);
+        metrics.record("test", "other", Decision.ALLOW, 1);
+
+        // No session: applied at once, as after a commit
+        listener[0].onEvent(KeycloakStubs.stub(ClientModel.ClientRemovedEvent.class,
+                (method, args) -> "getClient".equals(method) ? client : null));
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus("test", out);
+        assertFalse(out.toString().contains("client_id=\"partner\""));
+        assertEquals(1, metrics.count("test", "other", Decision.ALLOW));
+        factory.close();
+    }
+
+    @Test
+    @DisplayName("Should count the decisions of the executor")
+    void testExecutorDecisions() {
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+
+        Map<String, String> attributes = new HashMap<>();
+        Map<String, String> headers = new HashMap<>();
+        RealmModel realm = KeycloakStubs.realm("test");
+        ClientModel client = KeycloakStubs.client(realm, "partner", attributes);
+        var session = KeycloakStubs.session(KeycloakStubs.context(realm, client, headers, null));
+        var context = new ServiceAccountTokenRequestContext(null, null);
+
+        // No IP at all
+        assertThrows(ClientPolicyException.class, () -> factory.create(session).executeOnEvent(context));
+
+        // No ranges configured
+        headers.put("X-Real-IP", "10.0.0.1");
+        assertThrows(ClientPolicyException.class, () -> factory.create(session).executeOnEvent(context));
+
+        attributes.put("allowed.ip.ranges", "10.0.0.0/8");
+        assertDoesNotThrow(() -> factory.create(session).executeOnEvent(context));
+
+        headers.put("X-Real-IP", "192.0.2.1");
+        assertThrows(ClientPolicyException.class, () -> factory.create(session).executeOnEvent(context));
+
+        DecisionMetrics metrics = factory.getMetrics();
+        assertEquals(1, metrics.count("test", "partner", Decision.MISSING_IP));
+        assertEquals(1, metrics.count("test", "partner", Decision.MISSING_CONFIG));
+        assertEquals(1, metrics.count("test", "partner", Decision.ALLOW));
+        assertEquals(1, metrics.count("test", "partner", Decision.DENY));
+        factory.close();
+    }
+}
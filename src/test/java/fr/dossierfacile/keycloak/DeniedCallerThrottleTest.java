@@ -0,0 +1,164 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.DecisionMetrics;
+import fr.dossierfacile.keycloak.executor.DeniedCallerThrottle;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutor;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for DeniedCallerThrottle.
+ */
+@DisplayName("Denied Caller Throttle Tests")
+class DeniedCallerThrottleTest {
+
+    private static final long CALLER = 0xC0000201L << 32;
+    private static final long OTHER = 0xC0000202L << 32;
+
+    @Test
+    @DisplayName("Should throttle a caller after the burst and forgive it over time")
+    void testBucket() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        DeniedCallerThrottle throttle = new DeniedCallerThrottle(3, 6, 1024, now::get);
+
+        assertFalse(throttle.recordDenial("client", IpAddressParser.IPV4, CALLER, 0));
+        assertFalse(throttle.recordDenial("client", IpAddressParser.IPV4, CALLER, 0));
+        assertFalse(throttle.isThrottled("client", IpAddressParser.IPV4, CALLER, 0));
+        assertTrue(throttle.recordDenial("client", IpAddressParser.IPV4, CALLER, 0));
+        assertTrue(throttle.isThrottled("client", IpAddressParser.IPV4, CALLER, 0));
+        assertFalse(throttle.isThrottled("client", IpAddressParser.IPV4, OTHER, 0));
+        assertFalse(throttle.isThrottled("client", IpAddressParser.IPV6, CALLER, 0));
+        assertFalse(throttle.isThrottled("other", IpAddressParser.IPV4, CALLER, 0));
+
+        // 6 denials forgiven per minute: one token every 10 s
+        now.addAndGet(9_000);
+        assertTrue(throttle.isThrottled("client", IpAddressParser.IPV4, CALLER, 0));
+        now.addAndGet(1_000);
+        assertFalse(throttle.isThrottled("client", IpAddressParser.IPV4, CALLER, 0));
+    }
+
+    @Test
+    @DisplayName("Should keep decaying while denials keep coming")
+    void testFrequentUpdates() {
+        AtomicLong now = new AtomicLong();
+        DeniedCallerThrottle throttle = new DeniedCallerThrottle(1000, 60, 1024, now::get);
+
+        // One denial every 10 ms for a minute, with one forgiven per second
+        for (int i = 0; i < 6000; i++) {
+            throttle.recordDenial("client", IpAddressParser.IPV4, CALLER, 0);
+            now.addAndGet(10);
+        }
+        // 6000 denials - 60 forgiven: still throttled, whereas without decay it would be far above
+        assertTrue(throttle.isThrottled("client", IpAddressParser.IPV4, CALLER, 0));
+        now.addAndGet(60_000 * 100);
+        assertFalse(throttle.isThrottled("client", IpAddressParser.IPV4, CALLER, 0));
+    }
+
+    @Test
+    @DisplayName("Should answer 429 to throttled callers in the executor")
+    void testExecutor() {
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of("trustedProxies", "10.255.0.0/16")));
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("allowed.ip.ranges", "10.0.0.0/8");
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Forwarded-For", "192.0.2.1");
+        RealmModel realm = KeycloakStubs.realm("test");
+        var context = new ServiceAccountTokenRequestContext(null, null);
+        IpWhitelistExecutor executor = executor(factory, KeycloakStubs.client(realm, "partner", attributes), headers, 2);
+
+        for (int i = 0; i < 2; i++) {
+            ClientPolicyException denied = assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+            assertEquals(Response.Status.FORBIDDEN, denied.getErrorStatus());
+        }
+        ClientPolicyException throttled = assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+        assertEquals(Response.Status.TOO_MANY_REQUESTS, throttled.getErrorStatus());
+
+        // Allowed callers are not affected
+        headers.put("X-Forwarded-For", "10.0.0.1");
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+
+        // Nor is the throttled address on a client allowing it, or once the client allows it
+        headers.put("X-Forwarded-For", "192.0.2.1");
+        IpWhitelistExecutor other = executor(factory, KeycloakStubs.client(realm, "other", Map.of("allowed.ip.ranges", "192.0.2.0/24")),
+                headers, 2);
+        assertDoesNotThrow(() -> other.executeOnEvent(context));
+        attributes.put("allowed.ip.ranges", "10.0.0.0/8,192.0.2.0/24");
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+
+        assertEquals(2, factory.getMetrics().count("test", "partner", DecisionMetrics.Decision.DENY));
+        assertEquals(1, factory.getMetrics().count("test", "partner", DecisionMetrics.Decision.THROTTLED));
+        factory.close();
+    }
+
+    @Test
+    @DisplayName("Should not throttle without trusted proxies")
+    void testExecutorWithoutTrustedProxies() {
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+        RealmModel realm = KeycloakStubs.realm("test");
+        var context = new ServiceAccountTokenRequestContext(null, null);
+        // The address is the first X-Forwarded-For entry, chosen by the caller
+        IpWhitelistExecutor executor = executor(factory, KeycloakStubs.client(realm, "partner", Map.of("allowed.ip.ranges", "10.0.0.0/8")),
+                Map.of("X-Forwarded-For", "192.0.2.1"), 1);
+
+        for (int i = 0; i < 5; i++) {
+            ClientPolicyException denied = assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+            assertEquals(Response.Status.FORBIDDEN, denied.getErrorStatus());
+        }
+        assertEquals(0, factory.getMetrics().count("test", "partner", DecisionMetrics.Decision.THROTTLED));
+        factory.close();
+    }
+
+    @Test
+    @DisplayName("Should clamp thresholds out of range")
+    void testExecutorClamped() {
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of("trustedProxies", "10.255.0.0/16")));
+        RealmModel realm = KeycloakStubs.realm("test");
+        var context = new ServiceAccountTokenRequestContext(null, null);
+        ClientModel client = KeycloakStubs.client(realm, "partner", Map.of("allowed.ip.ranges", "10.0.0.0/8"));
+        var session = KeycloakStubs.session(KeycloakStubs.context(realm, client, Map.of("X-Forwarded-For", "192.0.2.1"), "10.255.0.1"));
+
+        IpWhitelistExecutor.Configuration configuration = new IpWhitelistExecutor.Configuration();
+        configuration.setDenyBurst(DeniedCallerThrottle.MAX_BURST + 1000);
+        configuration.setDenyRefillPerMinute(-1);
+        IpWhitelistExecutor executor = factory.create(session);
+        assertDoesNotThrow(() -> executor.setupConfiguration(configuration));
+        ClientPolicyException denied = assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+        assertEquals(Response.Status.FORBIDDEN, denied.getErrorStatus());
+
+        // Burst clamped to the maximum, and denials never forgiven
+        for (int i = 1; i < DeniedCallerThrottle.MAX_BURST; i++) {
+            assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+        }
+        ClientPolicyException throttled = assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+        assertEquals(Response.Status.TOO_MANY_REQUESTS, throttled.getErrorStatus());
+        factory.close();
+    }
+
+    private static IpWhitelistExecutor executor(IpWhitelistExecutorFactory factory, ClientModel client, Map<String, String> headers,
+                                                int denyBurst) {
+        // Requests come through the trusted proxy
+        var session = KeycloakStubs.session(KeycloakStubs.context(client.getRealm(), client, headers, "10.255.0.1"));
+        IpWhitelistExecutor.Configuration configuration = new IpWhitelistExecutor.Configuration();
+        configuration.setDenyBurst(denyBurst);
+        IpWhitelistExecutor executor = factory.create(session);
+        executor.setupConfiguration(configuration);
+        return executor;
+    }
+}
@@ -0,0 +1,505 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.IpAddressFormatter;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.executor.IpValidationService;
+import fr.dossierfacile.keycloak.executor.RangeSetMatcher;
+import fr.dossierfacile.keycloak.support.ReferenceIpMatcher;
+import fr.dossierfacile.keycloak.support.ReferenceIpMatcher.Address;
+import fr.dossierfacile.keycloak.support.ReferenceIpMatcher.Range;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Differential tests of the address parser and the compiled matchers against {@link ReferenceIpMatcher}.
+ * <p>
+ * Addresses, ranges and malformed literals are generated from the literals of
+ * {@link IpValidationServiceTest}, in parallel shards with a fixed seed. The seed and the number
+ * of cases can be changed with {@code -Ddifferential.seed=...} and {@code -Ddifferential.cases=...};
+ * failures report the seed and the inputs. The default keeps {@code mvn test} short, the {@code load}
+ * profile runs 400 000 cases.
+ */
+@DisplayName("Differential Matcher Tests")
+class DifferentialMatcherTest {
+
+    private static final long SEED = Long.getLong("differential.seed", 0x5EED_1DL);
+    private static final int CASES = Integer.getInteger("differential.cases", 20_000);
+    private static final int SHARDS = 64;
+    private static final int MAX_REPORTED_FAILURES = 20;
+
+    // Literals of IpValidationServiceTest
+    private static final List<String> SEED_ADDRESSES = List.of(
+            "192.168.1.100", "192.168.1.1", "192.168.1.254", "192.168.2.100", "10.0.0.1", "10.255.255.255",
+            "203.0.113.50", "172.16.0.1", "8.8.8.8", "", "   ", "192.168.1.2", "192.168.255.254", "192.169.1.1",
+            "11.0.0.1", "127.0.0.1", "0.0.0.0", "255.255.255.255", "256.1.1.1", "192.168.1", "192.168.1.1.1",
+            "invalid", "::1", "2001:db8::1", "fe80::1", "203.0.113.1", "198.51.100.100", "2001:db8:ffff:ffff::1",
+            "2001:db9::1", "2001:db8:0:0:8000::", "2001:db8::7fff:0:0:0", "::2", "2001:db8:1234:5678::1",
+            "203.0.113.10", "2001:db8:1235::1", "::ffff:192.168.1.10", "::ffff:c0a8:10a", "::ffff:192.168.2.10",
+            "::ffff:10.1.2.3", "::ffff:11.1.2.3", "192.168.2.1", "192.168.1.10");
+    private static final List<String> SEED_RANGES = List.of(
+            "192.168.1.0/24", "10.0.0.0/8", "203.0.113.0/24", "invalid-cidr", "192.168.1.0/33", "192.168.1.1/32",
+            "192.168.0.0/16", "172.16.0.0/12", "0.0.0.0/0", "255.255.255.255/32", "192.168.1.0", "192.168.1.0/",
+            "/24", "256.1.1.1/24", "invalid", "", "198.51.100.0/24", "2001:db8::/32", "::/0", "::1/128",
+            "2001:db8::/129", "2001:db8::", "fe80::1%eth0/64", "2001:db8::8000:0:0:0/65", "2001:db8:1234::/48",
+            "::ffff:192.168.1.0/120");
+
+    @Test
+    @DisplayName("Should agree with the reference on the seed corpus")
+    void testSeedCorpus() {
+        Failures failures = new Failures();
+        SEED_ADDRESSES.forEach(address -> checkAddress(address, failures));
+        SEED_RANGES.forEach(range -> checkRange(range, failures));
+        for (String address : SEED_ADDRESSES) {
+            for (String range : SEED_RANGES) {
+                checkPair(address, range, failures);
+            }
+        }
+
+        CompiledAllowlist allowlist = CompiledAllowlist.compile(String.join(",", SEED_RANGES));
+        List<Range> ranges = parseRanges(SEED_RANGES);
+        SEED_ADDRESSES.forEach(address -> checkAllowlist(address, SEED_RANGES, ranges, allowlist, true, failures));
+        failures.assertNone();
+    }
+
+    @Test
+    @DisplayName("Should parse random and malformed addresses as the reference does")
+    void testRandomAddresses() {
+        runShards(CASES, (generator, failures) -> checkAddress(generator.addressText(), failures));
+    }
+
+    @Test
+    @DisplayName("Should parse random and malformed CIDR ranges as the reference does")
+    void testRandomRanges() {
+        runShards(CASES / 2, (generator, failures) -> checkRange(generator.rangeText(), failures));
+    }
+
+    @Test
+    @DisplayName("Should match an address against a range as the reference does")
+    void testRandomPairs() {
+        runShards(CASES / 2, (generator, failures) -> {
+            String range = generator.rangeText();
+            Range parsed = ReferenceIpMatcher.parseRange(range);
+            String address = parsed != null && generator.random.nextInt(4) != 0
+                    ? generator.format(generator.nearby(parsed.network().bytes()))
+                    : generator.addressText();
+            checkPair(address, range, failures);
+        });
+    }
+
+    @Test
+    @DisplayName("Should match addresses against compiled allowlists of every size as the reference does")
+    void testRandomAllowlists() {
+        int addressesPerList = 250;
+        runShards(CASES / addressesPerList, (generator, failures) -> {
+            List<String> entries = generator.allowlistEntries();
+            List<Range> ranges = parseRanges(entries);
+            CompiledAllowlist allowlist = CompiledAllowlist.compile(String.join(",", entries));
+            for (int i = 0; i < addressesPerList; i++) {
+                String address = !ranges.isEmpty() && generator.random.nextInt(4) != 0
+                        ? generator.format(generator.nearby(ranges.get(generator.random.nextInt(ranges.size())).network().bytes()))
+                        : generator.addressText();
+                // The canonical prefix is slow to check with the reference, so only for some addresses
+                checkAllowlist(address, entries, ranges, allowlist, i % 4 == 0, failures);
+            }
+        });
+    }
+
+    private static void checkAddress(String text, Failures failures) {
+        Address expected = ReferenceIpMatcher.parseAddress(text);
+        long[] key = new long[2];
+        int family = IpAddressParser.parseAddress(text, key);
+
+        if (IpValidationService.isValidIpAddress(text) != (expected != null)) {
+            failures.add("isValidIpAddress(" + quote(text) + ") should be " + (expected != null));
+        }
+        if (expected == null) {
+            if (family != IpAddressParser.INVALID_FAMILY) {
+                failures.add("parseAddress(" + quote(text) + ") should be invalid, got " + describe(family, key));
+            }
+            return;
+        }
+        if (family != expected.family() || !Arrays.equals(key, expected.key())) {
+            failures.add("parseAddress(" + quote(text) + ") should be " + describe(expected.family(), expected.key())
+                    + ", got " + describe(family, key));
+            return;
+        }
+
+        String formatted = IpAddressFormatter.formatAddress(family, key[0], key[1]);
+        Address reparsed = ReferenceIpMatcher.parseAddress(formatted);
+        if (reparsed == null || !Arrays.equals(reparsed.key(), key)) {
+            failures.add("formatAddress of " + quote(text) + " gives " + quote(formatted) + ", another address");
+        }
+    }
+
+    private static void checkRange(String text, Failures failures) {
+        Range expected = ReferenceIpMatcher.parseRange(text);
+        long[] cidr = new long[3];
+        int family = IpAddressParser.parseCidr(text, cidr);
+
+        if (IpValidationService.isValidCidrNotation(text) != (expected != null)) {
+            failures.add("isValidCidrNotation(" + quote(text) + ") should be " + (expected != null));
+        }
+        if (expected == null) {
+            if (family != IpAddressParser.INVALID_FAMILY) {
+                failures.add("parseCidr(" + quote(text) + ") should be invalid, got " + describe(family, cidr) + "/" + cidr[2]);
+            }
+            return;
+        }
+        long[] network = expected.network().key();
+        if (family != expected.network().family() || cidr[0] != network[0] || cidr[1] != network[1] || cidr[2] != expected.length()) {
+            failures.add("parseCidr(" + quote(text) + ") should be " + describe(expected.network().family(), network) + "/"
+                    + expected.length() + ", got " + describe(family, cidr) + "/" + cidr[2]);
+        }
+    }
+
+    private static void checkPair(String address, String range, Failures failures) {
+        Address expectedAddress = ReferenceIpMatcher.parseAddress(address);
+        Range expectedRange = ReferenceIpMatcher.parseRange(range);
+        Boolean expected = expectedAddress == null || expectedRange == null ? null : expectedRange.contains(expectedAddress);
+
+        Boolean actual;
+        try {
+            actual = IpValidationService.isIpInCidr(address, range);
+        } catch (IllegalArgumentException e) {
+            actual = null;
+        }
+        if (!Objects.equals(expected, actual)) {
+            failures.add("isIpInCidr(" + quote(address) + ", " + quote(range) + ") should be "
+                    + (expected == null ? "rejected" : expected) + ", got " + (actual == null ? "rejected" : actual));
+        }
+    }
+
+    private static void checkAllowlist(String text, List<String> entries, List<Range> ranges, CompiledAllowlist allowlist,
+                                       boolean checkMatch, Failures failures) {
+        Address address = ReferenceIpMatcher.parseAddress(text);
+        boolean expected = address != null && ranges.stream().anyMatch(range -> range.contains(address));
+
+        if (allowlist.matches(text) != expected) {
+            failures.add("matches(" + quote(text) + ") should be " + expected + " for " + entries);
+            return;
+        }
+        String embedded = "client=" + text + ";";
+        if (allowlist.matches(embedded, 7, embedded.length() - 1) != expected) {
+            failures.add("matches(" + quote(embedded) + ", 7, " + (embedded.length() - 1) + ") should be " + expected
+                    + " for " + entries);
+        }
+        if (entries.size() <= CompiledAllowlist.LINEAR_THRESHOLD && IpValidationService.isIpInRanges(text, entries) != expected) {
+            failures.add("isIpInRanges(" + quote(text) + ") should be " + expected + " for " + entries);
+        }
+        if (!expected || !checkMatch) {
+            return;
+        }
+
+        // The canonical prefix contains the address, is covered by the ranges, and is the largest such block
+        long[] key = address.key();
+        RangeSetMatcher.Match match = allowlist.findMatch(address.family(), key[0], key[1]);
+        int width = address.family() == IpAddressParser.IPV4 ? 32 : 128;
+        byte[] block = match == null ? null : new Address(bytes(match.family(), match.hi(), match.lo())).bytes();
+        if (match == null || match.family() != address.family()
+                || !new Range(new Address(block), match.length()).contains(address)
+                || !isCovered(ranges, block, match.length(), width)
+                || match.length() > 0 && isCovered(ranges, withBit(block, match.length() - 1, false), match.length() - 1, width)) {
+            failures.add("findMatch(" + quote(text) + ") should be the largest covered block, got "
+                    + (match == null ? null : match.toCidr()) + " for " + entries);
+        }
+    }
+
+    /**
+     * @return true if every address of the block is in one of the ranges, splitting it while it is partly covered
+     */
+    private static boolean isCovered(List<Range> ranges, byte[] block, int length, int width) {
+        Address prefix = new Address(block);
+        boolean intersects = false;
+        for (Range range : ranges) {
+            if (range.covers(prefix, length)) {
+                return true;
+            }
+            intersects |= range.intersects(prefix, length);
+        }
+        return intersects && length < width
+                && isCovered(ranges, withBit(block, length, false), length + 1, width)
+                && isCovered(ranges, withBit(block, length, true), length + 1, width);
+    }
+
+    private static byte[] withBit(byte[] block, int index, boolean value) {
+        byte[] result = block.clone();
+        int mask = 0x80 >>> (index % 8);
+        result[index / 8] = (byte) (value ? result[index / 8] | mask : result[index / 8] & ~mask);
+        return result;
+    }
+
+    private static byte[] bytes(int family, long hi, long lo) {
+        byte[] bytes = new byte[family == IpAddressParser.IPV4 ? 4 : 16];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i < 8 ? hi >>> (56 - 8 * i) : lo >>> (120 - 8 * i));
+        }
+        return bytes;
+    }
+
+    private static List<Range> parseRanges(List<String> entries) {
+        return entries.stream()
+                .map(ReferenceIpMatcher::parseRange)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    private static String describe(int family, long[] key) {
+        return family == IpAddressParser.INVALID_FAMILY
+                ? "invalid"
+                : "IPv" + family + " " + Long.toHexString(key[0]) + ":" + Long.toHexString(key[1]);
+    }
+
+    private static String quote(String text) {
+        return text == null ? "null" : '"' + text.replace("\t", "\\t").replace("\n", "\\n") + '"';
+    }
+
+    /**
+     * Run {@code cases} checks in {@link #SHARDS} parallel shards, each with its own generator.
+     */
+    private static void runShards(int cases, BiConsumer<Generator, Failures> check) {
+        Failures failures = new Failures();
+        IntStream.range(0, SHARDS).parallel().forEach(shard -> {
+            Generator generator = new Generator(new SplittableRandom(SEED + shard));
+            for (int i = shard; i < cases; i += SHARDS) {
+                check.accept(generator, failures);
+            }
+        });
+        failures.assertNone();
+    }
+
+    /**
+     * Failures of the shards: the first ones are kept, the others only counted.
+     */
+    private static final class Failures {
+        private final AtomicLong count = new AtomicLong();
+        private final Queue<String> reported = new ConcurrentLinkedQueue<>();
+
+        void add(String failure) {
+            if (count.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+                reported.add(failure);
+            }
+        }
+
+        void assertNone() {
+            assertEquals(0, count.get(), () -> count.get() + " disagreements with the reference (-Ddifferential.seed="
+                    + SEED + "):\n" + String.join("\n", reported));
+        }
+    }
+
+    /**
+     * Random addresses and ranges, written in the many ways a literal can be, and mutated into malformed literals.
+     */
+    private static final class Generator {
+        private static final String MUTATION_CHARS = "0123456789abcdefABCDEFgx:./% \t-";
+
+        private final SplittableRandom random;
+        private final List<byte[]> bases = new ArrayList<>();
+
+        Generator(SplittableRandom random) {
+            this.random = random;
+            for (String literal : SEED_ADDRESSES) {
+                Address address = ReferenceIpMatcher.parseAddress(literal);
+                if (address != null) {
+                    bases.add(address.bytes());
+                }
+            }
+        }
+
+        String addressText() {
+            int kind = random.nextInt(20);
+            if (kind < 2) {
+                return SEED_ADDRESSES.get(random.nextInt(SEED_ADDRESSES.size()));
+            }
+            String text = format(kind < 6 ? randomBytes() : nearby(bases.get(random.nextInt(bases.size()))));
+            if (kind >= 13) {
+                text = mutate(text);
+            }
+            return random.nextInt(20) == 0 ? " " + text + "\t" : text;
+        }
+
+        String rangeText() {
+            int kind = random.nextInt(20);
+            if (kind < 2) {
+                return SEED_RANGES.get(random.nextInt(SEED_RANGES.size()));
+            }
+            byte[] network = kind < 6 ? randomBytes() : nearby(bases.get(random.nextInt(bases.size())));
+            String text = format(network) + "/" + prefixLength(network.length * 8);
+            return kind >= 15 ? mutate(text) : text;
+        }
+
+        /**
+         * @return the entries of an allowlist, sized to use each kind of matcher
+         */
+        List<String> allowlistEntries() {
+            int size = switch (random.nextInt(3)) {
+                case 0 -> 1 + random.nextInt(CompiledAllowlist.LINEAR_THRESHOLD);
+                case 1 -> CompiledAllowlist.LINEAR_THRESHOLD + 1 + random.nextInt(CompiledAllowlist.TRIE_THRESHOLD - CompiledAllowlist.LINEAR_THRESHOLD);
+                default -> CompiledAllowlist.TRIE_THRESHOLD + 1 + random.nextInt(300);
+            };
+            // A few networks per list, so that ranges nest, overlap and touch each other
+            List<byte[]> networks = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(4); i++) {
+                networks.add(random.nextBoolean() ? randomBytes() : bases.get(random.nextInt(bases.size())));
+            }
+            List<String> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                byte[] network = nearby(networks.get(random.nextInt(networks.size())));
+                int width = network.length * 8;
+                String entry = format(network) + "/" + Math.max(0, width - random.nextInt(width / 2 + 1));
+                if (random.nextInt(10) == 0) {
+                    entry = mutate(entry);
+                } else if (random.nextInt(10) == 0) {
+                    entry = " " + entry + " ";
+                }
+                entries.add(entry);
+            }
+            return entries;
+        }
+
+        private String prefixLength(int width) {
+            return switch (random.nextInt(12)) {
+                case 0 -> "0" + random.nextInt(width + 1);
+                case 1 -> String.valueOf(width + 1 + random.nextInt(900));
+                case 2 -> "";
+                default -> String.valueOf(random.nextInt(width + 1));
+            };
+        }
+
+        private byte[] randomBytes() {
+            byte[] bytes = new byte[random.nextInt(3) == 0 ? 16 : 4];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) random.nextInt(256);
+            }
+            return bytes;
+        }
+
+        /**
+         * @return an address sharing a random number of leading bits with {@code base}
+         */
+        byte[] nearby(byte[] base) {
+            byte[] bytes = base.clone();
+            int keep = random.nextInt(bytes.length * 8 + 1);
+            for (int i = 0; i < bytes.length; i++) {
+                int kept = Math.max(0, Math.min(8, keep - i * 8));
+                int mask = (0xFF << (8 - kept)) & 0xFF;
+                bytes[i] = (byte) ((bytes[i] & mask) | (random.nextInt(256) & ~mask));
+            }
+            if (bytes.length == 16 && random.nextInt(3) == 0) {
+                // Runs of zero groups, to write them with ::
+                int start = 2 * random.nextInt(8);
+                Arrays.fill(bytes, start, Math.min(16, start + 2 * (1 + random.nextInt(6))), (byte) 0);
+            }
+            return bytes;
+        }
+
+        String format(byte[] bytes) {
+            if (bytes.length == 4) {
+                return dotted(bytes, 0);
+            }
+            int groups = 8;
+            String ipv4Tail = null;
+            if (random.nextInt(6) == 0) {
+                // Embedded IPv4 part, sometimes as an IPv4-mapped address
+                if (random.nextBoolean()) {
+                    bytes = bytes.clone();
+                    Arrays.fill(bytes, 0, 10, (byte) 0);
+                    bytes[10] = (byte) 0xFF;
+                    bytes[11] = (byte) 0xFF;
+                }
+                groups = 6;
+                ipv4Tail = dotted(bytes, 12);
+            }
+
+            int[] values = new int[groups];
+            for (int i = 0; i < groups; i++) {
+                values[i] = (bytes[2 * i] & 0xFF) << 8 | (bytes[2 * i + 1] & 0xFF);
+            }
+            // Compress a random run of zero groups, not always the longest one
+            int compressStart = -1;
+            int compressEnd = -1;
+            if (random.nextInt(4) != 0) {
+                int start = random.nextInt(groups);
+                if (values[start] == 0) {
+                    compressStart = start;
+                    compressEnd = start + 1;
+                    while (compressEnd < groups && values[compressEnd] == 0 && random.nextInt(8) != 0) {
+                        compressEnd++;
+                    }
+                }
+            }
+
+            boolean upperCase = random.nextInt(5) == 0;
+            StringBuilder text = new StringBuilder(45);
+            for (int i = 0; i < groups; i++) {
+                if (i == compressStart) {
+                    text.append("::");
+                    i = compressEnd - 1;
+                    continue;
+                }
+                if (i > 0 && i != compressEnd) {
+                    text.append(':');
+                }
+                String group = Integer.toHexString(values[i]);
+                if (random.nextInt(8) == 0) {
+                    group = "000".substring(0, random.nextInt(5 - group.length())) + group;
+                }
+                text.append(upperCase ? group.toUpperCase() : group);
+            }
+            if (ipv4Tail != null) {
+                text.append(compressEnd == groups ? "" : ":").append(ipv4Tail);
+            }
+            return text.toString();
+        }
+
+        private static String dotted(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xFF) + "." + (bytes[offset + 1] & 0xFF) + "." + (bytes[offset + 2] & 0xFF) + "."
+                    + (bytes[offset + 3] & 0xFF);
+        }
+
+        /**
+         * @return the text with one to three random edits, which usually make it invalid
+         */
+        String mutate(String text) {
+            StringBuilder mutated = new StringBuilder(text);
+            for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                int position = random.nextInt(mutated.length() + 1);
+                char c = MUTATION_CHARS.charAt(random.nextInt(MUTATION_CHARS.length()));
+                switch (random.nextInt(5)) {
+                    case 0 -> mutated.insert(position, c);
+                    case 1 -> {
+                        if (position < mutated.length()) {
+                            mutated.deleteCharAt(position);
+                        }
+                    }
+                    case 2 -> {
+                        if (position < mutated.length()) {
+                            mutated.setCharAt(position, c);
+                        }
+                    }
+                    case 3 -> {
+                        // Repeat a part, e.g. a group or a separator
+                        int end = Math.min(mutated.length(), position + 1 + random.nextInt(5));
+                        mutated.insert(position, mutated.substring(position, end));
+                    }
+                    default -> mutated.insert(position, random.nextBoolean() ? "::" : ".");
+                }
+            }
+            return mutated.toString();
+        }
+    }
+}
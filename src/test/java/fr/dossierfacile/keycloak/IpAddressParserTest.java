@@ -0,0 +1,95 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.IpAddressFormatter;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for IpAddressParser.
+ */
+@DisplayName("IP Address Parser Tests")
+class IpAddressParserTest {
+
+    @Test
+    @DisplayName("Should parse IPv4 literals")
+    void testParseIpv4() {
+        assertEquals(0xC0A80101L, IpAddressParser.parseIpv4("192.168.1.1"));
+        assertEquals(0L, IpAddressParser.parseIpv4("0.0.0.0"));
+        assertEquals(0xFFFFFFFFL, IpAddressParser.parseIpv4("255.255.255.255"));
+        assertEquals(0x0A000001L, IpAddressParser.parseIpv4("  10.0.0.1 "));
+        assertEquals(0x0A000001L, IpAddressParser.parseIpv4("x10.0.0.1,", 1, 9));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.04", "01.2.3.4", "1..2.3", "1.2.3.",
+            ".1.2.3", "1.2.3.4x", "localhost", "1.2.3.-4", "1 .2.3.4", "1.2.3.1000"})
+    @DisplayName("Should reject invalid IPv4 literals")
+    void testRejectInvalidIpv4(String literal) {
+        assertEquals(IpAddressParser.INVALID, IpAddressParser.parseIpv4(literal));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"::", "::1", "1::", "2001:db8::1", "fe80::1", "2001:0db8:85a3:0000:0000:8a2e:0370:7334",
+            "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "1:2:3:4:5:6:7:8", "1:2::7:8", "::ffff:192.168.1.1",
+            "::192.168.1.1", "1:2:3:4:5:6:1.2.3.4", "64:ff9b::10.0.0.1", "ABCD:EF01::"})
+    @DisplayName("Should parse IPv6 literals like InetAddress")
+    void testParseIpv6(String literal) throws Exception {
+        long[] parsed = new long[2];
+        assertTrue(IpAddressParser.parseIpv6(literal, parsed));
+
+        ByteBuffer expected = ByteBuffer.wrap(toIpv6Bytes(InetAddress.getByName(literal).getAddress()));
+        assertEquals(expected.getLong(0), parsed[0]);
+        assertEquals(expected.getLong(8), parsed[1]);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", ":", ":::", "1:", ":1", "1:::2", "1::2::3", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7",
+            "1:2:3:4:5:6:7:8::", "12345::", "fe80::1%eth0", "fe80::1%1", "[::1]", "::g", "::ffff:1.2.3",
+            "::ffff:1.2.3.4:5", "1.2.3.4::", "1:2:3:4:5:6:7:1.2.3.4", "::ffff:01.2.3.4", "localhost"})
+    @DisplayName("Should reject invalid IPv6 literals")
+    void testRejectInvalidIpv6(String literal) {
+        assertFalse(IpAddressParser.parseIpv6(literal, new long[2]));
+    }
+
+    @Test
+    @DisplayName("Should parse prefix lengths")
+    void testParsePrefixLength() {
+        assertEquals(0, IpAddressParser.parsePrefixLength("0", 0, 1, 32));
+        assertEquals(32, IpAddressParser.parsePrefixLength("32", 0, 2, 32));
+        assertEquals(128, IpAddressParser.parsePrefixLength("128", 0, 3, 128));
+        assertEquals(-1, IpAddressParser.parsePrefixLength("33", 0, 2, 32));
+        assertEquals(-1, IpAddressParser.parsePrefixLength("08", 0, 2, 32));
+        assertEquals(-1, IpAddressParser.parsePrefixLength("", 0, 0, 32));
+        assertEquals(-1, IpAddressParser.parsePrefixLength("1a", 0, 2, 32));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0.0.0.0", "192.168.1.1", "::", "::1", "1::", "2001:db8::1", "2001:db8:0:1:1:1:1:1",
+            "2001:0:0:1::1", "1:0:0:2::3", "fe80::1:0:0:1", "1:2:3:4:5:6:7:8", "abcd:ef01::"})
+    @DisplayName("Should format addresses in canonical form")
+    void testFormatAddress(String literal) {
+        long[] parsed = new long[2];
+        int family = IpAddressParser.parseAddress(literal, parsed);
+        assertEquals(literal, IpAddressFormatter.formatAddress(family, parsed[0], parsed[1]));
+    }
+
+    private static byte[] toIpv6Bytes(byte[] address) {
+        if (address.length == 16) {
+            return address;
+        }
+        // InetAddress returns IPv4-mapped addresses as plain IPv4
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(address, 0, mapped, 12, 4);
+        return mapped;
+    }
+}
@@ -0,0 +1,144 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.IpListRegistry;
+import fr.dossierfacile.keycloak.executor.MappedIpList;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for IpListRegistry and MappedIpList.
+ */
+@DisplayName("IP List Files Tests")
+class IpListRegistryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @DisplayName("Should match like an inline allowlist")
+    void testSameAsInline() throws Exception {
+        StringBuilder ranges = new StringBuilder("# Partner egress\n2001:db8::/32, 2001:db8:1::/48\n::ffff:10.0.0.0/104\n");
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            ranges.append(random.nextInt(256)).append('.').append(random.nextInt(256)).append('.')
+                    .append(random.nextInt(256)).append(".0/").append(16 + random.nextInt(17)).append(i % 3 == 0 ? "\n" : " ");
+        }
+        Files.writeString(directory.resolve("partner-egress"), ranges + "\nnot-a-range\n");
+
+        CompiledAllowlist inline = CompiledAllowlist.compile(ranges.toString()
+                .replaceAll("#[^\n]*", "").replaceAll("[\\s,]+", ","));
+        try (IpListRegistry registry = new IpListRegistry(directory)) {
+            CompiledAllowlist fromFile = CompiledAllowlist.compile("@file:partner-egress", registry);
+            assertEquals(2003, registry.get("partner-egress").get().rangeCount());
+
+            for (int i = 0; i < 20_000; i++) {
+                String ip = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+                assertEquals(inline.matches(ip), fromFile.matches(ip), ip);
+            }
+            assertTrue(fromFile.matches("2001:db8:ffff::1"));
+            assertFalse(fromFile.matches("2001:db9::1"));
+            assertFalse(fromFile.matches("not-an-ip"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should reject list names outside the directory")
+    void testNames() throws Exception {
+        assertTrue(IpListRegistry.isValidName("partner-egress_v2.txt"));
+        assertFalse(IpListRegistry.isValidName("../etc/passwd"));
+        assertFalse(IpListRegistry.isValidName(".hidden"));
+        assertFalse(IpListRegistry.isValidName("a/b"));
+        assertFalse(IpListRegistry.isValidName(""));
+
+        try (IpListRegistry registry = new IpListRegistry(directory)) {
+            assertThrows(IllegalArgumentException.class, () -> registry.get(".."));
+            CompiledAllowlist allowlist = CompiledAllowlist.compile("10.0.0.0/8,@file:../secret", registry);
+            assertEquals(1, allowlist.size());
+        }
+
+        // References are ignored when list files are not enabled
+        assertEquals(0, CompiledAllowlist.compile("@file:partner-egress").size());
+    }
+
+    @Test
+    @DisplayName("Should swap the list when the file changes")
+    void testReload() throws Exception {
+        Path file = directory.resolve("partner");
+        try (IpListRegistry registry = new IpListRegistry(directory)) {
+            registry.startWatching();
+
+            // Missing file: nothing is allowed until it is created
+            CompiledAllowlist allowlist = CompiledAllowlist.compile("@file:partner", registry);
+            assertSame(MappedIpList.EMPTY, registry.get("partner").get());
+            assertFalse(allowlist.matches("192.0.2.1"));
+
+            Files.writeString(file, "192.0.2.0/24\n");
+            awaitMatch(allowlist, "192.0.2.1", true);
+
+            // Atomic replacement, as recommended for updates
+            Path next = Files.writeString(directory.resolve("partner.tmp"), "198.51.100.0/24\n");
+            Files.move(next, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            awaitMatch(allowlist, "198.51.100.1", true);
+            assertFalse(allowlist.matches("192.0.2.1"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep the previous list while the file is being written")
+    void testPartialWrite() throws Exception {
+        Path file = directory.resolve("partner");
+        Files.writeString(file, "192.0.2.0/24\n");
+        try (IpListRegistry registry = new IpListRegistry(directory)) {
+            registry.startWatching();
+            CompiledAllowlist allowlist = CompiledAllowlist.compile("@file:partner", registry);
+            assertTrue(allowlist.matches("192.0.2.1"));
+
+            // Truncated, then partly written in place
+            Files.writeString(file, "");
+            Files.writeString(file, "198.51.100.0/2");
+            Thread.sleep(500);
+            assertTrue(allowlist.matches("192.0.2.1"));
+            assertFalse(allowlist.matches("198.51.100.1"));
+
+            Files.writeString(file, "198.51.100.0/24\n");
+            awaitMatch(allowlist, "198.51.100.1", true);
+            assertFalse(allowlist.matches("192.0.2.1"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should release the lists no allowlist references")
+    void testRelease() throws Exception {
+        Files.writeString(directory.resolve("partner"), "192.0.2.0/24\n");
+        try (IpListRegistry registry = new IpListRegistry(directory)) {
+            CompiledAllowlist kept = CompiledAllowlist.compile("@file:partner", registry);
+            CompiledAllowlist.compile("@file:other", registry);
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (registry.size() > 1 && System.currentTimeMillis() < deadline) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertEquals(1, registry.size());
+            assertTrue(kept.matches("192.0.2.1"));
+            assertSame(registry.get("partner"), registry.get("partner"));
+        }
+    }
+
+    private static void awaitMatch(CompiledAllowlist allowlist, String ip, boolean expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (allowlist.matches(ip) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, allowlist.matches(ip), ip);
+    }
+}
@@ -56,6 +56,8 @@ class IpValidationServiceTest {
         // Invalid CIDR in ranges
         List<String> invalidRanges = Arrays.asList("invalid-cidr", "192.168.1.0/33");
         assertFalse(IpValidationService.isIpInRanges("192.168.1.1", invalidRanges));
+        // Invalid ranges are skipped, the next ones are still checked
+        assertTrue(IpValidationService.isIpInRanges("192.168.1.1", Arrays.asList("invalid-cidr", "10.0.0.0/8", "192.168.1.0/24")));
     }
 
     @Test
@@ -144,4 +146,44 @@ class IpValidationServiceTest {
         assertTrue(IpValidationService.isIpInRanges("198.51.100.100", clientRanges));
         assertFalse(IpValidationService.isIpInRanges("192.168.1.1", clientRanges));
     }
+
+    @Test
+    @DisplayName("Should validate IPv6 CIDR ranges")
+    void testIpv6CidrRanges() {
+        assertTrue(IpValidationService.isValidCidrNotation("2001:db8::/32"));
+        assertTrue(IpValidationService.isValidCidrNotation("::/0"));
+        assertTrue(IpValidationService.isValidCidrNotation("::1/128"));
+        assertFalse(IpValidationService.isValidCidrNotation("2001:db8::/129"));
+        assertFalse(IpValidationService.isValidCidrNotation("2001:db8::"));
+        assertFalse(IpValidationService.isValidCidrNotation("fe80::1%eth0/64"));
+
+        assertTrue(IpValidationService.isIpInCidr("2001:db8::1", "2001:db8::/32"));
+        assertTrue(IpValidationService.isIpInCidr("2001:db8:ffff:ffff::1", "2001:db8::/32"));
+        assertFalse(IpValidationService.isIpInCidr("2001:db9::1", "2001:db8::/32"));
+        assertTrue(IpValidationService.isIpInCidr("2001:db8:0:0:8000::", "2001:db8::8000:0:0:0/65"));
+        assertFalse(IpValidationService.isIpInCidr("2001:db8::7fff:0:0:0", "2001:db8::8000:0:0:0/65"));
+        assertTrue(IpValidationService.isIpInCidr("::1", "::1/128"));
+        assertFalse(IpValidationService.isIpInCidr("::2", "::1/128"));
+
+        // IPv4 and IPv6 never match each other
+        assertFalse(IpValidationService.isIpInCidr("10.0.0.1", "::/0"));
+        assertFalse(IpValidationService.isIpInCidr("2001:db8::1", "0.0.0.0/0"));
+
+        List<String> dualStackRanges = Arrays.asList("203.0.113.0/24", "2001:db8:1234::/48");
+        assertTrue(IpValidationService.isIpInRanges("2001:db8:1234:5678::1", dualStackRanges));
+        assertTrue(IpValidationService.isIpInRanges("203.0.113.10", dualStackRanges));
+        assertFalse(IpValidationService.isIpInRanges("2001:db8:1235::1", dualStackRanges));
+    }
+
+    @Test
+    @DisplayName("Should match IPv4-mapped IPv6 addresses against IPv4 ranges")
+    void testIpv4MappedAddresses() {
+        assertTrue(IpValidationService.isIpInCidr("::ffff:192.168.1.10", "192.168.1.0/24"));
+        assertTrue(IpValidationService.isIpInCidr("::ffff:c0a8:10a", "192.168.1.0/24"));
+        assertFalse(IpValidationService.isIpInCidr("::ffff:192.168.2.10", "192.168.1.0/24"));
+        assertTrue(IpValidationService.isIpInCidr("192.168.1.10", "::ffff:192.168.1.0/120"));
+
+        assertTrue(IpValidationService.isIpInRanges("::ffff:10.1.2.3", Arrays.asList("10.0.0.0/8")));
+        assertFalse(IpValidationService.isIpInRanges("::ffff:11.1.2.3", Arrays.asList("10.0.0.0/8")));
+    }
 }
@@ -0,0 +1,354 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.DecisionMetrics;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.executor.IpListRegistry;
+import fr.dossierfacile.keycloak.executor.IpWhitelistAdminResource;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutor;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.executor.RangeSetMatcher;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.idm.ClientPoliciesRepresentation;
+import org.keycloak.representations.idm.ClientPolicyConditionRepresentation;
+import org.keycloak.representations.idm.ClientPolicyExecutorRepresentation;
+import org.keycloak.representations.idm.ClientPolicyRepresentation;
+import org.keycloak.representations.idm.ClientProfileRepresentation;
+import org.keycloak.representations.idm.ClientProfilesRepresentation;
+import org.keycloak.services.clientpolicy.ClientPolicyManager;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.ClientPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.RealmPermissionEvaluator;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for IpWhitelistAdminResource and the canonical prefix lookup.
+ */
+@DisplayName("IP Whitelist Admin Resource Tests")
+class IpWhitelistAdminResourceTest {
+
+    @TempDir
+    Path directory;
+
+    private IpWhitelistExecutorFactory factory;
+
+    @BeforeEach
+    void setUp() {
+        factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        factory.close();
+    }
+
+    private String evaluate(String body, List<String> profileRanges, String clientRanges, int maxAddresses) throws Exception {
+        IpWhitelistExecutor.Configuration configuration = new IpWhitelistExecutor.Configuration();
+        configuration.setAllowedIpRanges(profileRanges);
+        IpWhitelistExecutor executor = factory.create(null);
+        executor.setupConfiguration(configuration);
+
+        StringWriter out = new StringWriter();
+        int count = IpWhitelistAdminResource.evaluate(new StringReader(body), out, executor, "test", "partner", clientRanges, maxAddresses);
+        assertEquals(count, out.toString().lines().filter(line -> line.startsWith("{\"ip\"")).count());
+        return out.toString();
+    }
+
+    @Test
+    @DisplayName("Should evaluate a batch of addresses in order")
+    void testEvaluate() throws Exception {
+        String out = evaluate("# Partner egress\n10.0.0.200\n203.0.113.7, ::ffff:192.168.1.10 2001:db8::1\n\nnot-an-ip # typo\n",
+                null, "10.0.0.0/25,10.0.0.128/25,192.168.1.0/24,2001:db8::/32", 100);
+
+        assertEquals("""
+                {"ip":"10.0.0.200","decision":"allow","match":"10.0.0.0/24"}
+                {"ip":"203.0.113.7","decision":"deny","match":null}
+                {"ip":"::ffff:192.168.1.10","decision":"allow","match":"192.168.1.0/24"}
+                {"ip":"2001:db8::1","decision":"allow","match":"2001:db8::/32"}
+                {"ip":"not-an-ip","decision":"deny","match":null,"error":"Invalid IP address"}
+                """, out);
+    }
+
+    @Test
+    @DisplayName("Should check the profile ranges first, as the executor does")
+    void testProfileRanges() throws Exception {
+        assertEquals("""
+                {"ip":"192.0.2.10","decision":"allow","match":"192.0.2.0/24","source":"profile"}
+                {"ip":"10.0.0.1","decision":"allow","match":"10.0.0.0/8"}
+                {"ip":"203.0.113.7","decision":"deny","match":null}
+                """, evaluate("192.0.2.10 10.0.0.1 203.0.113.7", List.of("192.0.2.0/24"), "10.0.0.0/8", 100));
+
+        // Profile ranges alone are a configuration
+        assertEquals("""
+                {"ip":"192.0.2.10","decision":"allow","match":"192.0.2.0/24","source":"profile"}
+                {"ip":"10.0.0.1","decision":"deny","match":null}
+                """, evaluate("192.0.2.10 10.0.0.1", List.of("192.0.2.0/24"), null, 100));
+    }
+
+    @Test
+    @DisplayName("Should report clients without ranges and stop after the maximum batch size")
+    void testLimits() throws Exception {
+        assertEquals("{\"ip\":\"10.0.0.1\",\"decision\":\"missing_config\",\"match\":null}\n", evaluate("10.0.0.1", null, null, 100));
+
+        String batch = IntStream.range(0, 10).mapToObj(i -> "10.0.0." + i).collect(Collectors.joining("\n"));
+        assertTrue(evaluate(batch, null, "10.0.0.0/8", 3).endsWith("{\"error\":\"Too many addresses, only the first 3 were evaluated\"}\n"));
+
+        // A huge token is truncated instead of being buffered
+        String out = evaluate("1".repeat(10_000_000) + "\n10.0.0.1", null, "10.0.0.0/8", 100);
+        assertTrue(out.startsWith("{\"ip\":\"" + "1".repeat(IpWhitelistAdminResource.MAX_TOKEN_LENGTH) + "...\",\"decision\":\"deny\","));
+        assertTrue(out.endsWith("{\"ip\":\"10.0.0.1\",\"decision\":\"allow\",\"match\":\"10.0.0.0/8\"}\n"));
+    }
+
+    @Test
+    @DisplayName("Should evaluate with the settings of the client profile using the executor")
+    void testEndpointProfiles() throws Exception {
+        RealmModel realm = realm(Map.of("allowed.ip.ranges", "10.0.0.0/8"));
+        ClientProfilesRepresentation profiles = new ClientProfilesRepresentation();
+        profiles.setProfiles(List.of(profile("partners", "192.0.2.0/24"), profile("other", "198.51.100.0/24")));
+        ClientPoliciesRepresentation policies = new ClientPoliciesRepresentation();
+        policies.setPolicies(List.of(policy(true, List.of("partners", "other"), condition("any-client", false))));
+        KeycloakSession session = session(profiles, policies);
+
+        IpWhitelistAdminResource resource = new IpWhitelistAdminResource(session, realm, admin(true));
+        assertThrows(BadRequestException.class, () -> resource.evaluate("partner", null, body("192.0.2.1")));
+        assertThrows(NotFoundException.class, () -> resource.evaluate("partner", "unknown", body("192.0.2.1")));
+        assertEquals("""
+                {"ip":"192.0.2.1","decision":"allow","match":"192.0.2.0/24","source":"profile"}
+                {"ip":"198.51.100.1","decision":"deny","match":null}
+                """, write(resource.evaluate("partner", "partners", body("192.0.2.1 198.51.100.1"))));
+
+        // The only profile is used by default
+        profiles.setProfiles(List.of(profile("other", "198.51.100.0/24")));
+        assertEquals("""
+                {"ip":"198.51.100.1","decision":"allow","match":"198.51.100.0/24","source":"profile"}
+                """, write(resource.evaluate("partner", null, body("198.51.100.1"))));
+    }
+
+    @Test
+    @DisplayName("Should only evaluate clients covered by a client policy using the executor")
+    void testEndpointCoverage() throws Exception {
+        RealmModel realm = realm(Map.of());
+        ClientProfilesRepresentation profiles = new ClientProfilesRepresentation();
+        profiles.setProfiles(List.of(profile("partners", "192.0.2.0/24"), profile("other", "198.51.100.0/24")));
+        ClientPoliciesRepresentation policies = new ClientPoliciesRepresentation();
+        IpWhitelistAdminResource resource = new IpWhitelistAdminResource(session(profiles, policies), realm, admin(true));
+
+        // No policy, a disabled policy, or a policy without conditions
+        policies.setPolicies(List.of());
+        assertEquals(409, assertThrows(ClientErrorException.class,
+                () -> resource.evaluate("partner", null, body("192.0.2.1"))).getResponse().getStatus());
+        policies.setPolicies(List.of(policy(false, List.of("partners"), condition("any-client", false)),
+                policy(true, List.of("partners"))));
+        assertEquals(409, assertThrows(ClientErrorException.class,
+                () -> resource.evaluate("partner", null, body("192.0.2.1"))).getResponse().getStatus());
+
+        // The client has no such role, nor is it public
+        policies.setPolicies(List.of(policy(true, List.of("partners"), condition("client-roles", false, "roles", "partner-api")),
+                policy(true, List.of("other"), condition("client-access-type", false, "type", "public"))));
+        assertEquals(409, assertThrows(ClientErrorException.class,
+                () -> resource.evaluate("partner", null, body("192.0.2.1"))).getResponse().getStatus());
+
+        // Negative logic, and an updater condition abstaining on token requests
+        policies.setPolicies(List.of(policy(true, List.of("partners"), condition("client-roles", true, "roles", "partner-api"),
+                condition("client-updater-context", false)), policy(true, List.of("other"), condition("client-access-type", false, "type", "public"))));
+        assertEquals("""
+                {"ip":"192.0.2.1","decision":"allow","match":"192.0.2.0/24","source":"profile"}
+                """, write(resource.evaluate("partner", null, body("192.0.2.1"))));
+        assertEquals(409, assertThrows(ClientErrorException.class,
+                () -> resource.evaluate("partner", "other", body("192.0.2.1"))).getResponse().getStatus());
+
+        // A condition depending on the request may apply
+        policies.setPolicies(List.of(policy(true, List.of("other"), condition("client-scopes", false, "scopes", "partner"),
+                condition("client-access-type", false, "type", "confidential"))));
+        assertEquals("""
+                {"ip":"198.51.100.1","decision":"allow","match":"198.51.100.0/24","source":"profile"}
+                """, write(resource.evaluate("partner", null, body("198.51.100.1"))));
+    }
+
+    private RealmModel realm(Map<String, String> attributes) {
+        RealmModel realm = KeycloakStubs.realm("test");
+        ClientModel client = KeycloakStubs.client(realm, "partner", attributes);
+        return KeycloakStubs.stub(RealmModel.class, (method, args) -> switch (method) {
+            case "getId", "getName" -> "test";
+            case "getClientByClientId" -> "partner".equals(args[0]) ? client : null;
+            default -> null;
+        });
+    }
+
+    private KeycloakSession session(ClientProfilesRepresentation profiles, ClientPoliciesRepresentation policies) {
+        KeycloakSessionFactory sessionFactory = KeycloakStubs.stub(KeycloakSessionFactory.class,
+                (method, args) -> "getProviderFactory".equals(method) ? factory : null);
+        ClientPolicyManager clientPolicy = KeycloakStubs.stub(ClientPolicyManager.class, (method, args) -> switch (method) {
+            case "getClientProfiles" -> profiles;
+            case "getClientPolicies" -> policies;
+            default -> null;
+        });
+        return KeycloakStubs.stub(KeycloakSession.class, (method, args) -> switch (method) {
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "clientPolicy" -> clientPolicy;
+            default -> null;
+        });
+    }
+
+    private static ClientProfileRepresentation profile(String name, String allowedIpRange) {
+        ClientPolicyExecutorRepresentation executor = new ClientPolicyExecutorRepresentation();
+        executor.setExecutorProviderId(IpWhitelistExecutorFactory.PROVIDER_ID);
+        executor.setConfiguration(JsonSerialization.mapper.createObjectNode()
+                .set(IpWhitelistExecutorFactory.ALLOWED_IP_RANGES, JsonSerialization.mapper.createArrayNode().add(allowedIpRange)));
+        ClientProfileRepresentation profile = new ClientProfileRepresentation();
+        profile.setName(name);
+        profile.setExecutors(List.of(executor));
+        return profile;
+    }
+
+    private static ClientPolicyRepresentation policy(boolean enabled, List<String> profiles,
+                                                     ClientPolicyConditionRepresentation... conditions) {
+        ClientPolicyRepresentation policy = new ClientPolicyRepresentation();
+        policy.setName("policy");
+        policy.setEnabled(enabled);
+        policy.setProfiles(profiles);
+        policy.setConditions(new ArrayList<>(List.of(conditions)));
+        return policy;
+    }
+
+    private static ClientPolicyConditionRepresentation condition(String providerId, boolean negative, String... listConfiguration) {
+        ClientPolicyConditionRepresentation condition = new ClientPolicyConditionRepresentation();
+        condition.setConditionProviderId(providerId);
+        var configuration = JsonSerialization.mapper.createObjectNode().put("is-negative-logic", negative);
+        for (int i = 0; i < listConfiguration.length; i += 2) {
+            configuration.set(listConfiguration[i], JsonSerialization.mapper.createArrayNode().add(listConfiguration[i + 1]));
+        }
+        condition.setConfiguration(configuration);
+        return condition;
+    }
+
+    private static InputStream body(String addresses) {
+        return new ByteArrayInputStream(addresses.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String write(StreamingOutput output) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        output.write(bytes);
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @DisplayName("Should find the largest block of the ranges for every matcher")
+    void testFindMatch() {
+        // Interval table: 16 adjacent /24, merged into a /20
+        String table = IntStream.range(0, 16).mapToObj(i -> "10.1." + i + ".0/24").collect(Collectors.joining(","));
+        assertEquals("10.1.0.0/20", match(table, "10.1.7.1"));
+
+        // Trie: 40 adjacent /24, covered by a /19 and a /21
+        String trie = IntStream.range(0, 40).mapToObj(i -> "10.0." + i + ".0/24").collect(Collectors.joining(","));
+        assertEquals("10.0.0.0/19", match(trie, "10.0.5.1"));
+        assertEquals("10.0.32.0/21", match(trie, "10.0.39.255"));
+        assertNull(match(trie, "10.0.40.0"));
+
+        // Linear, IPv6
+        assertEquals("2001:db8::/32", match("2001:db8::/33,2001:db8:8000::/33", "2001:db8:ffff::1"));
+        assertEquals("2001:db8::1/128", match("2001:db8::1/128,2001:db8::3/128", "2001:db8::1"));
+        assertEquals("0.0.0.0/0", match("0.0.0.0/1,128.0.0.0/1", "203.0.113.7"));
+    }
+
+    @Test
+    @DisplayName("Should find the same prefix in ranges and in IP list files")
+    void testSameAsListFile() throws Exception {
+        Random random = new Random(42);
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            ranges.append(random.nextInt(256)).append('.').append(random.nextInt(256)).append('.')
+                    .append(random.nextInt(256)).append(".0/").append(16 + random.nextInt(17)).append(',');
+        }
+        Files.writeString(directory.resolve("partner-egress"), ranges + "\n");
+
+        CompiledAllowlist inline = CompiledAllowlist.compile(ranges.toString());
+        try (IpListRegistry registry = new IpListRegistry(directory)) {
+            CompiledAllowlist fromFile = CompiledAllowlist.compile("@file:partner-egress", registry);
+            long[] address = new long[2];
+            int matched = 0;
+            for (int i = 0; i < 20_000; i++) {
+                String ip = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+                int family = IpAddressParser.parseAddress(ip, address);
+                RangeSetMatcher.Match expected = fromFile.findMatch(family, address[0], address[1]);
+                RangeSetMatcher.Match actual = inline.findMatch(family, address[0], address[1]);
+                assertEquals(expected == null ? null : expected.toCidr(), actual == null ? null : actual.toCidr(), ip);
+                if (actual != null) {
+                    assertEquals("partner-egress", expected.list());
+                    matched++;
+                }
+            }
+            assertTrue(matched > 0);
+        }
+    }
+
+    @Test
+    @DisplayName("Should require viewing the realm to read the metrics")
+    void testMetricsRequireViewRealm() {
+        factory.getMetrics().record("test", "partner", DecisionMetrics.Decision.ALLOW, 1_000);
+
+        KeycloakSessionFactory sessionFactory = KeycloakStubs.stub(KeycloakSessionFactory.class,
+                (method, args) -> "getProviderFactory".equals(method) ? factory : null);
+        KeycloakSession session = KeycloakStubs.stub(KeycloakSession.class,
+                (method, args) -> "getKeycloakSessionFactory".equals(method) ? sessionFactory : null);
+        RealmModel realm = KeycloakStubs.realm("test");
+
+        assertThrows(ForbiddenException.class, () -> new IpWhitelistAdminResource(session, realm, admin(false)).getMetrics());
+        assertTrue(new IpWhitelistAdminResource(session, realm, admin(true)).getMetrics()
+                .contains("df_ip_whitelist_decisions_total{realm=\"test\",client_id=\"partner\",decision=\"allow\"} 1\n"));
+    }
+
+    private static AdminPermissionEvaluator admin(boolean canViewRealm) {
+        RealmPermissionEvaluator realm = KeycloakStubs.stub(RealmPermissionEvaluator.class, (method, args) -> {
+            if ("requireViewRealm".equals(method) && !canViewRealm) {
+                throw new ForbiddenException();
+            }
+            return null;
+        });
+        ClientPermissionEvaluator clients = KeycloakStubs.stub(ClientPermissionEvaluator.class, (method, args) -> null);
+        return KeycloakStubs.stub(AdminPermissionEvaluator.class, (method, args) -> switch (method) {
+            case "realm" -> realm;
+            case "clients" -> clients;
+            default -> null;
+        });
+    }
+
+    private static String match(String ranges, String ip) {
+        long[] address = new long[2];
+        int family = IpAddressParser.parseAddress(ip, address);
+        RangeSetMatcher.Match match = CompiledAllowlist.compile(ranges).findMatch(family, address[0], address[1]);
+        return match == null ? null : match.toCidr();
+    }
+}
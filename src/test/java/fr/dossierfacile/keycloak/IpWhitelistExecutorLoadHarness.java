@@ -0,0 +1,385 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutor;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.clientpolicy.ClientPolicyContext;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.AuthorizationRequestContext;
+import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
+import org.keycloak.services.clientpolicy.context.TokenRefreshContext;
+import org.keycloak.services.clientpolicy.context.TokenRequestContext;
+import org.keycloak.services.clientpolicy.context.UserInfoRequestContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load harness of IpWhitelistExecutor.executeOnEvent: request threads sharing one factory call the
+ * executor as Keycloak does, one executor per request, on a mix of clients, addresses and client
+ * policy events, with stubbed Keycloak sessions.
+ * <p>
+ * Unlike the JMH benchmarks, it shows the effects of contention on the shared caches and metrics,
+ * of exceptions and of allocation under load. It reports the throughput, the latency percentiles and
+ * the allocation per call, and fails when they pass the thresholds. It is not part of {@code mvn test};
+ * run it with the {@code load} profile, options as system properties:
+ * <pre>
+ * mvn -Pload test -Dload.threads=64 -Dload.virtualThreads=true -Dload.maxP99Micros=200
+ * </pre>
+ */
+@DisplayName("IP Whitelist Executor Load Harness")
+class IpWhitelistExecutorLoadHarness {
+
+    private static final int THREADS = Integer.getInteger("load.threads", 2 * Runtime.getRuntime().availableProcessors());
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("load.virtualThreads");
+    private static final int WARM_UP_SECONDS = Integer.getInteger("load.warmUpSeconds", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 20);
+    private static final int CLIENTS = Integer.getInteger("load.clients", 500);
+    private static final int REQUESTS = Integer.getInteger("load.requests", 20_000);
+    private static final int DECISION_CACHE_SIZE = Integer.getInteger("load.decisionCacheSize", 0);
+    private static final int DENY_BURST = Integer.getInteger("load.denyBurst", 0);
+    private static final String AUDIT_DIRECTORY = System.getProperty("load.auditDirectory");
+
+    private static final double MIN_THROUGHPUT = Double.parseDouble(System.getProperty("load.minThroughput", "10000"));
+    private static final long MAX_P99_MICROS = Long.getLong("load.maxP99Micros", 2_000);
+    private static final long MAX_P999_MICROS = Long.getLong("load.maxP999Micros", 20_000);
+    private static final long MAX_BYTES_PER_CALL = Long.getLong("load.maxAllocatedBytesPerCall", 8_192);
+
+    private static final String[] REALMS = {"dossier-facile", "dossier-facile-owner", "partners"};
+    private static final String TRUSTED_PROXIES = "10.255.0.0/16";
+
+    private static final ClientPolicyContext SERVICE_ACCOUNT_TOKEN_REQUEST = new ServiceAccountTokenRequestContext(null, null);
+    private static final ClientPolicyContext TOKEN_REQUEST = new TokenRequestContext(null, null);
+    private static final ClientPolicyContext[] OTHER_EVENTS = {
+            new TokenRefreshContext(null), new UserInfoRequestContext(null), new AuthorizationRequestContext(null, null, null, null)};
+
+    @Test
+    @DisplayName("Should sustain concurrent token requests within the latency and allocation thresholds")
+    void testExecuteOnEvent() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("trustedProxies", TRUSTED_PROXIES);
+        if (AUDIT_DIRECTORY != null) {
+            config.put("auditDirectory", AUDIT_DIRECTORY);
+        }
+        IpWhitelistExecutorFactory factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(config));
+        IpWhitelistExecutor.Configuration executorConfig = new IpWhitelistExecutor.Configuration();
+        executorConfig.setDecisionCacheSize(DECISION_CACHE_SIZE);
+        executorConfig.setDenyBurst(DENY_BURST);
+
+        try {
+            List<Request> requests = requests(new SplittableRandom(42));
+            run(factory, executorConfig, requests, WARM_UP_SECONDS);
+
+            long gcCount = 0;
+            long gcMillis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount -= gc.getCollectionCount();
+                gcMillis -= gc.getCollectionTime();
+            }
+            Result result = run(factory, executorConfig, requests, DURATION_SECONDS);
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += gc.getCollectionCount();
+                gcMillis += gc.getCollectionTime();
+            }
+
+            double throughput = result.calls * 1e9 / result.elapsedNanos;
+            long p99 = result.latencies.percentile(0.99) / 1000;
+            long p999 = result.latencies.percentile(0.999) / 1000;
+            long bytesPerCall = result.allocatedBytes >= 0 ? result.allocatedBytes / Math.max(1, result.calls) : -1;
+
+            System.out.printf("%nIpWhitelistExecutor load: %d %s threads, %d clients, %d s%n",
+                    THREADS, VIRTUAL_THREADS ? "virtual" : "platform", CLIENTS, DURATION_SECONDS);
+            System.out.printf("  calls        %d (%.0f/s), %.1f%% rejected%n",
+                    result.calls, throughput, 100.0 * result.rejected / Math.max(1, result.calls));
+            System.out.printf("  latency      p50 %.1f us, p99 %d us, p999 %d us, max %d us%n",
+                    result.latencies.percentile(0.5) / 1000.0, p99, p999, result.latencies.max() / 1000);
+            System.out.printf("  allocation   %s%n", bytesPerCall >= 0
+                    ? bytesPerCall + " bytes/call, " + result.allocatedBytes * 1000 / result.elapsedNanos + " MB/s"
+                    : "not measured (virtual threads)");
+            System.out.printf("  GC           %d collections, %d ms%n%n", gcCount, gcMillis);
+
+            assertAll(
+                    () -> assertEquals(0, result.unexpected, "Decisions differing from the expected ones"),
+                    () -> assertTrue(throughput >= MIN_THROUGHPUT,
+                            String.format("Throughput %.0f/s is below load.minThroughput=%.0f", throughput, MIN_THROUGHPUT)),
+                    () -> assertTrue(p99 <= MAX_P99_MICROS, "p99 " + p99 + " us is above load.maxP99Micros=" + MAX_P99_MICROS),
+                    () -> assertTrue(p999 <= MAX_P999_MICROS, "p999 " + p999 + " us is above load.maxP999Micros=" + MAX_P999_MICROS),
+                    () -> assertTrue(bytesPerCall <= MAX_BYTES_PER_CALL,
+                            bytesPerCall + " bytes/call is above load.maxAllocatedBytesPerCall=" + MAX_BYTES_PER_CALL));
+        } finally {
+            factory.close();
+        }
+    }
+
+    /**
+     * Call the executor from {@link #THREADS} threads for a duration, each thread picking random requests.
+     */
+    private static Result run(IpWhitelistExecutorFactory factory, IpWhitelistExecutor.Configuration executorConfig,
+                              List<Request> requests, int seconds) throws Exception {
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        List<Callable<Result>> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            long seed = i;
+            workers.add(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                ready.countDown();
+                start.await();
+                return work(factory, executorConfig, requests, random, deadline[0]);
+            });
+        }
+
+        ExecutorService threads = newThreads();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Callable<Result> worker : workers) {
+                futures.add(threads.submit(worker));
+            }
+            ready.await();
+            long startNanos = System.nanoTime();
+            deadline[0] = startNanos + seconds * 1_000_000_000L;
+            start.countDown();
+
+            Result total = new Result();
+            for (Future<Result> future : futures) {
+                total.merge(future.get());
+            }
+            total.elapsedNanos = System.nanoTime() - startNanos;
+            return total;
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private static Result work(IpWhitelistExecutorFactory factory, IpWhitelistExecutor.Configuration executorConfig,
+                               List<Request> requests, SplittableRandom random, long deadline) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Result result = new Result();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+
+        long now = System.nanoTime();
+        while (now < deadline) {
+            Request request = requests.get(random.nextInt(requests.size()));
+            boolean rejected = false;
+            try {
+                IpWhitelistExecutor executor = factory.create(request.session);
+                executor.setupConfiguration(executorConfig);
+                executor.executeOnEvent(request.context);
+            } catch (ClientPolicyException e) {
+                rejected = true;
+            }
+            long end = System.nanoTime();
+            result.latencies.record(end - now);
+            result.calls++;
+            if (rejected) {
+                result.rejected++;
+            }
+            // A throttle may reject allowed addresses sharing an IP with denied ones
+            if (rejected != request.expectRejected && DENY_BURST == 0) {
+                result.unexpected++;
+            }
+            now = end;
+        }
+
+        long allocatedAfter = threadBean.getCurrentThreadAllocatedBytes();
+        result.allocatedBytes = allocatedBefore >= 0 && allocatedAfter >= 0 ? allocatedAfter - allocatedBefore : -1;
+        return result;
+    }
+
+    private static ExecutorService newThreads() {
+        if (VIRTUAL_THREADS) {
+            // Built with Java 17: virtual threads are looked up at run time
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads need Java 21, run with -Dload.virtualThreads=false", e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "load-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Requests of {@link #CLIENTS} clients: mostly allowed token requests, some denied, invalid or
+     * without address, and other client policy events that the executor ignores. Most clients have a
+     * few ranges, some have enough ranges for the interval table or the trie, a few have none.
+     */
+    private static List<Request> requests(SplittableRandom random) {
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            RealmModel realm = KeycloakStubs.realm(REALMS[i % REALMS.length]);
+            int percentile = random.nextInt(100);
+            int rangeCount = percentile < 70 ? 1 + random.nextInt(4)
+                    : percentile < 90 ? 10 + random.nextInt(20)
+                    : percentile < 98 ? 200 + random.nextInt(800)
+                    : 0;
+            List<String> ranges = new ArrayList<>();
+            for (int r = 0; r < rangeCount; r++) {
+                ranges.add("100." + random.nextInt(128) + "." + random.nextInt(256) + ".0/24");
+            }
+            if (rangeCount > 0 && random.nextInt(4) == 0) {
+                ranges.add("2001:db8:" + Integer.toHexString(i) + "::/48");
+            }
+
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("has.ip.restriction", "true");
+            if (!ranges.isEmpty()) {
+                attributes.put("allowed.ip.ranges", String.join(",", ranges));
+            }
+            clients.add(new Client(realm, KeycloakStubs.client(realm, "client-" + i, attributes), ranges));
+        }
+
+        List<Request> requests = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            Client client = clients.get(random.nextInt(clients.size()));
+            int eventKind = random.nextInt(100);
+            ClientPolicyContext context = eventKind < 55 ? SERVICE_ACCOUNT_TOKEN_REQUEST
+                    : eventKind < 80 ? TOKEN_REQUEST
+                    : OTHER_EVENTS[random.nextInt(OTHER_EVENTS.length)];
+
+            int addressKind = random.nextInt(100);
+            String ip;
+            if (client.ranges.isEmpty() || addressKind >= 98) {
+                ip = addressKind == 99 ? null : "unknown";
+            } else if (addressKind < 88) {
+                String range = client.ranges.get(random.nextInt(client.ranges.size()));
+                ip = range.contains(":")
+                        ? range.substring(0, range.indexOf("::")) + ":" + Integer.toHexString(random.nextInt(0x10000)) + "::1"
+                        : range.substring(0, range.lastIndexOf('.') + 1) + (1 + random.nextInt(254));
+            } else {
+                ip = random.nextBoolean() ? "198.51.100." + random.nextInt(256) : "2001:db8:ffff::" + Integer.toHexString(random.nextInt(0x10000));
+            }
+            boolean allowed = ip != null && addressKind < 88 && !client.ranges.isEmpty();
+
+            // Most requests come through the reverse proxy, the others directly
+            Map<String, String> headers = new HashMap<>();
+            String remoteAddr;
+            if (random.nextInt(10) < 7) {
+                remoteAddr = "10.255.0." + (1 + random.nextInt(4));
+                if (ip != null) {
+                    headers.put("X-Forwarded-For", random.nextBoolean() ? ip : ip + ", 10.255.1.1");
+                }
+            } else {
+                remoteAddr = ip;
+            }
+
+            KeycloakSession session = KeycloakStubs.session(KeycloakStubs.context(client.realm, client.model, headers, remoteAddr));
+            boolean tokenRequest = context == SERVICE_ACCOUNT_TOKEN_REQUEST || context == TOKEN_REQUEST;
+            requests.add(new Request(session, context, tokenRequest && !allowed));
+        }
+        return requests;
+    }
+
+    private record Client(RealmModel realm, ClientModel model, List<String> ranges) {
+    }
+
+    private record Request(KeycloakSession session, ClientPolicyContext context, boolean expectRejected) {
+    }
+
+    /**
+     * Calls of one thread, then of all of them once merged.
+     */
+    private static final class Result {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long calls;
+        private long rejected;
+        private long unexpected;
+        private long allocatedBytes;
+        private long elapsedNanos;
+
+        void merge(Result other) {
+            latencies.merge(other.latencies);
+            calls += other.calls;
+            rejected += other.rejected;
+            unexpected += other.unexpected;
+            allocatedBytes = allocatedBytes < 0 || other.allocatedBytes < 0 ? -1 : allocatedBytes + other.allocatedBytes;
+        }
+    }
+
+    /**
+     * Log-linear histogram of durations in nanoseconds, within about 3%, that does not allocate when recording.
+     */
+    private static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            counts[index(Math.max(0, nanos))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        void merge(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile, in nanoseconds
+         */
+        long percentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long base = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return base + (1L << shift) - 1;
+        }
+    }
+}
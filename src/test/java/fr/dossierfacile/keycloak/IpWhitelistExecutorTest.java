@@ -0,0 +1,138 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutor;
+import fr.dossierfacile.keycloak.executor.IpWhitelistExecutorFactory;
+import fr.dossierfacile.keycloak.support.KeycloakStubs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.clientpolicy.ClientPolicyEvent;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.ServiceAccountTokenRequestContext;
+import org.keycloak.services.clientpolicy.context.TokenRequestContext;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for IpWhitelistExecutor.
+ */
+@DisplayName("IP Whitelist Executor Tests")
+class IpWhitelistExecutorTest {
+
+    private IpWhitelistExecutorFactory factory;
+    private Map<String, String> attributes;
+    private Map<String, String> headers;
+    private KeycloakSession session;
+
+    @BeforeEach
+    void setUp() {
+        factory = new IpWhitelistExecutorFactory();
+        factory.init(KeycloakStubs.config(Map.of()));
+        attributes = new HashMap<>();
+        headers = new HashMap<>();
+        RealmModel realm = KeycloakStubs.realm("test");
+        session = KeycloakStubs.session(KeycloakStubs.context(realm,
+                KeycloakStubs.client(realm, "partner", attributes), headers, null));
+    }
+
+    @AfterEach
+    void tearDown() {
+        factory.close();
+    }
+
+    @Test
+    @DisplayName("Should merge profile ranges with client ranges")
+    void testProfileRanges() {
+        IpWhitelistExecutor executor = executor(configuration(List.of("192.0.2.0/24", "2001:db8::/32"), null));
+        var context = new ServiceAccountTokenRequestContext(null, null);
+
+        // Profile ranges alone are enough
+        headers.put("X-Real-IP", "192.0.2.10");
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+        headers.put("X-Real-IP", "2001:db8::1");
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+        headers.put("X-Real-IP", "10.0.0.1");
+        assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+
+        attributes.put("allowed.ip.ranges", "10.0.0.0/8");
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+        headers.put("X-Real-IP", "192.0.2.10");
+        assertDoesNotThrow(() -> executor.executeOnEvent(context));
+        headers.put("X-Real-IP", "198.51.100.1");
+        assertThrows(ClientPolicyException.class, () -> executor.executeOnEvent(context));
+    }
+
+    @Test
+    @DisplayName("Should keep checking profile ranges after many profile edits")
+    void testProfileRangesEdits() {
+        var context = new ServiceAccountTokenRequestContext(null, null);
+        IpWhitelistExecutor first = executor(configuration(List.of("192.0.2.0/24"), null));
+
+        // Each edit of a profile compiles new ranges, the old ones are dropped in bulk
+        for (int i = 0; i < 1000; i++) {
+            IpWhitelistExecutor edited = executor(configuration(List.of("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"), null));
+            headers.put("X-Real-IP", "10." + (i >> 8) + "." + (i & 0xFF) + ".1");
+            assertDoesNotThrow(() -> edited.executeOnEvent(context));
+        }
+
+        headers.put("X-Real-IP", "192.0.2.10");
+        assertDoesNotThrow(() -> first.executeOnEvent(context));
+        assertDoesNotThrow(() -> executor(configuration(List.of("192.0.2.0/24"), null)).executeOnEvent(context));
+        headers.put("X-Real-IP", "10.0.0.1");
+        assertThrows(ClientPolicyException.class, () -> executor(configuration(List.of("192.0.2.0/24"), null)).executeOnEvent(context));
+    }
+
+    @Test
+    @DisplayName("Should only check the configured events")
+    void testEvents() {
+        headers.put("X-Real-IP", "10.0.0.1");
+        attributes.put("allowed.ip.ranges", "192.0.2.0/24");
+
+        // Token requests are checked by default
+        IpWhitelistExecutor byDefault = executor(null);
+        assertThrows(ClientPolicyException.class, () -> byDefault.executeOnEvent(new TokenRequestContext(null, null)));
+        assertThrows(ClientPolicyException.class, () -> byDefault.executeOnEvent(new ServiceAccountTokenRequestContext(null, null)));
+        assertDoesNotThrow(() -> byDefault.executeOnEvent(() -> ClientPolicyEvent.TOKEN_REFRESH));
+
+        IpWhitelistExecutor refreshOnly = executor(configuration(null, List.of("TOKEN_REFRESH", "NOT_AN_EVENT")));
+        assertThrows(ClientPolicyException.class, () -> refreshOnly.executeOnEvent(() -> ClientPolicyEvent.TOKEN_REFRESH));
+        assertDoesNotThrow(() -> refreshOnly.executeOnEvent(new ServiceAccountTokenRequestContext(null, null)));
+
+        // Only unknown events: the token requests are still checked
+        IpWhitelistExecutor typo = executor(configuration(null, List.of("TOKEN_REQUSET")));
+        assertThrows(ClientPolicyException.class, () -> typo.executeOnEvent(new TokenRequestContext(null, null)));
+        assertThrows(ClientPolicyException.class, () -> typo.executeOnEvent(new ServiceAccountTokenRequestContext(null, null)));
+        assertDoesNotThrow(() -> typo.executeOnEvent(() -> ClientPolicyEvent.TOKEN_REFRESH));
+    }
+
+    @Test
+    @DisplayName("Should not touch the session for ignored events")
+    void testShortCircuit() {
+        IpWhitelistExecutor executor = factory.create(KeycloakStubs.stub(KeycloakSession.class, (method, args) -> {
+            throw new AssertionError("Session accessed by " + method);
+        }));
+        executor.setupConfiguration(null);
+
+        assertDoesNotThrow(() -> executor.executeOnEvent(() -> ClientPolicyEvent.AUTHORIZATION_REQUEST));
+    }
+
+    private IpWhitelistExecutor executor(IpWhitelistExecutor.Configuration configuration) {
+        IpWhitelistExecutor executor = factory.create(session);
+        executor.setupConfiguration(configuration);
+        return executor;
+    }
+
+    private static IpWhitelistExecutor.Configuration configuration(List<String> allowedIpRanges, List<String> events) {
+        IpWhitelistExecutor.Configuration configuration = new IpWhitelistExecutor.Configuration();
+        configuration.setAllowedIpRanges(allowedIpRanges);
+        configuration.setEvents(events);
+        return configuration;
+    }
+}
@@ -0,0 +1,120 @@
+package fr.dossierfacile.keycloak;
+
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.IpAddressParser;
+import fr.dossierfacile.keycloak.executor.LinearPrefixMatcher;
+import fr.dossierfacile.keycloak.executor.PrefixMatcher;
+import fr.dossierfacile.keycloak.executor.PrefixTrieMatcher;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for PrefixTrieMatcher.
+ */
+@DisplayName("Prefix Trie Matcher Tests")
+class PrefixTrieMatcherTest {
+
+    @Test
+    @DisplayName("Should match IPv4 prefixes")
+    void testIpv4Prefixes() {
+        PrefixTrieMatcher trie = ipv4Trie("192.168.1.0/24", "10.0.0.0/8", "10.1.0.0/16", "203.0.113.7/32");
+
+        assertTrue(trie.contains(ipv4("192.168.1.100"), 0));
+        assertTrue(trie.contains(ipv4("10.200.0.1"), 0));
+        assertTrue(trie.contains(ipv4("203.0.113.7"), 0));
+        assertFalse(trie.contains(ipv4("203.0.113.8"), 0));
+        assertFalse(trie.contains(ipv4("192.168.2.1"), 0));
+        assertFalse(trie.contains(ipv4("11.0.0.1"), 0));
+
+        // 10.1.0.0/16 is covered by 10.0.0.0/8 and is not stored
+        assertEquals(4, trie.size());
+        assertEquals(5, trie.nodeCount());
+    }
+
+    @Test
+    @DisplayName("Should handle empty and default routes")
+    void testEmptyAndDefaultRoute() {
+        assertFalse(ipv4Trie().contains(ipv4("10.0.0.1"), 0));
+
+        PrefixTrieMatcher all = ipv4Trie("192.168.1.0/24", "0.0.0.0/0", "10.0.0.0/8");
+        assertTrue(all.contains(ipv4("8.8.8.8"), 0));
+        assertEquals(1, all.nodeCount());
+    }
+
+    @Test
+    @DisplayName("Should agree with a linear scan on random prefixes")
+    void testAgreesWithLinearScan() {
+        Random random = new Random(42);
+        for (int width : new int[]{32, 128}) {
+            int count = 500;
+            long[] his = new long[count];
+            long[] los = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                // Few distinct high bits so that prefixes overlap and nest
+                his[i] = random.nextLong() & 0xF0F0_0000_0000_0000L | (width == 32 ? 0 : random.nextLong() & 0xFF);
+                los[i] = width == 32 ? 0 : random.nextLong();
+                lengths[i] = random.nextInt(width + 1);
+                if (width == 32) {
+                    his[i] &= 0xFFFF_FFFF_0000_0000L;
+                }
+            }
+
+            PrefixMatcher linear = new LinearPrefixMatcher(his, los, lengths, count);
+            PrefixMatcher trie = PrefixTrieMatcher.build(his, los, lengths, count);
+            for (int i = 0; i < 100_000; i++) {
+                long hi = random.nextLong() & 0xF0F0_0000_0000_00FFL;
+                long lo = width == 32 ? 0 : random.nextLong();
+                if (width == 32) {
+                    hi &= 0xFFFF_FFFF_0000_0000L;
+                }
+                if (i % 2 == 0) {
+                    // Pick an address inside a known prefix half of the time
+                    int p = random.nextInt(count);
+                    hi = his[p] ^ (random.nextLong() & ~PrefixMatcher.maskHi(lengths[p]));
+                    lo = los[p] ^ (random.nextLong() & ~PrefixMatcher.maskLo(lengths[p]));
+                    if (width == 32) {
+                        hi &= 0xFFFF_FFFF_0000_0000L;
+                        lo = 0;
+                    }
+                }
+                assertEquals(linear.contains(hi, lo), trie.contains(hi, lo), "width " + width);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Should use the trie for long allowlists")
+    void testCompiledAllowlistAboveThreshold() {
+        StringJoiner ranges = new StringJoiner(",");
+        for (int i = 0; i <= CompiledAllowlist.TRIE_THRESHOLD; i++) {
+            ranges.add("10." + i + ".0.0/16");
+        }
+        CompiledAllowlist allowlist = CompiledAllowlist.compile(ranges.toString());
+
+        assertEquals(CompiledAllowlist.TRIE_THRESHOLD + 1, allowlist.size());
+        assertTrue(allowlist.matches("10.0.1.1"));
+        assertTrue(allowlist.matches("10." + CompiledAllowlist.TRIE_THRESHOLD + ".255.255"));
+        assertFalse(allowlist.matches("10.200.0.1"));
+    }
+
+    private static long ipv4(String ip) {
+        return PrefixMatcher.ipv4Key(IpAddressParser.parseIpv4(ip));
+    }
+
+    private static PrefixTrieMatcher ipv4Trie(String... cidrs) {
+        long[] his = new long[cidrs.length];
+        int[] lengths = new int[cidrs.length];
+        for (int i = 0; i < cidrs.length; i++) {
+            int slash = cidrs[i].indexOf('/');
+            his[i] = PrefixMatcher.ipv4Key(IpAddressParser.parseIpv4(cidrs[i], 0, slash));
+            lengths[i] = IpAddressParser.parsePrefixLength(cidrs[i], slash + 1, cidrs[i].length(), 32);
+        }
+        return PrefixTrieMatcher.build(his, new long[cidrs.length], lengths, cidrs.length);
+    }
+}
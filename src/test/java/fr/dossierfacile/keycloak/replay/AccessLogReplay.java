@@ -0,0 +1,373 @@
+package fr.dossierfacile.keycloak.replay;
+
+import fr.dossierfacile.keycloak.executor.CompiledAllowlist;
+import fr.dossierfacile.keycloak.executor.IpListRegistry;
+import fr.dossierfacile.keycloak.executor.MappedIpList;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline replay of access logs against the IP restrictions of a realm export, to see which
+ * past callers a change of {@code allowed.ip.ranges} would reject.
+ * <p>
+ * Log files are split into chunks on line boundaries, and the chunks are memory-mapped and
+ * replayed in parallel on the common fork-join pool, each into its own {@link ReplayReport}.
+ * A regular expression extracts the client id, the source IP and optionally the realm of each
+ * line; the IP is checked in place with the {@link CompiledAllowlist} the executor uses.
+ * Lines of a realm without a client id are counted as unattributed, and the replay fails if no
+ * line can be attributed, since the format then does not match the logs.
+ * <p>
+ * {@code @file:} references are read from the IP list directory. A reference that cannot be
+ * resolved (no directory, or a missing or empty file) may have allowed any caller, so the
+ * requests of its client not allowed by the other ranges are counted as unresolved, not denied.
+ * <p>
+ * The tool lives in the test sources, so that it is not shipped in the provider jar.
+ * <pre>
+ * mvn -Preplay test-compile exec:exec -Dreplay.args="--export export.json --override partner=10.0.0.0/8 access.log"
+ * </pre>
+ */
+public final class AccessLogReplay {
+
+    /**
+     * Common and combined log formats. The client id is read from the query string, else from the
+     * user of the Basic authentication ({@code %u}, {@code $remote_user}), which is the client id of
+     * client_credentials requests authenticated with {@code client_secret_basic}. A client id sent
+     * in a POST body is not logged: such lines are unattributed.
+     */
+    public static final String COMBINED_PATTERN =
+            "^(?<ip>[0-9A-Fa-f:.]+)\\s+\\S+\\s+(?<user>\\S+)\\s+\\[[^\\]]*\\]\\s+\"\\S+\\s+/realms/(?<realm>[^/\\s]+)/"
+                    + "(?:\\S*?[?&]client_id=(?<client>[^&\\s\"]+))?";
+
+    /**
+     * Audit files of the executor.
+     */
+    public static final String AUDIT_PATTERN =
+            "\"realm\":\"(?<realm>[^\"]*)\",\"clientId\":\"(?<client>[^\"]*)\",\"ip\":\"(?<ip>[^\"]*)\"";
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_IPS = 20;
+
+    private static final int BOUNDARY_WINDOW = 8192;
+
+    private final Pattern pattern;
+    private final boolean hasRealm;
+    private final boolean hasUser;
+    private final int chunkSize;
+    // Restricted clients by realm name then client id, and by client id for formats without realm
+    private final Map<String, Map<String, Target>> byRealm = new HashMap<>();
+    private final Map<String, Target> byClientId = new HashMap<>();
+
+    /**
+     * Replay without IP list files: the clients with {@code @file:} references are reported as unresolved.
+     *
+     * @see #AccessLogReplay(RealmExport, Map, String, Pattern, IpListRegistry, int)
+     */
+    public AccessLogReplay(RealmExport export, Map<String, String> overrides, String realm, Pattern pattern, int chunkSize) {
+        this(export, overrides, realm, pattern, null, chunkSize);
+    }
+
+    /**
+     * @param export    The restricted clients
+     * @param overrides Allowed ranges replacing those of the export, by client id. Clients missing
+     *                  from the export are added as restricted clients of {@code realm}, or of every realm.
+     * @param realm     The only realm to replay, null for all of them
+     * @param pattern   Extracts the {@code ip} and {@code client} named groups, and optionally {@code realm},
+     *                  and {@code user} read as the client id when {@code client} is not matched
+     * @param ipLists   Resolves the {@code @file:} references, null if there is no IP list directory
+     * @param chunkSize Size of the chunks replayed in parallel, in bytes
+     */
+    public AccessLogReplay(RealmExport export, Map<String, String> overrides, String realm, Pattern pattern,
+                           IpListRegistry ipLists, int chunkSize) {
+        if (!pattern.pattern().contains("(?<ip>") || !pattern.pattern().contains("(?<client>")) {
+            throw new IllegalArgumentException("The log pattern must have the named groups ip and client");
+        }
+        this.pattern = pattern;
+        this.hasRealm = pattern.pattern().contains("(?<realm>");
+        this.hasUser = pattern.pattern().contains("(?<user>");
+        this.chunkSize = chunkSize;
+
+        export.getRealms().forEach((realmName, clients) -> {
+            if (realm != null && !realm.equals(realmName)) {
+                return;
+            }
+            Map<String, RealmExport.RestrictedClient> restricted = new LinkedHashMap<>(clients);
+            overrides.forEach((clientId, ranges) ->
+                    restricted.put(clientId, new RealmExport.RestrictedClient(realmName, clientId, ranges)));
+            restricted.forEach((clientId, client) -> {
+                Target target = new Target(client, CompiledAllowlist.compile(client.allowedRanges(), ipLists),
+                        unresolvedReferences(client.allowedRanges(), ipLists));
+                byRealm.computeIfAbsent(realmName, key -> new HashMap<>()).put(clientId, target);
+                byClientId.putIfAbsent(clientId, target);
+            });
+        });
+    }
+
+    /**
+     * Return the {@code @file:} references of a client that cannot be resolved: every one without
+     * IP list directory, else those with an invalid name or a missing, unreadable or empty file.
+     */
+    private static List<String> unresolvedReferences(String allowedRanges, IpListRegistry ipLists) {
+        List<String> unresolved = new ArrayList<>();
+        for (String range : allowedRanges.split(",")) {
+            String cleanRange = range.trim();
+            if (!cleanRange.startsWith(IpListRegistry.REFERENCE_PREFIX)) {
+                continue;
+            }
+            String name = cleanRange.substring(IpListRegistry.REFERENCE_PREFIX.length());
+            if (ipLists == null || !IpListRegistry.isValidName(name) || ipLists.get(name).get() == MappedIpList.EMPTY) {
+                unresolved.add(cleanRange);
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * Replay log files.
+     *
+     * @throws IOException if a file cannot be read
+     */
+    public ReplayReport replay(List<Path> files) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        for (Path file : files) {
+            split(file, chunks);
+        }
+        try {
+            return chunks.parallelStream()
+                    .map(this::replay)
+                    .reduce(ReplayReport::merge)
+                    .orElseGet(ReplayReport::new);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Split a file into chunks of about {@link #chunkSize} bytes, ending after a new line.
+     */
+    private void split(Path file, List<Chunk> chunks) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer window = ByteBuffer.allocate(BOUNDARY_WINDOW);
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + chunkSize);
+                // Move the end after the next new line
+                while (end < size) {
+                    window.clear();
+                    int read = channel.read(window, end);
+                    int newLine = -1;
+                    for (int i = 0; i < read && newLine < 0; i++) {
+                        if (window.get(i) == '\n') {
+                            newLine = i;
+                        }
+                    }
+                    if (newLine >= 0) {
+                        end += newLine + 1;
+                        break;
+                    }
+                    end = Math.min(size, end + Math.max(read, 1));
+                }
+                chunks.add(new Chunk(file, start, end - start));
+                start = end;
+            }
+        }
+    }
+
+    private ReplayReport replay(Chunk chunk) {
+        ReplayReport report = new ReplayReport();
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.offset, chunk.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Latin1Slice line = new Latin1Slice(buffer);
+        Matcher matcher = pattern.matcher("");
+        int limit = buffer.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            int lineEnd = end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+            line.reset(start, lineEnd - start);
+            replayLine(line, matcher, report);
+            start = end + 1;
+        }
+        return report;
+    }
+
+    private void replayLine(Latin1Slice line, Matcher matcher, ReplayReport report) {
+        report.countLine();
+        matcher.reset(line);
+        if (!matcher.find()) {
+            report.countSkipped();
+            return;
+        }
+
+        int clientStart = matcher.start("client");
+        int clientEnd = matcher.end("client");
+        // The user is "-" when the request had no Basic authentication
+        if (clientStart < 0 && hasUser && matcher.start("user") >= 0
+                && !(matcher.end("user") - matcher.start("user") == 1 && line.charAt(matcher.start("user")) == '-')) {
+            clientStart = matcher.start("user");
+            clientEnd = matcher.end("user");
+        }
+        if (clientStart < 0) {
+            report.countUnattributed();
+            return;
+        }
+
+        String clientId = line.subSequence(clientStart, clientEnd).toString();
+        Target target;
+        if (hasRealm && matcher.start("realm") >= 0) {
+            Map<String, Target> clients = byRealm.get(line.subSequence(matcher.start("realm"), matcher.end("realm")).toString());
+            target = clients != null ? clients.get(clientId) : null;
+        } else {
+            target = byClientId.get(clientId);
+        }
+        if (target == null) {
+            report.countSkipped();
+            return;
+        }
+
+        int ipStart = matcher.start("ip");
+        int ipEnd = matcher.end("ip");
+        if (target.allowlist.size() > 0 && target.allowlist.matches(line, ipStart, ipEnd)) {
+            report.countAllowed(target.client);
+        } else if (!target.unresolved.isEmpty()) {
+            report.countUnresolved(target.client, target.unresolved);
+        } else {
+            report.countDenied(target.client, line.subSequence(ipStart, ipEnd).toString().trim());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        PrintStream out = System.out;
+        Path export = null;
+        String realm = null;
+        Path ipListDirectory = null;
+        String format = COMBINED_PATTERN;
+        int maxIps = DEFAULT_MAX_IPS;
+        Map<String, String> overrides = new LinkedHashMap<>();
+        List<Path> files = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--export" -> export = Paths.get(args[++i]);
+                    case "--realm" -> realm = args[++i];
+                    case "--ip-list-directory" -> ipListDirectory = Paths.get(args[++i]);
+                    case "--format" -> format = switch (args[++i]) {
+                        case "combined" -> COMBINED_PATTERN;
+                        case "audit" -> AUDIT_PATTERN;
+                        default -> throw new IllegalArgumentException("Unknown format: " + args[i]);
+                    };
+                    case "--pattern" -> format = args[++i];
+                    case "--override" -> {
+                        String[] override = args[++i].split("=", 2);
+                        if (override.length != 2) {
+                            throw new IllegalArgumentException("Expected clientId=ranges: " + args[i]);
+                        }
+                        overrides.put(override[0], override[1]);
+                    }
+                    case "--max-ips" -> maxIps = Integer.parseInt(args[++i]);
+                    default -> {
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option: " + args[i]);
+                        }
+                        files.add(Paths.get(args[i]));
+                    }
+                }
+            }
+            if (export == null || files.isEmpty()) {
+                throw new IllegalArgumentException("An export and at least one log file are required");
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e.getMessage() != null ? e.getMessage() : "Missing option value");
+            System.err.println("Usage: AccessLogReplay --export <realm-export.json> [--realm <name>] [--ip-list-directory <dir>]"
+                    + " [--format combined|audit] [--pattern <regex>] [--override <clientId>=<ranges>]... [--max-ips <n>] <log file>...");
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        ReplayReport report;
+        try (IpListRegistry ipLists = ipListDirectory != null ? new IpListRegistry(ipListDirectory) : null) {
+            AccessLogReplay replay = new AccessLogReplay(RealmExport.read(export), overrides, realm, Pattern.compile(format),
+                    ipLists, DEFAULT_CHUNK_SIZE);
+            report = replay.replay(files);
+        }
+        out.printf("Replayed %d files in %d ms%n", files.size(), (System.nanoTime() - start) / 1_000_000);
+        report.print(out, maxIps);
+        if (report.getLines() > 0 && report.getClients().isEmpty()) {
+            System.err.printf("No line was attributed to a restricted client (%d unattributed): check --realm, --format"
+                    + " or --pattern against the log format%n", report.getUnattributed());
+            System.exit(1);
+        }
+    }
+
+    private record Target(RealmExport.RestrictedClient client, CompiledAllowlist allowlist, List<String> unresolved) {
+    }
+
+    private record Chunk(Path file, long offset, long length) {
+    }
+
+    /**
+     * Line of a mapped buffer, read as ISO-8859-1 without copying it.
+     */
+    private static final class Latin1Slice implements CharSequence {
+        private final ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        Latin1Slice(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void reset(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            buffer.get(offset + start, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
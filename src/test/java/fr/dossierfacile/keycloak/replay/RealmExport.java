@@ -0,0 +1,75 @@
+package fr.dossierfacile.keycloak.replay;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * IP restrictions of the clients of a Keycloak realm export ({@code kc.sh export}, or a partial
+ * export of the admin console): a single realm, or an array of realms.
+ */
+public final class RealmExport {
+
+    private static final String RESTRICTION_ATTR = "has.ip.restriction";
+    private static final String ALLOWED_IP_RANGES_ATTR = "allowed.ip.ranges";
+
+    // Restricted clients by realm name, then client id
+    private final Map<String, Map<String, RestrictedClient>> realms;
+
+    private RealmExport(Map<String, Map<String, RestrictedClient>> realms) {
+        this.realms = realms;
+    }
+
+    /**
+     * Read the clients with {@code has.ip.restriction=true} of an export file.
+     *
+     * @throws IOException if the file cannot be read or is not JSON
+     */
+    public static RealmExport read(Path file) throws IOException {
+        JsonNode root = new ObjectMapper().readTree(file.toFile());
+        List<JsonNode> realmNodes = new ArrayList<>();
+        if (root.isArray()) {
+            root.forEach(realmNodes::add);
+        } else {
+            realmNodes.add(root);
+        }
+
+        Map<String, Map<String, RestrictedClient>> realms = new LinkedHashMap<>();
+        for (JsonNode realm : realmNodes) {
+            String realmName = realm.path("realm").asText();
+            Map<String, RestrictedClient> clients = new LinkedHashMap<>();
+            for (JsonNode client : realm.path("clients")) {
+                JsonNode attributes = client.path("attributes");
+                if ("true".equals(attributes.path(RESTRICTION_ATTR).asText())) {
+                    String clientId = client.path("clientId").asText();
+                    clients.put(clientId, new RestrictedClient(realmName, clientId, attributes.path(ALLOWED_IP_RANGES_ATTR).asText("")));
+                }
+            }
+            realms.put(realmName, clients);
+        }
+        return new RealmExport(realms);
+    }
+
+    /**
+     * @return the restricted clients, by realm name then client id
+     */
+    public Map<String, Map<String, RestrictedClient>> getRealms() {
+        return realms;
+    }
+
+    /**
+     * A client restricted by IP.
+     *
+     * @param realm         The realm name
+     * @param clientId      The client id
+     * @param allowedRanges The {@code allowed.ip.ranges} attribute, empty if the client has none
+     */
+    public record RestrictedClient(String realm, String clientId, String allowedRanges) {
+    }
+}
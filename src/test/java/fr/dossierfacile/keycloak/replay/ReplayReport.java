@@ -0,0 +1,178 @@
+package fr.dossierfacile.keycloak.replay;
+
+import java.io.PrintStream;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tallies of a replay: allowed and denied requests of each restricted client, and the denied IPs.
+ * Each replay task fills its own report, and the reports are merged at the end.
+ */
+public final class ReplayReport {
+
+    private long lines;
+    private long skipped;
+    private long unattributed;
+    private final Map<RealmExport.RestrictedClient, ClientTally> clients = new HashMap<>();
+
+    void countLine() {
+        lines++;
+    }
+
+    void countSkipped() {
+        skipped++;
+    }
+
+    void countUnattributed() {
+        unattributed++;
+    }
+
+    void countAllowed(RealmExport.RestrictedClient client) {
+        tally(client).allowed++;
+    }
+
+    void countUnresolved(RealmExport.RestrictedClient client, List<String> references) {
+        ClientTally tally = tally(client);
+        tally.unresolved++;
+        tally.unresolvedReferences = references;
+    }
+
+    void countDenied(RealmExport.RestrictedClient client, String ip) {
+        ClientTally tally = tally(client);
+        tally.denied++;
+        tally.deniedIps.merge(ip, 1L, Long::sum);
+    }
+
+    private ClientTally tally(RealmExport.RestrictedClient client) {
+        return clients.computeIfAbsent(client, key -> new ClientTally());
+    }
+
+    /**
+     * Add the tallies of another report to this one.
+     *
+     * @return this report
+     */
+    ReplayReport merge(ReplayReport other) {
+        lines += other.lines;
+        skipped += other.skipped;
+        unattributed += other.unattributed;
+        other.clients.forEach((client, tally) -> {
+            ClientTally merged = tally(client);
+            merged.allowed += tally.allowed;
+            merged.denied += tally.denied;
+            merged.unresolved += tally.unresolved;
+            if (merged.unresolvedReferences.isEmpty()) {
+                merged.unresolvedReferences = tally.unresolvedReferences;
+            }
+            tally.deniedIps.forEach((ip, count) -> merged.deniedIps.merge(ip, count, Long::sum));
+        });
+        return this;
+    }
+
+    /**
+     * @return the number of lines read
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the number of lines not matching the pattern, or of a client that is not restricted
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of lines matching the pattern without a client id, such as token requests
+     * with the client id in the POST body
+     */
+    public long getUnattributed() {
+        return unattributed;
+    }
+
+    /**
+     * @return the tallies of the restricted clients found in the logs
+     */
+    public Map<RealmExport.RestrictedClient, ClientTally> getClients() {
+        return clients;
+    }
+
+    /**
+     * Print the tallies, clients sorted by realm and client id, denied IPs by decreasing count.
+     *
+     * @param maxIps Maximum number of denied IPs printed for each client
+     */
+    public void print(PrintStream out, int maxIps) {
+        out.printf("%d lines read, %d lines skipped (not matching, or client not restricted), %d lines without client id%n",
+                lines, skipped, unattributed);
+        out.printf("%n%-50s %12s %12s%n", "realm / client", "allowed", "denied");
+
+        Map<RealmExport.RestrictedClient, ClientTally> sorted = new TreeMap<>(
+                Comparator.comparing(RealmExport.RestrictedClient::realm).thenComparing(RealmExport.RestrictedClient::clientId));
+        sorted.putAll(clients);
+        sorted.forEach((client, tally) -> {
+            out.printf("%-50s %12d %12d%n", client.realm() + " / " + client.clientId(), tally.allowed, tally.denied);
+            if (client.allowedRanges().isEmpty()) {
+                out.println("    no allowed.ip.ranges: every request is denied");
+            }
+            if (tally.unresolved > 0) {
+                out.printf("    %d requests not allowed by the other ranges, not counted as denied: unresolved %s"
+                        + " (check --ip-list-directory)%n", tally.unresolved, String.join(", ", tally.unresolvedReferences));
+            }
+            if (tally.denied > 0) {
+                out.printf("    denied IPs (%d):%n", tally.deniedIps.size());
+                tally.deniedIps.entrySet().stream()
+                        .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                        .limit(maxIps)
+                        .forEach(entry -> out.printf("        %-42s %12d%n", entry.getKey(), entry.getValue()));
+                if (tally.deniedIps.size() > maxIps) {
+                    out.printf("        ... %d more%n", tally.deniedIps.size() - maxIps);
+                }
+            }
+        });
+    }
+
+    /**
+     * Requests of one client.
+     */
+    public static final class ClientTally {
+        private long allowed;
+        private long denied;
+        private long unresolved;
+        private List<String> unresolvedReferences = List.of();
+        private final Map<String, Long> deniedIps = new HashMap<>();
+
+        public long getAllowed() {
+            return allowed;
+        }
+
+        public long getDenied() {
+            return denied;
+        }
+
+        /**
+         * @return the number of requests not allowed by the ranges, whose decision depends on an unresolved IP list
+         */
+        public long getUnresolved() {
+            return unresolved;
+        }
+
+        /**
+         * @return the {@code @file:} references of the client that could not be resolved
+         */
+        public List<String> getUnresolvedReferences() {
+            return unresolvedReferences;
+        }
+
+        /**
+         * @return the number of denied requests of each IP
+         */
+        public Map<String, Long> getDeniedIps() {
+            return deniedIps;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package fr.dossierfacile.keycloak.support;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import org.keycloak.Config;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight stubs of the Keycloak model used by IpWhitelistExecutor.
+ * <p>
+ * Stubs are plain dynamic proxies answering from fixed values, so they are much cheaper
+ * than mocks when called millions of times from benchmarks and load tests. Methods that
+ * are not stubbed return null (or 0/false for primitives).
+ */
+public final class KeycloakStubs {
+
+    private KeycloakStubs() {
+    }
+
+    /**
+     * Answer of a stubbed method.
+     */
+    @FunctionalInterface
+    public interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    public static RealmModel realm(String id) {
+        return stub(RealmModel.class, (method, args) -> switch (method) {
+            case "getId", "getName" -> id;
+            default -> null;
+        });
+    }
+
+    /**
+     * @param attributes Client attributes, read on every call so the map may be changed afterwards
+     */
+    public static ClientModel client(RealmModel realm, String clientId, Map<String, String> attributes) {
+        String id = realm.getId() + "/" + clientId;
+        return stub(ClientModel.class, (method, args) -> switch (method) {
+            case "getId" -> id;
+            case "getClientId" -> clientId;
+            case "getRealm" -> realm;
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "getAttributes" -> attributes;
+            default -> null;
+        });
+    }
+
+    /**
+     * @param headers    Request headers, read on every call so the map may be changed afterwards
+     * @param remoteAddr Address of the TCP peer
+     */
+    public static KeycloakContext context(RealmModel realm, ClientModel client, Map<String, String> headers, String remoteAddr) {
+        HttpHeaders httpHeaders = stub(HttpHeaders.class, (method, args) -> switch (method) {
+            case "getHeaderString" -> headers.get((String) args[0]);
+            case "getRequestHeader" -> headers.containsKey((String) args[0])
+                    ? List.of(headers.get((String) args[0]))
+                    : Collections.emptyList();
+            default -> null;
+        });
+        HttpRequest httpRequest = stub(HttpRequest.class, (method, args) -> "getHttpHeaders".equals(method) ? httpHeaders : null);
+        ClientConnection connection = stub(ClientConnection.class, (method, args) -> "getRemoteAddr".equals(method) ? remoteAddr : null);
+
+        return stub(KeycloakContext.class, (method, args) -> switch (method) {
+            case "getRealm" -> realm;
+            case "getClient" -> client;
+            case "getHttpRequest" -> httpRequest;
+            case "getConnection" -> connection;
+            default -> null;
+        });
+    }
+
+    /**
+     * @param values Configuration values, by property name. Typed getters parse them and fall back to their default.
+     */
+    public static Config.Scope config(Map<String, String> values) {
+        return stub(Config.Scope.class, (method, args) -> {
+            String value = args != null ? values.get((String) args[0]) : null;
+            Object defaultValue = args != null && args.length > 1 ? args[1] : null;
+            switch (method) {
+                case "get":
+                    return value != null ? value : defaultValue;
+                case "getInt":
+                    return value != null ? Integer.valueOf(value) : defaultValue;
+                case "getLong":
+                    return value != null ? Long.valueOf(value) : defaultValue;
+                case "getBoolean":
+                    return value != null ? Boolean.valueOf(value) : defaultValue;
+                case "getArray":
+                    return value != null ? value.split(",") : null;
+                case "getPropertyNames":
+                    return values.keySet();
+                default:
+                    return null;
+            }
+        });
+    }
+
+    public static KeycloakSession session(KeycloakContext context) {
+        return stub(KeycloakSession.class, (method, args) -> "getContext".equals(method) ? context : null);
+    }
+
+    /**
+     * Create a stub of an interface.
+     *
+     * @param type   The interface to stub
+     * @param answer The answer to every method call, by method name
+     * @return the stub
+     */
+    public static <T> T stub(Class<T> type, Answer answer) {
+        Object stub = Proxy.newProxyInstance(KeycloakStubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "Stub";
+                default:
+                    Object value = answer.answer(method.getName(), args);
+                    return value != null ? value : defaultValue(method);
+            }
+        });
+        return type.cast(stub);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class || type == long.class || type == short.class || type == byte.class) {
+            return type == long.class ? 0L : type == int.class ? 0 : type == short.class ? (short) 0 : (byte) 0;
+        }
+        if (type == double.class || type == float.class) {
+            return type == double.class ? 0d : 0f;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+package fr.dossierfacile.keycloak.support;
+
+import fr.dossierfacile.keycloak.executor.ClientInvalidationEvent;
+import fr.dossierfacile.keycloak.executor.InvalidationBus;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * In-JVM stand-in of the cluster, to simulate several Keycloak nodes in one process.
+ * <p>
+ * Each node joins the same bus and gets its own {@link InvalidationBus}. Events are
+ * delivered to every other node through an {@link Executor}: the direct default delivers
+ * them synchronously, a queueing executor lets tests delay, drop or reorder them.
+ */
+public final class LocalInvalidationBus {
+
+    private final Executor delivery;
+    private final List<Node> nodes = new CopyOnWriteArrayList<>();
+
+    public LocalInvalidationBus() {
+        this(Runnable::run);
+    }
+
+    /**
+     * @param delivery Runs the delivery of each event to each node
+     */
+    public LocalInvalidationBus(Executor delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * @return the bus of a new node
+     */
+    public InvalidationBus join() {
+        Node node = new Node();
+        nodes.add(node);
+        return node;
+    }
+
+    private final class Node implements InvalidationBus {
+        private final List<Consumer<ClientInvalidationEvent>> listeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void publish(ClientInvalidationEvent event) {
+            for (Node node : nodes) {
+                if (node != this) {
+                    for (Consumer<ClientInvalidationEvent> listener : node.listeners) {
+                        delivery.execute(() -> listener.accept(event));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void subscribe(Consumer<ClientInvalidationEvent> listener) {
+            listeners.add(listener);
+        }
+    }
+}
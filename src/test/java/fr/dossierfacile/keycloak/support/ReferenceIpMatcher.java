@@ -0,0 +1,181 @@
+package fr.dossierfacile.keycloak.support;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Pattern;
+
+/**
+ * Slow, obviously correct IP matcher used as the oracle of the differential tests.
+ * <p>
+ * Addresses are parsed by {@link InetAddress} into byte arrays and compared bit by bit,
+ * as the first version of {@code IpValidationService.isIpInCidr} did. The strict literal rules
+ * of the executor (no leading zeros in IPv4 parts, at most 4 digits per IPv6 group, no zone id,
+ * no host name) are checked with regular expressions first, so {@link InetAddress} never
+ * resolves a name: IPv6 candidates are passed in brackets, which it only accepts as literals.
+ */
+public final class ReferenceIpMatcher {
+
+    private static final String IPV4_PART = "(?:25[0-5]|2[0-4][0-9]|1[0-9]{2}|[1-9]?[0-9])";
+    private static final String IPV4 = "(?:" + IPV4_PART + "\\.){3}" + IPV4_PART;
+    private static final Pattern IPV4_PATTERN = Pattern.compile(IPV4);
+    // Groups of up to 4 hexadecimal digits and colons, optionally ending with a dotted IPv4 part after a colon.
+    // InetAddress alone accepts longer groups with leading zeros (00001::).
+    private static final Pattern IPV6_PATTERN =
+            Pattern.compile("(?=.*:)(?!.*[0-9A-Fa-f]{5})[0-9A-Fa-f:]*(?:(?<=:)" + IPV4 + ")?");
+    private static final Pattern PREFIX_LENGTH_PATTERN = Pattern.compile("0|[1-9][0-9]{0,2}");
+
+    private ReferenceIpMatcher() {
+    }
+
+    /**
+     * Parse an address, ignoring surrounding whitespace. IPv4-mapped IPv6 addresses are
+     * returned as IPv4 addresses.
+     *
+     * @return the address, null if the text is not a literal
+     */
+    public static Address parseAddress(String s) {
+        if (s == null) {
+            return null;
+        }
+        s = s.trim();
+        if (IPV4_PATTERN.matcher(s).matches()) {
+            return toAddress(literal(s));
+        }
+        if (IPV6_PATTERN.matcher(s).matches()) {
+            InetAddress address = literal("[" + s + "]");
+            return address == null ? null : toAddress(address);
+        }
+        return null;
+    }
+
+    /**
+     * Parse a CIDR range, ignoring surrounding whitespace. IPv4-mapped IPv6 ranges of at
+     * least 96 bits are returned as IPv4 ranges.
+     *
+     * @return the range, null if the text is not a valid range
+     */
+    public static Range parseRange(String s) {
+        if (s == null) {
+            return null;
+        }
+        s = s.trim();
+        int slash = s.indexOf('/');
+        if (slash < 0 || !PREFIX_LENGTH_PATTERN.matcher(s.substring(slash + 1)).matches()) {
+            return null;
+        }
+        String network = s.substring(0, slash);
+        int length = Integer.parseInt(s.substring(slash + 1));
+
+        if (IPV4_PATTERN.matcher(network).matches()) {
+            return length <= 32 ? new Range(toAddress(literal(network)), length) : null;
+        }
+        if (!IPV6_PATTERN.matcher(network).matches() || length > 128) {
+            return null;
+        }
+        InetAddress address = literal("[" + network + "]");
+        if (address == null) {
+            return null;
+        }
+        if (address instanceof Inet4Address) {
+            // InetAddress already unmapped it
+            if (length >= 96) {
+                return new Range(toAddress(address), length - 96);
+            }
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xFF;
+            mapped[11] = (byte) 0xFF;
+            System.arraycopy(address.getAddress(), 0, mapped, 12, 4);
+            return new Range(new Address(mapped), length);
+        }
+        return new Range(toAddress(address), length);
+    }
+
+    private static InetAddress literal(String s) {
+        try {
+            return InetAddress.getByName(s);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static Address toAddress(InetAddress address) {
+        return new Address(address.getAddress());
+    }
+
+    /**
+     * An address: 4 bytes for IPv4, 16 bytes for IPv6.
+     */
+    public record Address(byte[] bytes) {
+
+        /**
+         * @return 4 or 6
+         */
+        public int family() {
+            return bytes.length == 4 ? 4 : 6;
+        }
+
+        /**
+         * @return the address as a key of the executor: high 64 bits at index 0, low 64 bits at index 1
+         */
+        public long[] key() {
+            long hi = 0;
+            long lo = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (i < 8) {
+                    hi = hi << 8 | (bytes[i] & 0xFF);
+                } else {
+                    lo = lo << 8 | (bytes[i] & 0xFF);
+                }
+            }
+            if (bytes.length == 4) {
+                hi <<= 32;
+            }
+            return new long[]{hi, lo};
+        }
+    }
+
+    /**
+     * A CIDR range, its network bytes as written (host bits are not cleared).
+     */
+    public record Range(Address network, int length) {
+
+        /**
+         * @return true if the address is in the range; IPv4 and IPv6 never match each other
+         */
+        public boolean contains(Address address) {
+            return address.family() == network.family() && prefixEquals(address.bytes(), network.bytes(), length);
+        }
+
+        /**
+         * @return true if every address of the block {@code prefix/prefixLength} is in the range
+         */
+        public boolean covers(Address prefix, int prefixLength) {
+            return prefix.family() == network.family() && prefixLength >= length
+                    && prefixEquals(prefix.bytes(), network.bytes(), length);
+        }
+
+        /**
+         * @return true if the block {@code prefix/prefixLength} has an address in the range
+         */
+        public boolean intersects(Address prefix, int prefixLength) {
+            return prefix.family() == network.family()
+                    && prefixEquals(prefix.bytes(), network.bytes(), Math.min(length, prefixLength));
+        }
+    }
+
+    private static boolean prefixEquals(byte[] a, byte[] b, int length) {
+        int fullBytes = length / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        int remainingBits = length % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = (0xFF << (8 - remainingBits)) & 0xFF;
+        return (a[fullBytes] & mask) == (b[fullBytes] & mask);
+    }
+}